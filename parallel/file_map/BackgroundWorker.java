@@ -0,0 +1,29 @@
+package ru.fizteh.fivt.students.titov.parallel.file_map;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One daemon thread shared by all tables for periodic work on their files.
+ */
+public class BackgroundWorker {
+    private static ScheduledExecutorService executor;
+    static {
+        executor = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread result = new Thread(task, "file-map-background");
+            result.setDaemon(true);
+            return result;
+        });
+    }
+
+    public static Future<?> submit(Runnable task) {
+        return executor.submit(task);
+    }
+
+    public static ScheduledFuture<?> schedule(Runnable task, long periodInMillis) {
+        return executor.scheduleWithFixedDelay(task, periodInMillis, periodInMillis, TimeUnit.MILLISECONDS);
+    }
+}
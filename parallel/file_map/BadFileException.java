@@ -14,6 +14,9 @@ public class BadFileException extends IOException {
     @Override
     public String getMessage() {
         Throwable cause = getCause();
+        if (cause == null) {
+            return super.getMessage();
+        }
         return cause.getClass().getName() + ": " + cause.getMessage();
     }
 }
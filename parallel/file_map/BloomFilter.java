@@ -0,0 +1,111 @@
+package ru.fizteh.fivt.students.titov.parallel.file_map;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+
+/**
+ * Set of keys which may answer "maybe" for a key it doesn't have, but never
+ * answers "no" for a key it has. Positions of a key are taken by enhanced
+ * double hashing from one 64-bit hash of the key.
+ */
+public class BloomFilter {
+    private static final int MAX_NUMBER_OF_HASHES = 16;
+
+    private final long[] bits;
+    private final int numberOfHashes;
+
+    private BloomFilter(long[] newBits, int newNumberOfHashes) {
+        bits = newBits;
+        numberOfHashes = newNumberOfHashes;
+    }
+
+    /**
+     * @param falsePositiveRate - part of absent keys for which mightContain returns true
+     */
+    public static BloomFilter create(Collection<String> keys, double falsePositiveRate) {
+        int numberOfKeys = Math.max(keys.size(), 1);
+        double numberOfBits = -numberOfKeys * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2));
+        int numberOfWords = (int) Math.min(Integer.MAX_VALUE / 64, Math.max(1, (long) Math.ceil(numberOfBits / 64)));
+        int hashes = (int) Math.round(numberOfWords * 64.0 / numberOfKeys * Math.log(2));
+        BloomFilter result = new BloomFilter(new long[numberOfWords],
+                Math.max(1, Math.min(MAX_NUMBER_OF_HASHES, hashes)));
+        for (String oneKey : keys) {
+            result.add(oneKey);
+        }
+        return result;
+    }
+
+    private void add(String key) {
+        long numberOfBits = bits.length * 64L;
+        long first = hashOf(key);
+        long second = Long.rotateLeft(first, 32) * 0x9e3779b97f4a7c15L;
+        for (int i = 0; i < numberOfHashes; ++i) {
+            long position = Long.remainderUnsigned(first, numberOfBits);
+            bits[(int) (position >>> 6)] |= 1L << position;
+            first += second;
+            second += i;
+        }
+    }
+
+    public boolean mightContain(String key) {
+        long numberOfBits = bits.length * 64L;
+        long first = hashOf(key);
+        long second = Long.rotateLeft(first, 32) * 0x9e3779b97f4a7c15L;
+        for (int i = 0; i < numberOfHashes; ++i) {
+            long position = Long.remainderUnsigned(first, numberOfBits);
+            if ((bits[(int) (position >>> 6)] & (1L << position)) == 0) {
+                return false;
+            }
+            first += second;
+            second += i;
+        }
+        return true;
+    }
+
+    /**
+     * 64-bit FNV-1a over chars of the key with the final mix of murmur3. It doesn't
+     * use String.hashCode, which chooses the bucket, so keys of one bucket are spread.
+     */
+    private static long hashOf(String key) {
+        long result = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); ++i) {
+            result ^= key.charAt(i);
+            result *= 0x100000001b3L;
+        }
+        result ^= result >>> 33;
+        result *= 0xff51afd7ed558ccdL;
+        result ^= result >>> 33;
+        result *= 0xc4ceb9fe1a85ec53L;
+        result ^= result >>> 33;
+        return result;
+    }
+
+    /**
+     * int number of hashes, int number of words, words of bits.
+     */
+    public byte[] toBytes() {
+        ByteBuffer result = ByteBuffer.allocate(8 + bits.length * 8);
+        result.putInt(numberOfHashes).putInt(bits.length);
+        for (long oneWord : bits) {
+            result.putLong(oneWord);
+        }
+        return result.array();
+    }
+
+    public static BloomFilter fromBytes(ByteBuffer input) throws BadFileException {
+        try {
+            int newNumberOfHashes = input.getInt();
+            int numberOfWords = input.getInt();
+            if (newNumberOfHashes <= 0 || newNumberOfHashes > MAX_NUMBER_OF_HASHES || numberOfWords <= 0
+                    || numberOfWords * 8L != input.remaining()) {
+                throw new BadFileException();
+            }
+            long[] newBits = new long[numberOfWords];
+            input.asLongBuffer().get(newBits);
+            return new BloomFilter(newBits, newNumberOfHashes);
+        } catch (BufferUnderflowException e) {
+            throw new BadFileException(e);
+        }
+    }
+}
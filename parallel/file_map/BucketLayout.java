@@ -0,0 +1,213 @@
+package ru.fizteh.fivt.students.titov.parallel.file_map;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Linear hashing over bucket files 0..numberOfBuckets-1. The round starts with
+ * initialNumberOfBuckets << level buckets, split number p divides bucket p
+ * between p and p + size of the round, merge takes the last split back.
+ * Kept in manifest.tsv of the table, together with the bucket of a split or merge
+ * which is in progress.
+ */
+public class BucketLayout {
+    /**
+     * String.hashCode placed so that its low byte is the number of the bucket
+     * in the old layout of 16 directories with 16 files each.
+     */
+    public static final String LEGACY_HASH = "legacy";
+    /**
+     * String.hashCode with all bits mixed, so that keys with close hash codes
+     * go to different buckets.
+     */
+    public static final String MIXED_HASH = "mixed";
+    public static final int LEGACY_NUMBER_OF_DIRS = 16;
+    public static final int LEGACY_NUMBER_OF_FILES = 16;
+
+    private static final String HASH = "hash";
+    private static final String INITIAL = "initial";
+    private static final String BUCKETS = "buckets";
+    private static final String MOVING = "moving";
+
+    private final String hashName;
+    private final int initialNumberOfBuckets;
+    private final int numberOfBuckets;
+    private final int sizeOfRound;
+    private final int movingBucket;
+
+    public BucketLayout(String newHashName, int newInitialNumberOfBuckets, int newNumberOfBuckets)
+            throws IllegalArgumentException {
+        this(newHashName, newInitialNumberOfBuckets, newNumberOfBuckets, -1);
+    }
+
+    private BucketLayout(String newHashName, int newInitialNumberOfBuckets, int newNumberOfBuckets,
+                         int newMovingBucket) throws IllegalArgumentException {
+        if (!LEGACY_HASH.equals(newHashName) && !MIXED_HASH.equals(newHashName)) {
+            throw new IllegalArgumentException("unknown hash (" + newHashName + ")");
+        }
+        if (newInitialNumberOfBuckets <= 0 || newNumberOfBuckets < newInitialNumberOfBuckets) {
+            throw new IllegalArgumentException("wrong number of buckets");
+        }
+        hashName = newHashName;
+        initialNumberOfBuckets = newInitialNumberOfBuckets;
+        numberOfBuckets = newNumberOfBuckets;
+        int round = initialNumberOfBuckets;
+        while (round <= numberOfBuckets / 2) {
+            round *= 2;
+        }
+        sizeOfRound = round;
+        if (newMovingBucket >= 0 && (numberOfBuckets == initialNumberOfBuckets
+                || newMovingBucket != merge().getBucketToSplit())) {
+            throw new IllegalArgumentException("wrong moving bucket (" + newMovingBucket + ")");
+        }
+        movingBucket = newMovingBucket;
+    }
+
+    /**
+     * Layout of a table stored as 16 directories with 16 files each.
+     */
+    public static BucketLayout legacy() {
+        int number = LEGACY_NUMBER_OF_DIRS * LEGACY_NUMBER_OF_FILES;
+        return new BucketLayout(LEGACY_HASH, number, number);
+    }
+
+    public static BucketLayout parse(List<String> lines) throws IllegalArgumentException {
+        String newHashName = null;
+        int newInitialNumberOfBuckets = 0;
+        int newNumberOfBuckets = 0;
+        int newMovingBucket = -1;
+        try {
+            for (String line : lines) {
+                String[] parts = line.trim().split("\\s+");
+                if (parts.length == 0 || parts[0].isEmpty()) {
+                    continue;
+                }
+                if (parts.length != 2) {
+                    throw new IllegalArgumentException("wrong line of manifest (" + line + ")");
+                }
+                switch (parts[0]) {
+                    case HASH:
+                        newHashName = parts[1];
+                        break;
+                    case INITIAL:
+                        newInitialNumberOfBuckets = Integer.parseInt(parts[1]);
+                        break;
+                    case BUCKETS:
+                        newNumberOfBuckets = Integer.parseInt(parts[1]);
+                        break;
+                    case MOVING:
+                        newMovingBucket = Integer.parseInt(parts[1]);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("unknown line of manifest (" + line + ")");
+                }
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("wrong number in manifest", e);
+        }
+        return new BucketLayout(newHashName, newInitialNumberOfBuckets, newNumberOfBuckets, newMovingBucket);
+    }
+
+    public List<String> toLines() {
+        List<String> result = new ArrayList<>();
+        result.add(HASH + " " + hashName);
+        result.add(INITIAL + " " + initialNumberOfBuckets);
+        result.add(BUCKETS + " " + numberOfBuckets);
+        if (movingBucket >= 0) {
+            result.add(MOVING + " " + movingBucket);
+        }
+        return result;
+    }
+
+    public int getNumberOfBuckets() {
+        return numberOfBuckets;
+    }
+
+    public int getInitialNumberOfBuckets() {
+        return initialNumberOfBuckets;
+    }
+
+    public int getNumberOfBucket(String key) {
+        long hash = hashOf(key.hashCode());
+        long result = hash % sizeOfRound;
+        if (result < numberOfBuckets - sizeOfRound) {
+            result = hash % (2L * sizeOfRound);
+        }
+        return (int) result;
+    }
+
+    /**
+     * Bucket whose file may still hold copies of keys of the last bucket, because a split
+     * or merge between the two was stopped, or -1.
+     */
+    public int getMovingBucket() {
+        return movingBucket;
+    }
+
+    /**
+     * The same layout with the split or merge between the last bucket and the bucket
+     * it was split from marked as in progress.
+     */
+    public BucketLayout moving() throws IllegalStateException {
+        return new BucketLayout(hashName, initialNumberOfBuckets, numberOfBuckets, merge().getBucketToSplit());
+    }
+
+    /**
+     * The same layout without a split or merge in progress.
+     */
+    public BucketLayout settled() {
+        return new BucketLayout(hashName, initialNumberOfBuckets, numberOfBuckets);
+    }
+
+    /**
+     * Bucket whose keys are divided by the next split.
+     */
+    public int getBucketToSplit() {
+        return numberOfBuckets - sizeOfRound;
+    }
+
+    /**
+     * Layout with one more bucket, the new bucket takes a part of getBucketToSplit().
+     */
+    public BucketLayout split() {
+        return new BucketLayout(hashName, initialNumberOfBuckets, numberOfBuckets + 1);
+    }
+
+    /**
+     * Layout without the last bucket, its keys go to getBucketToSplit() of the result.
+     */
+    public BucketLayout merge() throws IllegalStateException {
+        if (numberOfBuckets == initialNumberOfBuckets) {
+            throw new IllegalStateException("nothing to merge");
+        }
+        return new BucketLayout(hashName, initialNumberOfBuckets, numberOfBuckets - 1);
+    }
+
+    private long hashOf(int hashCode) {
+        if (LEGACY_HASH.equals(hashName)) {
+            return ((long) (hashCode >>> 8) << 8) | getLegacyNumberOfBucket(hashCode);
+        }
+        int result = hashCode;
+        result ^= result >>> 16;
+        result *= 0x85ebca6b;
+        result ^= result >>> 13;
+        result *= 0xc2b2ae35;
+        result ^= result >>> 16;
+        return Integer.toUnsignedLong(result);
+    }
+
+    /**
+     * Number of directory * 16 + number of file in the old layout.
+     */
+    public static int getLegacyNumberOfBucket(int hashCode) {
+        int numberOfDirectory = hashCode % LEGACY_NUMBER_OF_DIRS;
+        if (numberOfDirectory < 0) {
+            numberOfDirectory += LEGACY_NUMBER_OF_DIRS;
+        }
+        int numberOfFile = hashCode / LEGACY_NUMBER_OF_DIRS % LEGACY_NUMBER_OF_FILES;
+        if (numberOfFile < 0) {
+            numberOfFile += LEGACY_NUMBER_OF_FILES;
+        }
+        return numberOfDirectory * LEGACY_NUMBER_OF_FILES + numberOfFile;
+    }
+}
@@ -0,0 +1,70 @@
+package ru.fizteh.fivt.students.titov.parallel.file_map;
+
+import ru.fizteh.fivt.storage.structured.Storeable;
+import ru.fizteh.fivt.storage.structured.Table;
+import ru.fizteh.fivt.students.titov.parallel.storeable.RowCodec;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Records of the write-ahead log: number of changes, then for every change the
+ * key and the encoded value, length -1 instead of the value for a removed key.
+ */
+public class ChangeRecords {
+    /**
+     * @param removed - value which marks a removed key in changes
+     */
+    public static byte[] encode(Table table, RowCodec codec, Map<String, Storeable> changes, Storeable removed)
+            throws IOException {
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(record);
+        output.writeInt(changes.size());
+        for (Map.Entry<String, Storeable> oneChange : changes.entrySet()) {
+            byte[] keyByte = oneChange.getKey().getBytes(StandardCharsets.UTF_8);
+            output.writeInt(keyByte.length);
+            output.write(keyByte);
+            if (oneChange.getValue() == removed) {
+                output.writeInt(-1);
+            } else {
+                byte[] valueByte = codec.encode(table, oneChange.getValue());
+                output.writeInt(valueByte.length);
+                output.write(valueByte);
+            }
+        }
+        output.flush();
+        return record.toByteArray();
+    }
+
+    /**
+     * Changes of the record in the order they were written, value is null for a removed key.
+     */
+    public static List<SortedRun.Entry> decode(byte[] record) throws BadFileException {
+        List<SortedRun.Entry> result = new ArrayList<>();
+        try {
+            ByteBuffer input = ByteBuffer.wrap(record);
+            int numberOfChanges = input.getInt();
+            for (int i = 0; i < numberOfChanges; ++i) {
+                byte[] keyByte = new byte[input.getInt()];
+                input.get(keyByte);
+                int length = input.getInt();
+                byte[] value = null;
+                if (length >= 0) {
+                    value = new byte[length];
+                    input.get(value);
+                }
+                result.add(new SortedRun.Entry(new String(keyByte, StandardCharsets.UTF_8), value));
+            }
+        } catch (BufferUnderflowException | NegativeArraySizeException e) {
+            throw new BadFileException(e);
+        }
+        return result;
+    }
+}
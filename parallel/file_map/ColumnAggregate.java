@@ -0,0 +1,116 @@
+package ru.fizteh.fivt.students.titov.parallel.file_map;
+
+/**
+ * count, sum, min, max and avg of values of one column. Parts of a table are
+ * aggregated separately and then merged. Nulls are not counted. Sums of Byte,
+ * Integer and Long columns are Long, sums of Float and Double columns are Double.
+ */
+public class ColumnAggregate {
+    public static final String COUNT = "count";
+    public static final String SUM = "sum";
+    public static final String MIN = "min";
+    public static final String MAX = "max";
+    public static final String AVERAGE = "avg";
+
+    private final boolean numeric;
+    private final boolean floating;
+    private long count;
+    private long integerSum;
+    private double floatingSum;
+    private Comparable<Object> min;
+    private Comparable<Object> max;
+
+    public ColumnAggregate(Class<?> type) {
+        numeric = Number.class.isAssignableFrom(type);
+        floating = type == Float.class || type == Double.class;
+    }
+
+    @SuppressWarnings("unchecked")
+    public void add(Object value) throws ArithmeticException {
+        if (value == null) {
+            return;
+        }
+        ++count;
+        if (floating) {
+            floatingSum += ((Number) value).doubleValue();
+        } else if (numeric) {
+            integerSum = Math.addExact(integerSum, ((Number) value).longValue());
+        }
+        Comparable<Object> comparableValue = (Comparable<Object>) value;
+        if (min == null || comparableValue.compareTo(min) < 0) {
+            min = comparableValue;
+        }
+        if (max == null || comparableValue.compareTo(max) > 0) {
+            max = comparableValue;
+        }
+    }
+
+    /**
+     * Adds values of the other part to this one and returns this one.
+     */
+    public ColumnAggregate merge(ColumnAggregate other) throws ArithmeticException {
+        count += other.count;
+        floatingSum += other.floatingSum;
+        integerSum = Math.addExact(integerSum, other.integerSum);
+        if (other.min != null && (min == null || other.min.compareTo(min) < 0)) {
+            min = other.min;
+        }
+        if (other.max != null && (max == null || other.max.compareTo(max) > 0)) {
+            max = other.max;
+        }
+        return this;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public Number getSum() throws IllegalStateException {
+        if (!numeric) {
+            throw new IllegalStateException("sum of a column which is not numeric");
+        }
+        if (floating) {
+            return floatingSum;
+        }
+        return integerSum;
+    }
+
+    public Object getMin() {
+        return min;
+    }
+
+    public Object getMax() {
+        return max;
+    }
+
+    /**
+     * Null if there are no values.
+     */
+    public Double getAverage() throws IllegalStateException {
+        if (count == 0) {
+            getSum();
+            return null;
+        }
+        return getSum().doubleValue() / count;
+    }
+
+    /**
+     * Value of the function by its name: count, sum, min, max or avg.
+     */
+    public Object get(String function) throws IllegalArgumentException, IllegalStateException {
+        switch (function) {
+            case COUNT:
+                return getCount();
+            case SUM:
+                return getSum();
+            case MIN:
+                return getMin();
+            case MAX:
+                return getMax();
+            case AVERAGE:
+                return getAverage();
+            default:
+                throw new IllegalArgumentException("unknown function (" + function + ")");
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package ru.fizteh.fivt.students.titov.parallel.file_map;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Keys of committed rows by the value of one column. A hash index finds rows
+ * with a value, an ordered index also finds rows with values in a range.
+ * Rows with null in the column are not indexed.
+ */
+public class ColumnIndex {
+    public static final String HASH = "hash";
+    public static final String ORDERED = "ordered";
+
+    private final int column;
+    private final String kind;
+    private final Map<Object, Set<String>> keysByValue;
+    private final ReentrantReadWriteLock lockForIndex;
+
+    @SuppressWarnings("unchecked")
+    public ColumnIndex(int newColumn, String newKind) throws IllegalArgumentException {
+        if (HASH.equals(newKind)) {
+            keysByValue = new HashMap<>();
+        } else if (ORDERED.equals(newKind)) {
+            keysByValue = new TreeMap<>((first, second) -> ((Comparable<Object>) first).compareTo(second));
+        } else {
+            throw new IllegalArgumentException("unknown index (" + newKind + ")");
+        }
+        column = newColumn;
+        kind = newKind;
+        lockForIndex = new ReentrantReadWriteLock();
+    }
+
+    public int getColumn() {
+        return column;
+    }
+
+    public String getKind() {
+        return kind;
+    }
+
+    /**
+     * Moves the key from the old value of the column to the new one, null means no row.
+     */
+    public void update(String key, Object oldValue, Object newValue) {
+        if (oldValue != null && oldValue.equals(newValue)) {
+            return;
+        }
+        try {
+            lockForIndex.writeLock().lock();
+            if (oldValue != null) {
+                Set<String> keys = keysByValue.get(oldValue);
+                if (keys != null) {
+                    keys.remove(key);
+                    if (keys.isEmpty()) {
+                        keysByValue.remove(oldValue);
+                    }
+                }
+            }
+            if (newValue != null) {
+                keysByValue.computeIfAbsent(newValue, value -> new HashSet<>()).add(key);
+            }
+        } finally {
+            lockForIndex.writeLock().unlock();
+        }
+    }
+
+    public List<String> get(Object value) {
+        try {
+            lockForIndex.readLock().lock();
+            Set<String> keys = keysByValue.get(value);
+            return keys == null ? new ArrayList<>() : new ArrayList<>(keys);
+        } finally {
+            lockForIndex.readLock().unlock();
+        }
+    }
+
+    /**
+     * Keys of rows with values from "from" inclusive to "to" exclusive, null means no bound.
+     */
+    @SuppressWarnings("unchecked")
+    public List<String> getRange(Object from, Object to) throws IllegalStateException {
+        if (!ORDERED.equals(kind)) {
+            throw new IllegalStateException("index on column " + column + " is not ordered");
+        }
+        try {
+            lockForIndex.readLock().lock();
+            NavigableMap<Object, Set<String>> values = (NavigableMap<Object, Set<String>>) keysByValue;
+            if (from != null && to != null) {
+                if (((Comparable<Object>) from).compareTo(to) >= 0) {
+                    return new ArrayList<>();
+                }
+                values = values.subMap(from, true, to, false);
+            } else if (from != null) {
+                values = values.tailMap(from, true);
+            } else if (to != null) {
+                values = values.headMap(to, false);
+            }
+            List<String> result = new ArrayList<>();
+            for (Collection<String> oneSet : values.values()) {
+                result.addAll(oneSet);
+            }
+            return result;
+        } finally {
+            lockForIndex.readLock().unlock();
+        }
+    }
+}
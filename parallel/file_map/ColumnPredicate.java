@@ -0,0 +1,106 @@
+package ru.fizteh.fivt.students.titov.parallel.file_map;
+
+import ru.fizteh.fivt.storage.structured.ColumnFormatException;
+import ru.fizteh.fivt.storage.structured.Storeable;
+import ru.fizteh.fivt.storage.structured.Table;
+import ru.fizteh.fivt.students.titov.parallel.storeable.TypesUtils;
+
+/**
+ * Condition "column operator value" on one column of a row. A null in the column
+ * satisfies only "!=".
+ */
+public class ColumnPredicate {
+    public static final String EQUAL = "==";
+    public static final String NOT_EQUAL = "!=";
+    public static final String LESS = "<";
+    public static final String LESS_OR_EQUAL = "<=";
+    public static final String GREATER = ">";
+    public static final String GREATER_OR_EQUAL = ">=";
+
+    private final int column;
+    private final String operator;
+    private final Comparable<Object> value;
+
+    /**
+     * @param newValue - value of the type of the column, checked against the table by TableQuery.check
+     */
+    @SuppressWarnings("unchecked")
+    public ColumnPredicate(int newColumn, String newOperator, Object newValue)
+            throws ColumnFormatException, IllegalArgumentException {
+        if (newValue == null || newOperator == null) {
+            throw new IllegalArgumentException("null argument");
+        }
+        if (!TypesUtils.canonicalTypes.contains(newValue.getClass())) {
+            throw new ColumnFormatException("wrong type (" + newValue.getClass().getTypeName() + ")");
+        }
+        switch (newOperator) {
+            case EQUAL:
+            case NOT_EQUAL:
+            case LESS:
+            case LESS_OR_EQUAL:
+            case GREATER:
+            case GREATER_OR_EQUAL:
+                break;
+            default:
+                throw new IllegalArgumentException("unknown operator (" + newOperator + ")");
+        }
+        if (newColumn < 0) {
+            throw new IllegalArgumentException("wrong column (" + newColumn + ")");
+        }
+        column = newColumn;
+        operator = newOperator;
+        value = (Comparable<Object>) newValue;
+    }
+
+    /**
+     * Predicate from the shell words, the value is parsed by the type of the column.
+     */
+    public static ColumnPredicate parse(Table table, String column, String operator, String value)
+            throws ColumnFormatException, IllegalArgumentException {
+        int numberOfColumn;
+        try {
+            numberOfColumn = Integer.parseInt(column);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("wrong column (" + column + ")");
+        }
+        if (numberOfColumn < 0 || numberOfColumn >= table.getColumnsCount()) {
+            throw new IllegalArgumentException("wrong column (" + column + ")");
+        }
+        return new ColumnPredicate(numberOfColumn, operator,
+                TypesUtils.parseValue(table.getColumnType(numberOfColumn), value));
+    }
+
+    public int getColumn() {
+        return column;
+    }
+
+    public String getOperator() {
+        return operator;
+    }
+
+    public Object getValue() {
+        return value;
+    }
+
+    public boolean test(Storeable row) {
+        Object columnValue = row.getColumnAt(column);
+        if (columnValue == null) {
+            return operator.equals(NOT_EQUAL);
+        }
+        int comparison = value.compareTo(columnValue);
+        switch (operator) {
+            case EQUAL:
+                return comparison == 0;
+            case NOT_EQUAL:
+                return comparison != 0;
+            case LESS:
+                return comparison > 0;
+            case LESS_OR_EQUAL:
+                return comparison >= 0;
+            case GREATER:
+                return comparison < 0;
+            default:
+                return comparison <= 0;
+        }
+    }
+}
@@ -1,10 +1,15 @@
 package ru.fizteh.fivt.students.titov.parallel.file_map;
 
+import ru.fizteh.fivt.storage.structured.ColumnFormatException;
 import ru.fizteh.fivt.storage.structured.Storeable;
 import ru.fizteh.fivt.storage.structured.Table;
 import ru.fizteh.fivt.storage.structured.TableProvider;
+import ru.fizteh.fivt.students.titov.parallel.storeable.AbstractStoreable;
+import ru.fizteh.fivt.students.titov.parallel.storeable.RowCodec;
+import ru.fizteh.fivt.students.titov.parallel.storeable.RowCodecs;
+import ru.fizteh.fivt.students.titov.parallel.storeable.TableSchema;
 import ru.fizteh.fivt.students.titov.parallel.storeable.TypesUtils;
-import ru.fizteh.fivt.students.titov.parallel.storeable.Serializator;
+import ru.fizteh.fivt.students.titov.parallel.shell.FileUtils;
 
 import java.io.*;
 import java.nio.ByteBuffer;
@@ -12,76 +17,366 @@ import java.nio.channels.FileChannel;
 import java.nio.channels.FileChannel.MapMode;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.text.ParseException;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Checksum;
+import java.util.zip.DataFormatException;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
 
-public class FileMap implements Table {
-    private static final int MAX_NUMBER_OF_DIRS = 16;
-    private static final int MAX_NUMBER_OF_FILES = 16;
+public class FileMap implements StoredTable {
+    private static final int NUMBER_OF_LOCKS = 256;
+    private static final int INITIAL_NUMBER_OF_BUCKETS = 16;
     private static final String SUFFIX_OF_DIRECTORY = ".dir";
     private static final String SUFFIX_OF_FILE = ".dat";
+    private static final String SUFFIX_OF_FILTER = ".bloom";
+    private static final String SUFFIX_OF_INDEX = ".idx";
+    private static final String INDEXES_FILE = "indexes.tsv";
+    private static final String BULK_FILE = "bulk.tsv";
+    private static final String SUFFIX_OF_BULK = ".bulk";
+    private static final int BUCKETS_PER_THREAD = 4;
+    private static final int SIZE_OF_BUFFER = 64 * 1024;
+    private static final int SIZE_OF_BULK_BATCH = 4096;
+    private static final String BUCKETS_DIRECTORY = "buckets";
+    private static final String MANIFEST_FILE = "manifest.tsv";
     private static final String FILE_ENCODING = "UTF-8";
-    private Map<String, Storeable> stableData;
-    private List<Class<?>> typeList;
+    private static final String SIZE_FILE = "size.tsv";
+    private static final String SUFFIX_OF_TEMP = ".tmp";
+    private static final long UNKNOWN_CHECKSUM = -1;
+    private static final Storeable TOMBSTONE = new AbstractStoreable(new Object[0], TableSchema.EMPTY);
+    private AtomicReference<Version> stableData;
+    private boolean lazyLoading;
+    private TableSchema schema;
     private int numberOfColumns;
     private String directoryOfTable;
     private TableProvider parent;
-    private Lock lockForCommit;
-    private ThreadLocal<Difference> diff;
+    private TableOptions options;
+    private RowCodec codec;
+    private Lock[] lockForBucket;
+    private ReentrantReadWriteLock lockForLayout;
+    private Lock lockForSize;
+    private int[] savedSizes;
+    private long[] savedChecksums;
+    private ThreadLocal<OverlayTransaction> diff;
+    private WriteAheadLog log;
+    private Set<Integer> bucketsForCheckpoint;
+    private ReentrantReadWriteLock lockForCheckpoint;
+    private Lock lockForCheckpointRun;
+    private ScheduledFuture<?> checkpointTask;
+    private Set<Integer> bucketsForSync;
+    private ScheduledFuture<?> syncTask;
+    private volatile NavigableSet<String> orderedKeys;
+    private Map<Integer, ColumnIndex> indexes;
 
-    private class Difference {
-        private HashMap<String, Storeable> addedData;
-        private HashMap<String, Storeable> changedData;
-        private HashSet<String> removedData;
+    /**
+     * Transaction over this table. All changes are kept in one map, a removed
+     * committed key is marked with TOMBSTONE. Every committed value seen by the
+     * transaction is remembered in readData as the version of its key.
+     */
+    private class OverlayTransaction implements Transaction {
+        private HashMap<String, Storeable> changes;
+        private HashMap<String, Storeable> readData;
+        private int sizeDifference;
+        private Version snapshot;
+
+        OverlayTransaction() {
+            changes = new HashMap<>();
+            readData = new HashMap<>();
+        }
+
+        /**
+         * Committed version seen by this transaction. Until the transaction reads
+         * or changes a key every call takes the latest version, the first read pins
+         * the version until commit or rollback, so commit checks every value it has seen.
+         */
+        Version getSnapshot() {
+            if (changes.isEmpty() && readData.isEmpty()) {
+                snapshot = stableData.get();
+            }
+            return snapshot;
+        }
+
+        private Storeable getStable(String key) {
+            Version currentSnapshot = getSnapshot();
+            if (readData.containsKey(key)) {
+                return readData.get(key);
+            }
+            Storeable result = currentSnapshot.get(key);
+            readData.put(key, result);
+            return result;
+        }
+
+        /**
+         * Keys of the snapshot, bucket after bucket.
+         */
+        Iterator<String> committedKeys() {
+            Bucket[] buckets = getSnapshot().buckets;
+            return new Iterator<String>() {
+                private int numberOfBucket;
+                private Iterator<String> current = Collections.emptyIterator();
+
+                @Override
+                public boolean hasNext() {
+                    while (!current.hasNext() && numberOfBucket < buckets.length) {
+                        current = buckets[numberOfBucket++].getData().keySet().iterator();
+                    }
+                    return current.hasNext();
+                }
+
+                @Override
+                public String next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    return current.next();
+                }
+            };
+        }
+
+        void clear() {
+            changes.clear();
+            readData.clear();
+            sizeDifference = 0;
+            snapshot = null;
+        }
+
+        @Override
+        public Storeable get(String key) throws IllegalArgumentException {
+            if (key == null) {
+                throw new IllegalArgumentException("null argument");
+            }
+            Storeable changedValue = changes.get(key);
+            if (changedValue != null) {
+                return changedValue == TOMBSTONE ? null : changedValue;
+            }
+            return getStable(key);
+        }
+
+        @Override
+        public Storeable put(String key, Storeable value) throws IllegalArgumentException {
+            if (key == null || value == null) {
+                throw new IllegalArgumentException("null argument");
+            }
+            schema.check(value);
+            Storeable stableValue = getStable(key);
+            Storeable oldValue = changes.put(key, value);
+            if (oldValue == null) {
+                oldValue = stableValue;
+            } else if (oldValue == TOMBSTONE) {
+                oldValue = null;
+            }
+            if (oldValue == null) {
+                ++sizeDifference;
+            }
+            return oldValue;
+        }
+
+        @Override
+        public Storeable remove(String key) throws IllegalArgumentException {
+            if (key == null) {
+                throw new IllegalArgumentException("null argument");
+            }
+            Storeable stableValue = getStable(key);
+            Storeable oldValue = changes.containsKey(key) ? changes.get(key) : stableValue;
+            if (oldValue == null || oldValue == TOMBSTONE) {
+                return null;
+            }
+            if (stableValue == null) {
+                changes.remove(key);
+            } else {
+                changes.put(key, TOMBSTONE);
+            }
+            --sizeDifference;
+            return oldValue;
+        }
+
+        @Override
+        public int size() {
+            return getSnapshot().size + sizeDifference;
+        }
+
+        @Override
+        public List<String> list() {
+            Version currentSnapshot = getSnapshot();
+            ArrayList<String> keyList = new ArrayList<>(currentSnapshot.size + sizeDifference);
+            for (Bucket oneBucket : currentSnapshot.buckets) {
+                for (String oneKey : oneBucket.getData().keySet()) {
+                    if (changes.get(oneKey) != TOMBSTONE) {
+                        keyList.add(oneKey);
+                    }
+                }
+            }
+            for (Map.Entry<String, Storeable> oneChange : changes.entrySet()) {
+                if (oneChange.getValue() != TOMBSTONE && getStable(oneChange.getKey()) == null) {
+                    keyList.add(oneChange.getKey());
+                }
+            }
+            return keyList;
+        }
+
+        @Override
+        public int getNumberOfUncommittedChanges() {
+            return changes.size();
+        }
+
+        @Override
+        public int commit() throws IOException {
+            try {
+                return commitTransaction(this);
+            } finally {
+                clear();
+            }
+        }
 
-        Difference() {
-            addedData = new HashMap<>();
-            changedData = new HashMap<>();
-            removedData = new HashSet<>();
+        @Override
+        public int rollback() {
+            int result = changes.size();
+            clear();
+            return result;
         }
     }
 
-    private int getNumberOfDirectory(int hash) {
-        int result = hash % MAX_NUMBER_OF_DIRS;
-        if (result < 0) {
-            result += MAX_NUMBER_OF_DIRS;
+    /**
+     * Committed content of one bucket file. Never changes after it is loaded,
+     * commit creates a new Bucket for every bucket it touches.
+     */
+    private class Bucket {
+        private final BucketLayout layout;
+        private final int number;
+        private volatile Map<String, Storeable> data;
+        private BloomFilter filter;
+
+        Bucket(BucketLayout newLayout, int newNumber, Map<String, Storeable> newData) {
+            layout = newLayout;
+            number = newNumber;
+            data = newData;
+        }
+
+        /**
+         * A bucket which is not loaded yet is read only if its filter may have the key.
+         */
+        Storeable get(String key) {
+            if (data == null && filter != null && !filter.mightContain(key)) {
+                return null;
+            }
+            return getData().get(key);
+        }
+
+        Map<String, Storeable> getData() {
+            Map<String, Storeable> result = data;
+            if (result != null) {
+                return result;
+            }
+            synchronized (this) {
+                if (data == null) {
+                    try {
+                        data = Collections.unmodifiableMap(loadBucket(layout, number));
+                    } catch (BadFileException e) {
+                        throw new IllegalStateException("can't load " + getPathOfBucket(number), e);
+                    }
+                }
+                return data;
+            }
         }
-        return result;
     }
 
-    private int getNumberOfFile(int hash) {
-        int result = hash / MAX_NUMBER_OF_DIRS % MAX_NUMBER_OF_FILES;
-        if (result < 0) {
-            result += MAX_NUMBER_OF_FILES;
+    /**
+     * Immutable committed state of the table. Versions share buckets that were not changed,
+     * the layout of buckets changes only when a bucket is split or merged.
+     */
+    private static class Version {
+        private final long number;
+        private final Bucket[] buckets;
+        private final int size;
+        private final BucketLayout layout;
+
+        Version(long newNumber, Bucket[] newBuckets, int newSize, BucketLayout newLayout) {
+            number = newNumber;
+            buckets = newBuckets;
+            size = newSize;
+            layout = newLayout;
         }
-        return result;
+
+        Storeable get(String key) {
+            return buckets[layout.getNumberOfBucket(key)].get(key);
+        }
+    }
+
+    private Path getPathOfBucket(int numberOfBucket) {
+        return Paths.get(directoryOfTable, BUCKETS_DIRECTORY, numberOfBucket + SUFFIX_OF_FILE);
+    }
+
+    private Path getPathOfFilter(int numberOfBucket) {
+        return Paths.get(directoryOfTable, BUCKETS_DIRECTORY, numberOfBucket + SUFFIX_OF_FILTER);
+    }
+
+    private Path getPathOfIndex(int numberOfBucket, int column) {
+        return Paths.get(directoryOfTable, BUCKETS_DIRECTORY, numberOfBucket + "." + column + SUFFIX_OF_INDEX);
     }
 
-    private void clearAll() {
-        Difference innerDiff = diff.get();
-        innerDiff.removedData.clear();
-        innerDiff.addedData.clear();
-        innerDiff.changedData.clear();
+    /**
+     * Create empty Filemap
+     *
+     * @param newDirectory - directory of this file_map
+     * @param newSchema - types of columns (signature of table)
+     */
+    public FileMap(String newDirectory, TableSchema newSchema, TableProvider newParent) throws IOException {
+        this(newDirectory, newSchema, newParent, TableOptions.legacy(), false, null);
     }
 
     /**
      * Create empty Filemap
      *
      * @param newDirectory - directory of this file_map
-     * @param newTypeList - list of types (signature of table)
+     * @param newSchema - types of columns (signature of table)
+     * @param newOptions - settings from signature.tsv
+     * @param newLazyLoading - read bucket files only when their keys are used
+     * @param loader - loads bucket files in parallel, null for sequential loading
      */
-    public FileMap(String newDirectory, List<Class<?>> newTypeList, TableProvider newParent) throws IOException {
+    public FileMap(String newDirectory, TableSchema newSchema, TableProvider newParent,
+                   TableOptions newOptions, boolean newLazyLoading, ParallelLoader loader) throws IOException {
         directoryOfTable = newDirectory;
-        stableData = new HashMap<>();
-        typeList = newTypeList;
-        numberOfColumns = typeList.size();
+        lazyLoading = newLazyLoading;
+        schema = newSchema;
+        numberOfColumns = schema.getNumberOfColumns();
         parent = newParent;
-        lockForCommit = new ReentrantLock();
-        diff = ThreadLocal.withInitial(()->new Difference());
-        if (!init()) {
+        options = newOptions;
+        codec = RowCodecs.forName(options.getCodecName());
+        stableData = new AtomicReference<>();
+        lockForBucket = new Lock[NUMBER_OF_LOCKS];
+        for (int i = 0; i < NUMBER_OF_LOCKS; ++i) {
+            lockForBucket[i] = new ReentrantLock();
+        }
+        lockForLayout = new ReentrantReadWriteLock();
+        lockForSize = new ReentrantLock();
+        savedSizes = new int[0];
+        savedChecksums = new long[0];
+        bucketsForCheckpoint = ConcurrentHashMap.newKeySet();
+        bucketsForSync = ConcurrentHashMap.newKeySet();
+        lockForCheckpoint = new ReentrantReadWriteLock();
+        lockForCheckpointRun = new ReentrantLock();
+        indexes = new ConcurrentHashMap<>();
+        diff = ThreadLocal.withInitial(()->new OverlayTransaction());
+        if (!init(loader)) {
             throw new IOException("error while initialization");
         }
     }
@@ -91,6 +386,19 @@ public class FileMap implements Table {
         return parent;
     }
 
+    public TableOptions getOptions() {
+        return options;
+    }
+
+    /**
+     * Starts a transaction which is not bound to the calling thread.
+     * Methods of Table work with a separate transaction of every thread.
+     */
+    @Override
+    public Transaction begin() {
+        return new OverlayTransaction();
+    }
+
     @Override
     public String getName() {
         return Paths.get(directoryOfTable).getFileName().toString();
@@ -98,80 +406,27 @@ public class FileMap implements Table {
 
     @Override
     public Storeable get(String key) throws IllegalArgumentException {
-        if (key == null) {
-            throw new IllegalArgumentException("null argument");
-        }
-        Difference innerDiff = diff.get();
-        if (innerDiff.removedData.contains(key)) {
-            return null;
-        }
-        if (innerDiff.changedData.containsKey(key)) {
-            return innerDiff.changedData.get(key);
-        }
-        if (innerDiff.addedData.containsKey(key)) {
-            return innerDiff.addedData.get(key);
-        }
-        return stableData.get(key);
+        return diff.get().get(key);
     }
 
     @Override
     public Storeable remove(String key) throws IllegalArgumentException {
-        if (key == null) {
-            throw new IllegalArgumentException("null argument");
-        }
-        Difference innerDiff = diff.get();
-        if (innerDiff.removedData.contains(key)) {
-            return null;
-        }
-        if (innerDiff.addedData.containsKey(key)) {
-            return innerDiff.addedData.remove(key);
-        }
-        if (innerDiff.changedData.containsKey(key)) {
-            innerDiff.removedData.add(key);
-            return innerDiff.changedData.remove(key);
-        }
-        if (stableData.containsKey(key)) {
-            innerDiff.removedData.add(key);
-        }
-        return stableData.get(key);
+        return diff.get().remove(key);
     }
 
     @Override
     public Storeable put(String key, Storeable value) throws IllegalArgumentException {
-        if (key == null || value == null) {
-            throw new IllegalArgumentException("null argument");
-        }
-        TypesUtils.checkNewStorableValue(typeList, value);
-        boolean wasDeleted = false;
-        Difference innerDiff = diff.get();
-        if (innerDiff.removedData.contains(key)) {
-            innerDiff.removedData.remove(key);
-            wasDeleted = true;
-        }
-        if (innerDiff.changedData.containsKey(key)) {
-            return innerDiff.changedData.put(key, value);
-        }
-        if (innerDiff.addedData.containsKey(key)) {
-            return innerDiff.addedData.put(key, value);
-        }
-
-        if (stableData.containsKey(key)) {
-            innerDiff.changedData.put(key, value);
-        } else {
-            innerDiff.addedData.put(key, value);
-        }
-
-        if (wasDeleted) {
-            return null;
-        } else {
-            return stableData.get(key);
-        }
+        return diff.get().put(key, value);
     }
 
     @Override
     public int size() {
-        Difference innerDiff = diff.get();
-        return stableData.size() + innerDiff.addedData.size() - innerDiff.removedData.size();
+        return diff.get().size();
+    }
+
+    @Override
+    public TableSchema getSchema() {
+        return schema;
     }
 
     @Override
@@ -181,263 +436,1873 @@ public class FileMap implements Table {
 
     @Override
     public Class<?> getColumnType(int columnIndex) throws IndexOutOfBoundsException {
-        return typeList.get(columnIndex);
+        return schema.getType(columnIndex);
     }
 
     @Override
     public int rollback() {
-        Difference innerDiff = diff.get();
-        int result = innerDiff.changedData.size() + innerDiff.removedData.size() + innerDiff.addedData.size();
-        clearAll();
-        return result;
+        try {
+            return diff.get().rollback();
+        } finally {
+            diff.remove();
+        }
     }
 
     @Override
     public int commit() throws IOException {
         try {
-            lockForCommit.lock();
+            return diff.get().commit();
+        } finally {
+            diff.remove();
+        }
+    }
 
-            Difference innerDiff = diff.get();
-            HashMap<String, Storeable> tmpAddedData = new HashMap<>(innerDiff.addedData);
-            HashMap<String, Storeable> tmpBufferAdded = new HashMap<>(innerDiff.addedData);
-            HashMap<String, Storeable> tmpChangedData = new HashMap<>(innerDiff.changedData);
-            HashMap<String, Storeable> tmpBufferChanged = new HashMap<>(innerDiff.changedData);
+    /**
+     * Applies changes of the transaction to the last committed version and
+     * publishes the result as a new version. Readers are never blocked. Only the
+     * buckets of keys read or changed by the transaction are locked, so commits
+     * to different buckets are applied and written in parallel.
+     *
+     * @throws TransactionConflictException if another transaction has committed
+     * a key after this one has seen it
+     */
+    private int commitTransaction(OverlayTransaction transaction) throws IOException {
+        int result;
+        try {
+            lockForLayout.readLock().lock();
+            result = applyTransaction(transaction);
+        } finally {
+            lockForLayout.readLock().unlock();
+        }
+        resizeIfNeeded();
+        return result;
+    }
 
-            tmpAddedData.keySet().removeAll(stableData.keySet());
-            tmpBufferChanged.keySet().removeAll(stableData.keySet());
-            tmpAddedData.putAll(tmpBufferChanged);
+    private int applyTransaction(OverlayTransaction transaction) throws IOException {
+        BucketLayout layout = stableData.get().layout;
+        SortedSet<Integer> touchedLocks = new TreeSet<>();
+        for (String oneKey : transaction.readData.keySet()) {
+            touchedLocks.add(layout.getNumberOfBucket(oneKey) % NUMBER_OF_LOCKS);
+        }
+        try {
+            lockBuckets(touchedLocks);
 
-            tmpChangedData.keySet().retainAll(stableData.keySet());
-            tmpBufferAdded.keySet().retainAll(stableData.keySet());
-            tmpChangedData.putAll(tmpBufferAdded);
+            Version base = stableData.get();
+            for (Map.Entry<String, Storeable> oneRead : transaction.readData.entrySet()) {
+                if (base.get(oneRead.getKey()) != oneRead.getValue()) {
+                    throw new TransactionConflictException(oneRead.getKey());
+                }
+            }
 
-            innerDiff.removedData.retainAll(stableData.keySet());
-            int result = tmpChangedData.size()
-                    + innerDiff.removedData.size() + tmpAddedData.size();
-            stableData.keySet().removeAll(innerDiff.removedData);
-            stableData.putAll(tmpChangedData);
-            stableData.putAll(tmpAddedData);
+            Map<Integer, Map<String, Storeable>> dirtyBuckets = new HashMap<>();
+            for (Map.Entry<String, Storeable> oneChange : transaction.changes.entrySet()) {
+                Map<String, Storeable> bucket = getChangedBucket(base, dirtyBuckets,
+                        layout.getNumberOfBucket(oneChange.getKey()));
+                if (oneChange.getValue() == TOMBSTONE) {
+                    bucket.remove(oneChange.getKey());
+                } else {
+                    bucket.put(oneChange.getKey(), oneChange.getValue());
+                }
+            }
+            int result = transaction.changes.size();
+            if (dirtyBuckets.isEmpty()) {
+                return result;
+            }
 
-            boolean allRight = true;
-            if (tmpChangedData.size() + innerDiff.removedData.size() > 0) {
-                Set<String> reloadKeys = innerDiff.removedData;
-                reloadKeys.addAll(tmpChangedData.keySet());
-                for (String oneKey : reloadKeys) {
-                    if (!save(oneKey, false)) {
-                        allRight = false;
+            Map<Integer, Bucket> newBuckets = new HashMap<>();
+            for (Map.Entry<Integer, Map<String, Storeable>> oneBucket : dirtyBuckets.entrySet()) {
+                newBuckets.put(oneBucket.getKey(), new Bucket(layout, oneBucket.getKey(),
+                        Collections.unmodifiableMap(oneBucket.getValue())));
+            }
+            if (log != null) {
+                byte[] record = ChangeRecords.encode(this, codec, transaction.changes, TOMBSTONE);
+                try {
+                    lockForCheckpoint.readLock().lock();
+                    long end = log.append(record);
+                    if (isDurability(TableOptions.DURABILITY_ON_COMMIT)) {
+                        log.sync(end);
                     }
+                    publish(newBuckets, transaction.sizeDifference);
+                    updateOrderedKeys(transaction.changes);
+                    updateIndexes(transaction);
+                    bucketsForCheckpoint.addAll(dirtyBuckets.keySet());
+                } finally {
+                    lockForCheckpoint.readLock().unlock();
                 }
+                return result;
             }
-            for (String oneKey : tmpAddedData.keySet()) {
-                if (!save(oneKey, true)) {
+            publish(newBuckets, transaction.sizeDifference);
+            updateOrderedKeys(transaction.changes);
+            updateIndexes(transaction);
+
+            boolean allRight = true;
+            for (int oneBucket : dirtyBuckets.keySet()) {
+                if (!saveBucket(oneBucket)) {
                     allRight = false;
                 }
             }
+            if (!saveSize(isDurability(TableOptions.DURABILITY_ON_COMMIT))) {
+                allRight = false;
+            }
             if (allRight) {
                 return result;
             } else {
                 throw new IOException();
             }
         } finally {
-            lockForCommit.unlock();
-            clearAll();
+            unlockBuckets(touchedLocks);
         }
     }
 
-    public List<String> list() {
-        Difference innerDiff = diff.get();
-        ArrayList<String> keyList = new ArrayList<>(stableData.keySet());
-        keyList.removeAll(innerDiff.removedData);
-        keyList.addAll(innerDiff.addedData.keySet());
-        return keyList;
+    /**
+     * Replaces buckets in the last committed version by one atomic step. Other commits
+     * may publish their own buckets at the same time, then the new buckets are put
+     * into their version.
+     */
+    private void publish(Map<Integer, Bucket> newBuckets, int sizeDifference) {
+        while (true) {
+            Version base = stableData.get();
+            Bucket[] buckets = base.buckets.clone();
+            for (Map.Entry<Integer, Bucket> oneBucket : newBuckets.entrySet()) {
+                buckets[oneBucket.getKey()] = oneBucket.getValue();
+            }
+            if (stableData.compareAndSet(base, new Version(base.number + 1, buckets, base.size + sizeDifference,
+                    base.layout))) {
+                return;
+            }
+        }
     }
 
-    @Override
-    public int getNumberOfUncommittedChanges() {
-        Difference innerDiff = diff.get();
-        return innerDiff.addedData.size() + innerDiff.changedData.size() + innerDiff.removedData.size();
+    private boolean needsSplit(Version version) {
+        return version.size > (long) version.layout.getNumberOfBuckets() * options.getSplitThreshold();
     }
 
-    public boolean init() throws BadFileException {
-        String[] listOfDirectories = new File(directoryOfTable).list();
-        if (listOfDirectories == null) {
-            return true;
+    private boolean needsMerge(Version version) {
+        int numberOfBuckets = version.layout.getNumberOfBuckets();
+        return numberOfBuckets > version.layout.getInitialNumberOfBuckets()
+                && version.size < (long) (numberOfBuckets - 1) * options.getSplitThreshold() / 4;
+    }
+
+    /**
+     * Splits buckets while there are more than getSplitThreshold() rows per bucket
+     * and merges them while there are less than a quarter of it. Commits wait,
+     * readers keep their versions.
+     */
+    private void resizeIfNeeded() throws IOException {
+        Version current = stableData.get();
+        if (!needsSplit(current) && !needsMerge(current)) {
+            return;
         }
-        for (String directory: listOfDirectories) {
-            String currentDirectory = directoryOfTable + File.separator
-                    + directory;
-            if (!Files.isDirectory(Paths.get(currentDirectory))) {
-                continue;
-            }
-            String[] listOfFiles = new File(currentDirectory).list();
-            for (String oneFile : listOfFiles) {
-                String currentFile = currentDirectory + File.separator
-                        + oneFile;
-                int numberOfDirectory = directory.charAt(0) - '0';
-                if (directory.charAt(1) != '.') {
-                    numberOfDirectory = 10 * numberOfDirectory + directory.charAt(1) - '0';
-                }
-                int numberOfFile = oneFile.charAt(0) - '0';
-                if (oneFile.charAt(1) != '.') {
-                    numberOfFile = 10 * numberOfFile + oneFile.charAt(1) - '0';
-                }
-                try (FileInputStream inStream = new FileInputStream(currentFile)) {
-                    FileChannel inputChannel;
-                    inputChannel = inStream.getChannel();
-                    ByteBuffer bufferFromDisk;
-                    try {
-                        bufferFromDisk =
-                                inputChannel.map(MapMode.READ_ONLY, 0, inputChannel.size());
-                    } catch (IOException e) {
-                        throw new BadFileException(e);
-                    }
-                    try {
-                        while (bufferFromDisk.hasRemaining()) {
-                            byte[] key;
-                            byte[] value;
-                            int keySize;
-                            int valueSize;
-                            if (bufferFromDisk.remaining() >= 4) {
-                                keySize = bufferFromDisk.getInt();
-                                key = new byte[keySize];
-                            } else {
-                                throw new BadFileException();
-                            }
-
-                            if (keySize < 0) {
-                                throw new BadFileException();
-                            }
-
-                            if (bufferFromDisk.remaining() >= keySize) {
-                                bufferFromDisk.get(key, 0, key.length);
-                            } else {
-                                throw new BadFileException();
-                            }
-
-                            if (bufferFromDisk.remaining() >= 4) {
-                                valueSize = bufferFromDisk.getInt();
-                                if (valueSize < 0) {
-                                    throw new BadFileException();
-                                }
-                                value = new byte[valueSize];
-                            } else {
-                                throw new BadFileException();
-                            }
-                            if (bufferFromDisk.remaining() >= valueSize) {
-                                bufferFromDisk.get(value, 0, value.length);
-                            } else {
-                                throw new BadFileException();
-                            }
-
-                            String keyString = new String(key, FILE_ENCODING);
-                            if (getNumberOfDirectory(keyString.hashCode()) != numberOfDirectory
-                                    || getNumberOfFile(keyString.hashCode()) != numberOfFile) {
-                                throw new BadFileException();
-                            }
-
-                            try {
-                                stableData.put(new String(key, FILE_ENCODING),
-                                        Serializator.deserialize(this, new String(value, "UTF-8")));
-                            } catch (UnsupportedEncodingException e) {
-                                throw new BadFileException(e);
-                            } catch (ParseException e) {
-                                throw new BadFileException(e);
-                            }
-                        }
-                    } catch (NullPointerException e) {
-                        throw new BadFileException(e);
-                    }
-                } catch (FileNotFoundException e) {
-                    throw new BadFileException(e);
-                } catch (BadFileException e) {
-                    throw new BadFileException(e);
-                } catch (IOException e) {
-                    throw new BadFileException(e);
+        try {
+            lockForLayout.writeLock().lock();
+            boolean force = !isDurability(TableOptions.DURABILITY_NONE);
+            current = stableData.get();
+            while (needsSplit(current) || needsMerge(current)) {
+                if (needsSplit(current)) {
+                    splitBucket(current, force);
+                } else {
+                    mergeBucket(current, force);
                 }
+                current = stableData.get();
+            }
+        } finally {
+            lockForLayout.writeLock().unlock();
+        }
+    }
+
+    /**
+     * The new bucket is written before the manifest and the divided one after it. Until
+     * the divided bucket is written the manifest marks the split as in progress, copies
+     * of moved keys in its file are skipped by loadBucket.
+     */
+    private void splitBucket(Version current, boolean force) throws IOException {
+        BucketLayout newLayout = current.layout.split();
+        int source = current.layout.getBucketToSplit();
+        int target = current.layout.getNumberOfBuckets();
+        Map<String, Storeable> stayed = new HashMap<>();
+        Map<String, Storeable> moved = new HashMap<>();
+        for (Map.Entry<String, Storeable> oneEntry : current.buckets[source].getData().entrySet()) {
+            if (newLayout.getNumberOfBucket(oneEntry.getKey()) == source) {
+                stayed.put(oneEntry.getKey(), oneEntry.getValue());
+            } else {
+                moved.put(oneEntry.getKey(), oneEntry.getValue());
             }
         }
-        return true;
+        Bucket[] buckets = Arrays.copyOf(current.buckets, target + 1);
+        buckets[source] = new Bucket(newLayout, source, Collections.unmodifiableMap(stayed));
+        buckets[target] = new Bucket(newLayout, target, Collections.unmodifiableMap(moved));
+        resizeSavedSizes(target + 1);
+        stableData.set(new Version(current.number + 1, buckets, current.size, newLayout));
+
+        if (!saveBucket(target, force)) {
+            throw new IOException("can't split bucket " + source);
+        }
+        saveLayout(newLayout.moving(), force);
+        if (!saveBucket(source, force) || !saveSize(force)) {
+            throw new IOException("can't split bucket " + source);
+        }
+        saveLayout(newLayout, force);
     }
 
     /**
-     * Returns True if the record on the disc was successful and otherwise False.
+     * The merged bucket is written before the manifest, the file of the last bucket
+     * is deleted after it. While the merged bucket is written the manifest marks the
+     * merge as in progress, keys of the last bucket in its file are skipped by loadBucket.
      */
-    public boolean save(String key, boolean appendFile) throws BadFileException {
-        HashSet<String> keySet = new HashSet<>();
-        ByteBuffer bufferForSize = ByteBuffer.allocate(4);
+    private void mergeBucket(Version current, boolean force) throws IOException {
+        BucketLayout newLayout = current.layout.merge();
+        int source = current.layout.getNumberOfBuckets() - 1;
+        int target = newLayout.getBucketToSplit();
+        Map<String, Storeable> merged = new HashMap<>(current.buckets[target].getData());
+        merged.putAll(current.buckets[source].getData());
+        Bucket[] buckets = Arrays.copyOf(current.buckets, source);
+        buckets[target] = new Bucket(newLayout, target, Collections.unmodifiableMap(merged));
+        stableData.set(new Version(current.number + 1, buckets, current.size, newLayout));
 
-        int numberOfDirectory = getNumberOfDirectory(key.hashCode());
-        int numberOfFile = getNumberOfFile(key.hashCode());
-        if (appendFile) {
-            keySet.clear();
-            keySet.add(key);
-        } else {
-            Set<String> keySetFromDB = stableData.keySet();
-            for (String oneKey : keySetFromDB) {
-                if (numberOfDirectory == getNumberOfDirectory(oneKey.hashCode())
-                        & numberOfFile == getNumberOfFile(oneKey.hashCode())) {
-                    keySet.add(oneKey);
+        saveLayout(current.layout.moving(), force);
+        if (!saveBucket(target, force)) {
+            throw new IOException("can't merge bucket " + source);
+        }
+        saveLayout(newLayout, force);
+        Files.deleteIfExists(getPathOfBucket(source));
+        Files.deleteIfExists(getPathOfFilter(source));
+        for (int oneColumn : indexes.keySet()) {
+            Files.deleteIfExists(getPathOfIndex(source, oneColumn));
+        }
+        bucketsForCheckpoint.remove(source);
+        bucketsForSync.remove(source);
+        resizeSavedSizes(source);
+        if (!saveSize(force)) {
+            throw new IOException("can't merge bucket " + source);
+        }
+    }
+
+    /**
+     * Applies records of the log left by the last run to the loaded version.
+     * Records may repeat changes which are already in bucket files, every change
+     * sets or removes the whole value, so applying it twice gives the same result.
+     */
+    private void replayLog() throws BadFileException {
+        List<byte[]> records = new ArrayList<>();
+        log.replay(records::add);
+        if (records.isEmpty()) {
+            return;
+        }
+        Version base = stableData.get();
+        Map<Integer, Map<String, Storeable>> dirtyBuckets = new HashMap<>();
+        int size = base.size;
+        try {
+            for (byte[] oneRecord : records) {
+                for (SortedRun.Entry oneChange : ChangeRecords.decode(oneRecord)) {
+                    String key = oneChange.getKey();
+                    int numberOfBucket = base.layout.getNumberOfBucket(key);
+                    Map<String, Storeable> bucket = getChangedBucket(base, dirtyBuckets, numberOfBucket);
+                    boolean existed = bucket.containsKey(key);
+                    if (oneChange.getValue() == null) {
+                        bucket.remove(key);
+                        if (existed) {
+                            --size;
+                        }
+                    } else {
+                        bucket.put(key, codec.decode(this, oneChange.getValue()));
+                        if (!existed) {
+                            ++size;
+                        }
+                    }
                 }
             }
+        } catch (ParseException e) {
+            throw new BadFileException(e);
+        }
+        Bucket[] buckets = base.buckets.clone();
+        for (Map.Entry<Integer, Map<String, Storeable>> oneBucket : dirtyBuckets.entrySet()) {
+            buckets[oneBucket.getKey()] = new Bucket(base.layout, oneBucket.getKey(),
+                    Collections.unmodifiableMap(oneBucket.getValue()));
         }
+        stableData.set(new Version(base.number + 1, buckets, size, base.layout));
+        bucketsForCheckpoint.addAll(dirtyBuckets.keySet());
+    }
 
-        Path directoryForsave;
-        Path fileForsave;
-        directoryForsave = Paths.get(directoryOfTable, numberOfDirectory + SUFFIX_OF_DIRECTORY);
-        if (!Files.exists(directoryForsave)) {
+    /**
+     * Writes buckets changed by logged commits to their files and drops the part
+     * of the log they came from. Commits wait only while the log switches to a new
+     * segment, not while files are written.
+     * Returns True if all files were written, otherwise the log is kept.
+     */
+    public boolean checkpoint() throws IOException {
+        try {
+            lockForLayout.readLock().lock();
             try {
-                Files.createDirectory(directoryForsave);
-            } catch (IOException e) {
-                System.err.println("error while creating directory for save");
-                return false;
+                lockForCheckpointRun.lock();
+                if (log == null) {
+                    return true;
+                }
+                List<Integer> bucketsForSave;
+                try {
+                    lockForCheckpoint.writeLock().lock();
+                    bucketsForSave = new ArrayList<>(bucketsForCheckpoint);
+                    bucketsForCheckpoint.clear();
+                    if (!bucketsForSave.isEmpty()) {
+                        log.rotate();
+                    }
+                } finally {
+                    lockForCheckpoint.writeLock().unlock();
+                }
+                boolean force = !isDurability(TableOptions.DURABILITY_NONE);
+                boolean allRight = true;
+                for (int oneBucket : bucketsForSave) {
+                    boolean saved;
+                    try {
+                        saved = saveBucket(oneBucket, force);
+                    } catch (BadFileException e) {
+                        saved = false;
+                    }
+                    if (!saved) {
+                        allRight = false;
+                        bucketsForCheckpoint.add(oneBucket);
+                    }
+                }
+                if (!bucketsForSave.isEmpty() && !saveSize(force)) {
+                    allRight = false;
+                }
+                if (allRight) {
+                    log.deleteOldSegments();
+                }
+                return allRight;
+            } finally {
+                lockForCheckpointRun.unlock();
             }
+        } finally {
+            lockForLayout.readLock().unlock();
+        }
+    }
+
+    /**
+     * Forces to disk files written since the last call: the log or, without it,
+     * bucket files and size.tsv. Used by the periodic durability mode.
+     */
+    public void sync() throws IOException {
+        WriteAheadLog currentLog = log;
+        if (currentLog != null) {
+            currentLog.sync();
+            return;
         }
+        List<Integer> bucketsForForce = new ArrayList<>(bucketsForSync);
+        bucketsForSync.removeAll(bucketsForForce);
+        Set<Path> directories = new HashSet<>();
+        for (int oneBucket : bucketsForForce) {
+            Path file = getPathOfBucket(oneBucket);
+            forceFile(file);
+            directories.add(file.getParent());
+        }
+        forceFile(Paths.get(directoryOfTable, SIZE_FILE));
+        directories.add(Paths.get(directoryOfTable));
+        for (Path oneDirectory : directories) {
+            forceDirectory(oneDirectory);
+        }
+    }
 
-        fileForsave = Paths.get(directoryForsave.toString(), numberOfFile + SUFFIX_OF_FILE);
-        if (!Files.exists(fileForsave)) {
-            try {
-                Files.createFile(fileForsave);
-            } catch (IOException e) {
-                System.err.println("error while creating file for save");
-                return false;
+    /**
+     * Stops background work and puts everything committed to bucket files.
+     */
+    public void close() throws IOException {
+        if (syncTask != null) {
+            syncTask.cancel(false);
+            syncTask = null;
+            sync();
+        }
+        if (checkpointTask != null) {
+            checkpointTask.cancel(false);
+            checkpointTask = null;
+        }
+        try {
+            lockForLayout.readLock().lock();
+            lockForCheckpointRun.lock();
+            if (log == null) {
+                return;
+            }
+            if (!checkpoint()) {
+                throw new IOException("error while checkpoint of " + getName());
             }
+            log.close();
+            log = null;
+        } finally {
+            lockForCheckpointRun.unlock();
+            lockForLayout.readLock().unlock();
         }
+    }
 
-        try (FileOutputStream outputStream
-                     = new FileOutputStream(fileForsave.toString(), appendFile)) {
-            for (String oneKey : keySet) {
-                try {
-                    byte[] keyByte = oneKey.getBytes("UTF-8");
-                    byte[] valueByte = Serializator.serialize(this, stableData.get(oneKey)).getBytes("UTF-8");
-                    outputStream.write(bufferForSize.putInt(0, keyByte.length).array());
-                    outputStream.write(keyByte);
-                    outputStream.write(bufferForSize.putInt(0, valueByte.length).array());
-                    outputStream.write(valueByte);
-                } catch (UnsupportedEncodingException e) {
-                    System.err.println("unsupported encoding");
-                    return false;
-                } catch (IOException e) {
-                    System.err.println("io exception");
-                    return false;
-                }
-            }
-        } catch (FileNotFoundException e) {
-            System.err.println("file not found");
-            return false;
-        } catch (IOException e) {
-            System.err.println("io exception");
-            return false;
+    @Override
+    public void discard() throws IOException {
+        if (syncTask != null) {
+            syncTask.cancel(false);
+            syncTask = null;
         }
-
-        if (!appendFile) {
-            deleteEmptyFiles(directoryForsave, fileForsave);
+        if (checkpointTask != null) {
+            checkpointTask.cancel(false);
+            checkpointTask = null;
+        }
+        try {
+            lockForCheckpointRun.lock();
+            if (log != null) {
+                log.close();
+                log = null;
+            }
+        } finally {
+            lockForCheckpointRun.unlock();
+        }
+    }
+
+    private boolean isDurability(String durability) {
+        return options.getDurability().equals(durability);
+    }
+
+    /**
+     * Locks are always taken in ascending order of buckets.
+     */
+    private void lockBuckets(SortedSet<Integer> buckets) {
+        for (int oneBucket : buckets) {
+            lockForBucket[oneBucket].lock();
+        }
+    }
+
+    private void unlockBuckets(SortedSet<Integer> buckets) {
+        for (int oneBucket : buckets) {
+            lockForBucket[oneBucket].unlock();
+        }
+    }
+
+    private static Map<String, Storeable> getChangedBucket(Version base,
+                                                          Map<Integer, Map<String, Storeable>> dirtyBuckets,
+                                                          int numberOfBucket) {
+        Map<String, Storeable> result = dirtyBuckets.get(numberOfBucket);
+        if (result == null) {
+            result = new HashMap<>(base.buckets[numberOfBucket].getData());
+            dirtyBuckets.put(numberOfBucket, result);
+        }
+        return result;
+    }
+
+    public List<String> list() {
+        return diff.get().list();
+    }
+
+    @Override
+    public Iterator<String> keys() {
+        OverlayTransaction transaction = diff.get();
+        return KeyRanges.overlay(transaction.committedKeys(), transaction.changes, TOMBSTONE);
+    }
+
+    /**
+     * Committed keys are taken from the sorted keys, so a page or a range costs
+     * only its own keys after the first scan.
+     */
+    @Override
+    public Iterator<String> scan(String fromKey, String toKey, int limit) throws IllegalArgumentException {
+        KeyRanges.checkScan(limit);
+        OverlayTransaction transaction = diff.get();
+        Iterator<String> committed = KeyRanges.subSet(getOrderedKeys(), fromKey, toKey).iterator();
+        return KeyRanges.merge(committed, transaction.changes, TOMBSTONE, fromKey, toKey, limit);
+    }
+
+    /**
+     * Sorted committed keys. Built by init with the ordered index, otherwise by
+     * the first scan, then kept by commits.
+     */
+    private NavigableSet<String> getOrderedKeys() {
+        NavigableSet<String> result = orderedKeys;
+        if (result != null) {
+            return result;
+        }
+        try {
+            lockForLayout.writeLock().lock();
+            if (orderedKeys == null) {
+                NavigableSet<String> newOrderedKeys = new ConcurrentSkipListSet<>();
+                for (Bucket oneBucket : stableData.get().buckets) {
+                    newOrderedKeys.addAll(oneBucket.getData().keySet());
+                }
+                orderedKeys = newOrderedKeys;
+            }
+            return orderedKeys;
+        } finally {
+            lockForLayout.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Called after publish under the locks of the changed keys.
+     */
+    private void updateOrderedKeys(Map<String, Storeable> changes) {
+        NavigableSet<String> keys = orderedKeys;
+        if (keys == null) {
+            return;
+        }
+        for (Map.Entry<String, Storeable> oneChange : changes.entrySet()) {
+            if (oneChange.getValue() == TOMBSTONE) {
+                keys.remove(oneChange.getKey());
+            } else {
+                keys.add(oneChange.getKey());
+            }
+        }
+    }
+
+    /**
+     * Moves changed keys between values of the indexed columns. Called after publish
+     * under the locks of the changed keys, old rows are the ones checked in readData.
+     */
+    private void updateIndexes(OverlayTransaction transaction) {
+        if (indexes.isEmpty()) {
+            return;
+        }
+        for (Map.Entry<String, Storeable> oneChange : transaction.changes.entrySet()) {
+            Storeable oldRow = transaction.readData.get(oneChange.getKey());
+            Storeable newRow = oneChange.getValue() == TOMBSTONE ? null : oneChange.getValue();
+            for (ColumnIndex oneIndex : indexes.values()) {
+                oneIndex.update(oneChange.getKey(), valueOf(oldRow, oneIndex.getColumn()),
+                        valueOf(newRow, oneIndex.getColumn()));
+            }
+        }
+    }
+
+    private static Object valueOf(Storeable row, int column) {
+        return row == null || column < 0 ? null : row.getColumnAt(column);
+    }
+
+    /**
+     * Creates a hash or ordered index of the column from all committed rows.
+     * Returns False if the column already has an index.
+     */
+    public boolean createIndex(int column, String kind) throws IOException, IllegalArgumentException {
+        if (column < 0 || column >= numberOfColumns) {
+            throw new IllegalArgumentException("wrong column (" + column + ")");
+        }
+        ColumnIndex newIndex = new ColumnIndex(column, kind);
+        try {
+            lockForLayout.writeLock().lock();
+            if (indexes.containsKey(column)) {
+                return false;
+            }
+            fillIndex(newIndex);
+            indexes.put(column, newIndex);
+            Version current = stableData.get();
+            for (int i = 0; i < current.buckets.length; ++i) {
+                if (!bucketsForCheckpoint.contains(i) && Files.exists(getPathOfBucket(i))) {
+                    saveIndexOfBucket(i, column, current.buckets[i].getData());
+                }
+            }
+            saveIndexes();
+            return true;
+        } finally {
+            lockForLayout.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns False if the column has no index.
+     */
+    public boolean dropIndex(int column) throws IOException {
+        try {
+            lockForLayout.writeLock().lock();
+            if (indexes.remove(column) == null) {
+                return false;
+            }
+            saveIndexes();
+            for (int i = 0; i < stableData.get().buckets.length; ++i) {
+                Files.deleteIfExists(getPathOfIndex(i, column));
+            }
+            return true;
+        } finally {
+            lockForLayout.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Kinds of indexes by their columns.
+     */
+    public Map<Integer, String> getIndexes() {
+        Map<Integer, String> result = new TreeMap<>();
+        for (ColumnIndex oneIndex : indexes.values()) {
+            result.put(oneIndex.getColumn(), oneIndex.getKind());
+        }
+        return result;
+    }
+
+    /**
+     * Keys of rows seen by the transaction of this thread with the value in the column.
+     *
+     * @throws IllegalStateException if the column has no index
+     */
+    public List<String> lookup(int column, Object value) throws IllegalArgumentException, IllegalStateException {
+        if (value == null) {
+            throw new IllegalArgumentException("null argument");
+        }
+        ColumnIndex index = getIndex(column, value);
+        return lookup(index, index.get(value), columnValue -> columnValue.equals(value));
+    }
+
+    /**
+     * Keys of rows with values of the column from "from" inclusive to "to" exclusive,
+     * a null bound means no bound. Keys go in ascending order of values.
+     *
+     * @throws IllegalStateException if the column has no ordered index
+     */
+    @SuppressWarnings("unchecked")
+    public List<String> lookupRange(int column, Object from, Object to)
+            throws IllegalArgumentException, IllegalStateException {
+        ColumnIndex index = getIndex(column, from);
+        getIndex(column, to);
+        return lookup(index, index.getRange(from, to), columnValue ->
+                (from == null || ((Comparable<Object>) columnValue).compareTo(from) >= 0)
+                && (to == null || ((Comparable<Object>) columnValue).compareTo(to) < 0));
+    }
+
+    private ColumnIndex getIndex(int column, Object value) throws IllegalArgumentException, IllegalStateException {
+        ColumnIndex result = indexes.get(column);
+        if (result == null) {
+            throw new IllegalStateException("column " + column + " has no index");
+        }
+        if (value != null && !schema.getType(column).isInstance(value)) {
+            throw new IllegalArgumentException("need: " + schema.getType(column) + ", but got:" + value.getClass());
+        }
+        return result;
+    }
+
+    /**
+     * Keys found by the index are checked against the snapshot of the transaction,
+     * because the index follows the last committed version. Rows changed by the
+     * transaction are checked one by one.
+     */
+    private List<String> lookup(ColumnIndex index, List<String> candidates, Predicate<Object> matches) {
+        OverlayTransaction transaction = diff.get();
+        Version snapshot = transaction.getSnapshot();
+        List<String> result = new ArrayList<>();
+        for (String oneKey : candidates) {
+            if (!transaction.changes.containsKey(oneKey)) {
+                Object value = valueOf(snapshot.get(oneKey), index.getColumn());
+                if (value != null && matches.test(value)) {
+                    result.add(oneKey);
+                }
+            }
+        }
+        for (Map.Entry<String, Storeable> oneChange : transaction.changes.entrySet()) {
+            if (oneChange.getValue() != TOMBSTONE) {
+                Object value = oneChange.getValue().getColumnAt(index.getColumn());
+                if (value != null && matches.test(value)) {
+                    result.add(oneChange.getKey());
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Rows seen by the transaction of this thread which satisfy the query. Buckets of
+     * the snapshot are scanned in parallel by groups of a few buckets per thread, rows
+     * of the next group are found when the previous one is read, so the caller may stop
+     * at any row. Rows changed by the transaction come after committed ones.
+     */
+    public Iterator<QueryRow> select(TableQuery query)
+            throws ColumnFormatException, IllegalArgumentException, IndexOutOfBoundsException {
+        if (query == null) {
+            throw new IllegalArgumentException("null argument");
+        }
+        query.check(schema);
+        OverlayTransaction transaction = diff.get();
+        Bucket[] buckets = transaction.getSnapshot().buckets;
+        Map<String, Storeable> changes = new HashMap<>(transaction.changes);
+        int groupSize = ForkJoinPool.getCommonPoolParallelism() * BUCKETS_PER_THREAD;
+        return new Iterator<QueryRow>() {
+            private int nextBucket;
+            private boolean changesSelected;
+            private Iterator<QueryRow> current = Collections.emptyIterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!current.hasNext()) {
+                    if (nextBucket < buckets.length) {
+                        int from = nextBucket;
+                        nextBucket = Math.min(buckets.length, from + groupSize);
+                        current = IntStream.range(from, nextBucket).parallel()
+                                .mapToObj(i -> selectFromBucket(buckets[i].getData(), changes, query))
+                                .flatMap(List::stream)
+                                .collect(Collectors.toList()).iterator();
+                    } else if (!changesSelected) {
+                        changesSelected = true;
+                        current = changes.entrySet().stream()
+                                .filter(oneChange -> oneChange.getValue() != TOMBSTONE)
+                                .filter(oneChange -> query.matches(oneChange.getValue()))
+                                .map(oneChange -> query.project(oneChange.getKey(), oneChange.getValue(),
+                                        numberOfColumns))
+                                .iterator();
+                    } else {
+                        return false;
+                    }
+                }
+                return true;
+            }
+
+            @Override
+            public QueryRow next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return current.next();
+            }
+        };
+    }
+
+    private List<QueryRow> selectFromBucket(Map<String, Storeable> bucket, Map<String, Storeable> changes,
+                                            TableQuery query) {
+        List<QueryRow> result = new ArrayList<>();
+        for (Map.Entry<String, Storeable> oneEntry : bucket.entrySet()) {
+            if (!changes.containsKey(oneEntry.getKey()) && query.matches(oneEntry.getValue())) {
+                result.add(query.project(oneEntry.getKey(), oneEntry.getValue(), numberOfColumns));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Aggregates of the column over rows seen by the transaction of this thread which
+     * satisfy the predicates, by values of the group column. Every bucket of the
+     * snapshot is aggregated in parallel, then the parts are merged.
+     *
+     * @param groupColumn - column to group by, -1 for one group with the null key
+     */
+    public Map<Object, ColumnAggregate> aggregate(int column, int groupColumn, List<ColumnPredicate> predicates)
+            throws ColumnFormatException, IllegalArgumentException, IndexOutOfBoundsException {
+        if (predicates == null) {
+            throw new IllegalArgumentException("null argument");
+        }
+        TableQuery filter = new TableQuery(predicates, new ArrayList<>());
+        filter.check(schema);
+        if (column < 0 || column >= numberOfColumns || groupColumn < -1 || groupColumn >= numberOfColumns) {
+            throw new IndexOutOfBoundsException("wrong column");
+        }
+        OverlayTransaction transaction = diff.get();
+        Bucket[] buckets = transaction.getSnapshot().buckets;
+        Map<String, Storeable> changes = new HashMap<>(transaction.changes);
+        Map<String, Storeable> changedRows = new HashMap<>();
+        for (Map.Entry<String, Storeable> oneChange : changes.entrySet()) {
+            if (oneChange.getValue() != TOMBSTONE) {
+                changedRows.put(oneChange.getKey(), oneChange.getValue());
+            }
+        }
+        Map<Object, ColumnAggregate> result = IntStream.range(0, buckets.length).parallel()
+                .mapToObj(i -> aggregateBucket(buckets[i].getData(), changes, filter, column, groupColumn))
+                .collect(HashMap::new, FileMap::mergeAggregates, FileMap::mergeAggregates);
+        mergeAggregates(result, aggregateBucket(changedRows, new HashMap<>(), filter, column, groupColumn));
+        return result;
+    }
+
+    private Map<Object, ColumnAggregate> aggregateBucket(Map<String, Storeable> bucket, Map<String, Storeable> changes,
+                                                         TableQuery filter, int column, int groupColumn) {
+        Map<Object, ColumnAggregate> result = new HashMap<>();
+        for (Map.Entry<String, Storeable> oneEntry : bucket.entrySet()) {
+            if (changes.containsKey(oneEntry.getKey()) || !filter.matches(oneEntry.getValue())) {
+                continue;
+            }
+            Object group = valueOf(oneEntry.getValue(), groupColumn);
+            result.computeIfAbsent(group, value -> new ColumnAggregate(schema.getType(column)))
+                    .add(oneEntry.getValue().getColumnAt(column));
+        }
+        return result;
+    }
+
+    /**
+     * Adds groups of the part to the result. Every part belongs to one step of the reduction.
+     */
+    private static void mergeAggregates(Map<Object, ColumnAggregate> result, Map<Object, ColumnAggregate> part) {
+        for (Map.Entry<Object, ColumnAggregate> oneGroup : part.entrySet()) {
+            result.merge(oneGroup.getKey(), oneGroup.getValue(), ColumnAggregate::merge);
+        }
+    }
+
+    /**
+     * indexes.tsv has a line "column kind" for every index.
+     */
+    private void readIndexes() throws BadFileException {
+        indexes.clear();
+        Path indexesFile = Paths.get(directoryOfTable, INDEXES_FILE);
+        if (!Files.exists(indexesFile)) {
+            return;
+        }
+        try {
+            for (String oneLine : Files.readAllLines(indexesFile)) {
+                if (oneLine.trim().isEmpty()) {
+                    continue;
+                }
+                String[] parts = oneLine.trim().split("\\s+");
+                if (parts.length != 2) {
+                    throw new BadFileException();
+                }
+                int column = Integer.parseInt(parts[0]);
+                if (column < 0 || column >= numberOfColumns) {
+                    throw new BadFileException();
+                }
+                indexes.put(column, new ColumnIndex(column, parts[1]));
+            }
+        } catch (IllegalArgumentException e) {
+            throw new BadFileException(e);
+        } catch (BadFileException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new BadFileException(e);
+        }
+    }
+
+    private void saveIndexes() throws IOException {
+        Path indexesFile = Paths.get(directoryOfTable, INDEXES_FILE);
+        Path tempFile = Paths.get(directoryOfTable, INDEXES_FILE + SUFFIX_OF_TEMP);
+        StringBuilder lines = new StringBuilder();
+        for (Map.Entry<Integer, String> oneIndex : getIndexes().entrySet()) {
+            lines.append(oneIndex.getKey()).append(" ").append(oneIndex.getValue()).append(System.lineSeparator());
+        }
+        Files.write(tempFile, lines.toString().getBytes(FILE_ENCODING));
+        Files.move(tempFile, indexesFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Adds all committed rows to the index. Loaded buckets are read from memory,
+     * other ones from their index files, a bucket without a fresh index file is loaded.
+     */
+    private void fillIndex(ColumnIndex index) throws BadFileException {
+        Bucket[] buckets = stableData.get().buckets;
+        for (int i = 0; i < buckets.length; ++i) {
+            Map<String, Object> values = buckets[i].data == null ? readIndexOfBucket(i, index.getColumn()) : null;
+            if (values == null) {
+                values = new HashMap<>();
+                try {
+                    for (Map.Entry<String, Storeable> oneEntry : buckets[i].getData().entrySet()) {
+                        values.put(oneEntry.getKey(), valueOf(oneEntry.getValue(), index.getColumn()));
+                    }
+                } catch (IllegalStateException e) {
+                    throw new BadFileException(e);
+                }
+            }
+            for (Map.Entry<String, Object> oneValue : values.entrySet()) {
+                index.update(oneValue.getKey(), null, oneValue.getValue());
+            }
+        }
+    }
+
+    /**
+     * Index file: long size and long modification time (ns) of the bucket file, then
+     * int length of key, key, int length of value, value as text for every row with
+     * a value in the column. Like the filter, it is ignored if the bucket file changed.
+     */
+    private void saveIndexOfBucket(int numberOfBucket, int column, Map<String, Storeable> bucket) {
+        Path indexFile = getPathOfIndex(numberOfBucket, column);
+        Path tempFile = Paths.get(indexFile.toString() + SUFFIX_OF_TEMP);
+        Path bucketFile = getPathOfBucket(numberOfBucket);
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tempFile.toString())))) {
+            output.writeLong(Files.size(bucketFile));
+            output.writeLong(Files.getLastModifiedTime(bucketFile).to(TimeUnit.NANOSECONDS));
+            for (Map.Entry<String, Storeable> oneEntry : bucket.entrySet()) {
+                Object value = valueOf(oneEntry.getValue(), column);
+                if (value == null) {
+                    continue;
+                }
+                byte[] keyByte = oneEntry.getKey().getBytes(FILE_ENCODING);
+                byte[] valueByte = value.toString().getBytes(FILE_ENCODING);
+                output.writeInt(keyByte.length);
+                output.write(keyByte);
+                output.writeInt(valueByte.length);
+                output.write(valueByte);
+            }
+        } catch (IOException e) {
+            System.err.println("error while writing " + indexFile);
+            return;
+        }
+        try {
+            Files.move(tempFile, indexFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            System.err.println("error while replacing " + indexFile);
+        }
+    }
+
+    /**
+     * Values of the column by keys of the bucket file, null if there is no index
+     * file or it was built for another content.
+     */
+    private Map<String, Object> readIndexOfBucket(int numberOfBucket, int column) {
+        Path indexFile = getPathOfIndex(numberOfBucket, column);
+        Path bucketFile = getPathOfBucket(numberOfBucket);
+        try {
+            if (!Files.exists(bucketFile)) {
+                return new HashMap<>();
+            }
+            if (!Files.exists(indexFile)) {
+                return null;
+            }
+            ByteBuffer content = ByteBuffer.wrap(Files.readAllBytes(indexFile));
+            if (content.remaining() < 16 || content.getLong() != Files.size(bucketFile)
+                    || content.getLong() != Files.getLastModifiedTime(bucketFile).to(TimeUnit.NANOSECONDS)) {
+                return null;
+            }
+            Map<String, Object> result = new HashMap<>();
+            while (content.hasRemaining()) {
+                String key = new String(readChunk(content), FILE_ENCODING);
+                String value = new String(readChunk(content), FILE_ENCODING);
+                result.put(key, TypesUtils.parseValue(schema.getType(column), value));
+            }
+            return result;
+        } catch (IOException | ColumnFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Rows of the last committed version, bucket after bucket.
+     */
+    @Override
+    public Iterator<Map.Entry<String, Storeable>> snapshotRows() {
+        Bucket[] buckets = stableData.get().buckets;
+        return new Iterator<Map.Entry<String, Storeable>>() {
+            private int numberOfBucket;
+            private Iterator<Map.Entry<String, Storeable>> current = Collections.emptyIterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!current.hasNext() && numberOfBucket < buckets.length) {
+                    current = buckets[numberOfBucket++].getData().entrySet().iterator();
+                }
+                return current.hasNext();
+            }
+
+            @Override
+            public Map.Entry<String, Storeable> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return current.next();
+            }
+        };
+    }
+
+    @Override
+    public int getNumberOfUncommittedChanges() {
+        return diff.get().getNumberOfUncommittedChanges();
+    }
+
+    /**
+     * Reads the table from disk. In lazy mode only the number of rows is read,
+     * bucket files are loaded by the first get, put or remove of their keys.
+     */
+    public boolean init() throws BadFileException {
+        return init(null);
+    }
+
+    /**
+     * Same as init(), bucket files are read by the loader.
+     */
+    public boolean init(ParallelLoader loader) throws BadFileException {
+        try {
+            lockForLayout.writeLock().lock();
+            try {
+                close();
+            } catch (IOException e) {
+                throw new BadFileException(e);
+            }
+            readIndexes();
+            BucketLayout layout = readLayout();
+            deleteTempFiles();
+            finishBulkLoad();
+            loadVersion(layout, loader);
+            finishMoving(layout);
+            orderedKeys = null;
+            if (options.isOrderedIndex()) {
+                getOrderedKeys();
+            }
+            if (options.isWriteAheadLog()) {
+                openLog();
+            }
+            for (ColumnIndex oneIndex : indexes.values()) {
+                fillIndex(oneIndex);
+            }
+            if (isDurability(TableOptions.DURABILITY_PERIODIC)) {
+                syncTask = BackgroundWorker.schedule(() -> {
+                    try {
+                        sync();
+                    } catch (IOException e) {
+                        System.err.println("error while sync of " + getName());
+                    }
+                }, options.getSyncInterval());
+            }
+            return true;
+        } finally {
+            lockForLayout.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Layout from manifest.tsv. A table without the manifest has either no data or
+     * files of the old layout NN.dir/MM.dat, which are moved to the buckets directory
+     * without changes: the legacy hash keeps every key in the bucket it had there.
+     */
+    private BucketLayout readLayout() throws BadFileException {
+        Path manifestFile = Paths.get(directoryOfTable, MANIFEST_FILE);
+        BucketLayout result;
+        try {
+            if (Files.exists(manifestFile)) {
+                result = BucketLayout.parse(Files.readAllLines(manifestFile));
+            } else {
+                boolean legacyFiles = false;
+                for (int i = 0; i < BucketLayout.LEGACY_NUMBER_OF_DIRS; ++i) {
+                    if (Files.exists(Paths.get(directoryOfTable, i + SUFFIX_OF_DIRECTORY))) {
+                        legacyFiles = true;
+                    }
+                }
+                if (legacyFiles) {
+                    result = BucketLayout.legacy();
+                } else {
+                    result = new BucketLayout(BucketLayout.MIXED_HASH, INITIAL_NUMBER_OF_BUCKETS,
+                            INITIAL_NUMBER_OF_BUCKETS);
+                }
+                saveLayout(result, true);
+            }
+            Files.createDirectories(Paths.get(directoryOfTable, BUCKETS_DIRECTORY));
+            moveLegacyFiles();
+        } catch (IllegalArgumentException e) {
+            throw new BadFileException(e);
+        } catch (BadFileException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new BadFileException(e);
+        }
+        return result;
+    }
+
+    /**
+     * Rewrites the bucket of a stopped split or merge without copies of keys of the last
+     * bucket and clears the mark in the manifest.
+     */
+    private void finishMoving(BucketLayout layout) throws BadFileException {
+        int movingBucket = layout.getMovingBucket();
+        if (movingBucket < 0) {
+            return;
+        }
+        if (!saveBucket(movingBucket, true)) {
+            throw new BadFileException();
+        }
+        try {
+            saveLayout(layout.settled(), true);
+        } catch (IOException e) {
+            throw new BadFileException(e);
+        }
+    }
+
+    /**
+     * Moves bucket files of the old layout to the buckets directory. Called on every
+     * start, so a migration stopped by a crash is finished by the next one.
+     */
+    private void moveLegacyFiles() throws IOException {
+        for (int i = 0; i < BucketLayout.LEGACY_NUMBER_OF_DIRS; ++i) {
+            Path legacyDirectory = Paths.get(directoryOfTable, i + SUFFIX_OF_DIRECTORY);
+            if (!Files.isDirectory(legacyDirectory)) {
+                continue;
+            }
+            for (int j = 0; j < BucketLayout.LEGACY_NUMBER_OF_FILES; ++j) {
+                Path legacyFile = legacyDirectory.resolve(j + SUFFIX_OF_FILE);
+                if (Files.exists(legacyFile)) {
+                    Files.move(legacyFile, getPathOfBucket(i * BucketLayout.LEGACY_NUMBER_OF_FILES + j),
+                            StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            FileUtils.rmdir(legacyDirectory);
+        }
+    }
+
+    private void saveLayout(BucketLayout layout, boolean force) throws IOException {
+        Path manifestFile = Paths.get(directoryOfTable, MANIFEST_FILE);
+        Path tempFile = Paths.get(directoryOfTable, MANIFEST_FILE + SUFFIX_OF_TEMP);
+        try (FileOutputStream output = new FileOutputStream(tempFile.toString())) {
+            output.write((String.join(System.lineSeparator(), layout.toLines()) + System.lineSeparator())
+                    .getBytes(FILE_ENCODING));
+            if (force) {
+                output.getFD().sync();
+            }
+        }
+        Files.move(tempFile, manifestFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        if (force) {
+            forceDirectory(manifestFile.getParent());
+        }
+    }
+
+    /**
+     * Replays the log left by the last run, writes its changes to bucket files
+     * and starts background checkpoints.
+     */
+    private void openLog() throws BadFileException {
+        try {
+            log = new WriteAheadLog(Paths.get(directoryOfTable));
+            replayLog();
+            if (!checkpoint()) {
+                throw new BadFileException();
+            }
+        } catch (BadFileException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new BadFileException(e);
+        }
+        checkpointTask = BackgroundWorker.schedule(() -> {
+            try {
+                checkpoint();
+            } catch (IOException e) {
+                System.err.println("error while checkpoint of " + getName());
+            }
+        }, options.getCheckpointInterval());
+    }
+
+    private void loadVersion(BucketLayout layout, ParallelLoader loader) throws BadFileException {
+        int numberOfBuckets = layout.getNumberOfBuckets();
+        Bucket[] buckets = new Bucket[numberOfBuckets];
+        resizeSavedSizes(numberOfBuckets);
+        readChecksums();
+        if (lazyLoading) {
+            int size = readSize();
+            for (int i = 0; i < numberOfBuckets; ++i) {
+                buckets[i] = new Bucket(layout, i, null);
+                buckets[i].filter = readFilter(i);
+            }
+            stableData.set(new Version(0, buckets, size, layout));
+            return;
+        }
+        List<Map<String, Storeable>> loadedBuckets;
+        if (loader == null) {
+            loadedBuckets = new ArrayList<>(numberOfBuckets);
+            for (int i = 0; i < numberOfBuckets; ++i) {
+                loadedBuckets.add(loadBucket(layout, i));
+            }
+        } else {
+            List<Callable<Map<String, Storeable>>> jobs = new ArrayList<>(numberOfBuckets);
+            for (int i = 0; i < numberOfBuckets; ++i) {
+                int numberOfBucket = i;
+                jobs.add(() -> loadBucket(layout, numberOfBucket));
+            }
+            loadedBuckets = loader.invokeAll(jobs);
+        }
+        int size = 0;
+        for (int i = 0; i < numberOfBuckets; ++i) {
+            buckets[i] = new Bucket(layout, i, Collections.unmodifiableMap(loadedBuckets.get(i)));
+            savedSizes[i] = loadedBuckets.get(i).size();
+            size += savedSizes[i];
+        }
+        stableData.set(new Version(0, buckets, size, layout));
+    }
+
+    /**
+     * Keys of other buckets mean a broken file, except for keys of the last bucket in the
+     * bucket the manifest marks as moving: these are copies left by a stopped split or
+     * merge, and the last bucket has them too.
+     */
+    private Map<String, Storeable> loadBucket(BucketLayout layout, int numberOfBucket) throws BadFileException {
+        Map<String, Storeable> result = new HashMap<>();
+        Path currentFile = getPathOfBucket(numberOfBucket);
+        if (!Files.exists(currentFile)) {
+            return result;
+        }
+        try {
+            ByteBuffer bufferFromDisk = readBucketFile(currentFile);
+            while (bufferFromDisk.hasRemaining()) {
+                byte[] key = readChunk(bufferFromDisk);
+                byte[] value = readChunk(bufferFromDisk);
+                String keyString = new String(key, FILE_ENCODING);
+                int numberOfKeyBucket = layout.getNumberOfBucket(keyString);
+                if (numberOfKeyBucket == numberOfBucket) {
+                    result.put(keyString, codec.decode(this, value));
+                } else if (numberOfBucket != layout.getMovingBucket()
+                        || numberOfKeyBucket != layout.getNumberOfBuckets() - 1) {
+                    throw new BadFileException();
+                }
+            }
+        } catch (ParseException e) {
+            throw new BadFileException(e);
+        } catch (BadFileException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new BadFileException(e);
+        }
+        return result;
+    }
+
+    /**
+     * Content of the bucket file, mapped or, if the table compresses buckets, inflated.
+     * A compressed file may be several Deflater streams one after another, as a bulk load
+     * appends every batch as a stream of its own.
+     */
+    private ByteBuffer readBucketFile(Path file) throws IOException {
+        if (!isCompressed()) {
+            try (FileChannel inputChannel = FileChannel.open(file)) {
+                return inputChannel.map(MapMode.READ_ONLY, 0, inputChannel.size());
+            }
+        }
+        byte[] compressed = Files.readAllBytes(file);
+        Inflater inflater = new Inflater();
+        try {
+            ByteArrayOutputStream content = new ByteArrayOutputStream(SIZE_OF_BUFFER);
+            byte[] buffer = new byte[SIZE_OF_BUFFER];
+            inflater.setInput(compressed);
+            while (!inflater.finished() || inflater.getRemaining() > 0) {
+                if (inflater.finished()) {
+                    int offset = compressed.length - inflater.getRemaining();
+                    inflater.reset();
+                    inflater.setInput(compressed, offset, compressed.length - offset);
+                }
+                int length = inflater.inflate(buffer);
+                if (length == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new EOFException("unexpected end of " + file);
+                }
+                content.write(buffer, 0, length);
+            }
+            return ByteBuffer.wrap(content.toByteArray());
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private boolean isCompressed() {
+        return options.getCompression().equals(TableOptions.COMPRESSION_DEFLATE);
+    }
+
+    private static byte[] readChunk(ByteBuffer bufferFromDisk) throws BadFileException {
+        if (bufferFromDisk.remaining() < 4) {
+            throw new BadFileException();
+        }
+        int size = bufferFromDisk.getInt();
+        if (size < 0 || bufferFromDisk.remaining() < size) {
+            throw new BadFileException();
+        }
+        byte[] result = new byte[size];
+        bufferFromDisk.get(result);
+        return result;
+    }
+
+    /**
+     * Number of committed rows from size.tsv, which keeps the number of rows in
+     * every bucket file. If the file is missing or broken, rows are counted by
+     * walking bucket files without decoding values.
+     */
+    private int readSize() throws BadFileException {
+        Path sizeFile = Paths.get(directoryOfTable, SIZE_FILE);
+        if (Files.exists(sizeFile)) {
+            try {
+                List<String> lines = Files.readAllLines(sizeFile);
+                String[] sizes = lines.isEmpty() ? new String[0] : lines.get(0).trim().split("\\s+");
+                if (sizes.length == savedSizes.length) {
+                    int result = 0;
+                    for (int i = 0; i < savedSizes.length; ++i) {
+                        savedSizes[i] = Integer.parseInt(sizes[i]);
+                        result += savedSizes[i];
+                    }
+                    return result;
+                }
+            } catch (IOException | NumberFormatException e) {
+                //count again
+            }
+        }
+        int result = 0;
+        for (int i = 0; i < savedSizes.length; ++i) {
+            savedSizes[i] = countRecords(getPathOfBucket(i));
+            result += savedSizes[i];
+        }
+        return result;
+    }
+
+    /**
+     * CRC32 checksums of bucket files from the second line of size.tsv. They are
+     * computed while bucket files are written, so filters are checked without reading
+     * bucket files. A checksum which is missing is unknown, its filter is not used.
+     */
+    private void readChecksums() {
+        Arrays.fill(savedChecksums, UNKNOWN_CHECKSUM);
+        Path sizeFile = Paths.get(directoryOfTable, SIZE_FILE);
+        if (!Files.exists(sizeFile)) {
+            return;
+        }
+        try {
+            List<String> lines = Files.readAllLines(sizeFile);
+            String[] checksums = lines.size() < 2 ? new String[0] : lines.get(1).trim().split("\\s+");
+            if (checksums.length == savedChecksums.length) {
+                long[] newChecksums = new long[checksums.length];
+                for (int i = 0; i < checksums.length; ++i) {
+                    newChecksums[i] = Long.parseLong(checksums[i]);
+                }
+                System.arraycopy(newChecksums, 0, savedChecksums, 0, newChecksums.length);
+            }
+        } catch (IOException | NumberFormatException e) {
+            //filters are not used
+        }
+    }
+
+    private int countRecords(Path currentFile) throws BadFileException {
+        if (!Files.exists(currentFile)) {
+            return 0;
+        }
+        int result = 0;
+        try {
+            ByteBuffer bufferFromDisk = readBucketFile(currentFile);
+            while (bufferFromDisk.hasRemaining()) {
+                for (int part = 0; part < 2; ++part) {
+                    if (bufferFromDisk.remaining() < 4) {
+                        throw new BadFileException();
+                    }
+                    int size = bufferFromDisk.getInt();
+                    if (size < 0 || bufferFromDisk.remaining() < size) {
+                        throw new BadFileException();
+                    }
+                    bufferFromDisk.position(bufferFromDisk.position() + size);
+                }
+                ++result;
+            }
+        } catch (BadFileException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new BadFileException(e);
+        }
+        return result;
+    }
+
+    private boolean saveSize(boolean force) {
+        try {
+            lockForSize.lock();
+            StringBuilder sizes = new StringBuilder();
+            StringBuilder checksums = new StringBuilder();
+            for (int i = 0; i < savedSizes.length; ++i) {
+                if (i > 0) {
+                    sizes.append(" ");
+                    checksums.append(" ");
+                }
+                sizes.append(savedSizes[i]);
+                checksums.append(savedChecksums[i]);
+            }
+            Path sizeFile = Paths.get(directoryOfTable, SIZE_FILE);
+            Path tempFile = Paths.get(directoryOfTable, SIZE_FILE + SUFFIX_OF_TEMP);
+            try (FileOutputStream output = new FileOutputStream(tempFile.toString())) {
+                output.write((sizes.toString() + System.lineSeparator() + checksums.toString()
+                        + System.lineSeparator()).getBytes(FILE_ENCODING));
+                if (force) {
+                    output.getFD().sync();
+                }
+            }
+            Files.move(tempFile, sizeFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            if (force) {
+                forceDirectory(sizeFile.getParent());
+            }
+        } catch (IOException e) {
+            System.err.println("error while writing " + SIZE_FILE);
+            return false;
+        } finally {
+            lockForSize.unlock();
+        }
+        return true;
+    }
+
+    private void setSavedSize(int numberOfBucket, int size, long checksum) {
+        try {
+            lockForSize.lock();
+            savedSizes[numberOfBucket] = size;
+            savedChecksums[numberOfBucket] = checksum;
+        } finally {
+            lockForSize.unlock();
+        }
+    }
+
+    private void resizeSavedSizes(int numberOfBuckets) {
+        try {
+            lockForSize.lock();
+            int oldNumberOfBuckets = savedChecksums.length;
+            savedSizes = Arrays.copyOf(savedSizes, numberOfBuckets);
+            savedChecksums = Arrays.copyOf(savedChecksums, numberOfBuckets);
+            if (numberOfBuckets > oldNumberOfBuckets) {
+                Arrays.fill(savedChecksums, oldNumberOfBuckets, numberOfBuckets, UNKNOWN_CHECKSUM);
+            }
+        } finally {
+            lockForSize.unlock();
+        }
+    }
+
+    /**
+     * Rewrites the file of one bucket with its current content.
+     * Returns True if the record on the disc was successful and otherwise False.
+     */
+    public boolean saveBucket(int numberOfBucket) throws BadFileException {
+        return saveBucket(numberOfBucket, isDurability(TableOptions.DURABILITY_ON_COMMIT));
+    }
+
+    /**
+     * The new content is written to a temporary file which then replaces the bucket
+     * file by rename, so the bucket file always has either old or new content.
+     *
+     * @param force - return only when the file and its directory entry are on disk
+     */
+    private boolean saveBucket(int numberOfBucket, boolean force) throws BadFileException {
+        Map<String, Storeable> bucket = stableData.get().buckets[numberOfBucket].getData();
+        Path directoryForsave = Paths.get(directoryOfTable, BUCKETS_DIRECTORY);
+        Path fileForsave = getPathOfBucket(numberOfBucket);
+        if (bucket.isEmpty()) {
+            try {
+                Files.deleteIfExists(getPathOfFilter(numberOfBucket));
+                for (int oneColumn : indexes.keySet()) {
+                    Files.deleteIfExists(getPathOfIndex(numberOfBucket, oneColumn));
+                }
+                if (Files.deleteIfExists(fileForsave) && force) {
+                    forceDirectory(directoryForsave);
+                }
+                setSavedSize(numberOfBucket, 0, UNKNOWN_CHECKSUM);
+            } catch (IOException e) {
+                throw new BadFileException(e);
+            }
+            return true;
+        }
+
+        Path tempFile = Paths.get(directoryForsave.toString(), numberOfBucket + SUFFIX_OF_FILE + SUFFIX_OF_TEMP);
+        FileOutputStream streamForSave;
+        try {
+            streamForSave = new FileOutputStream(tempFile.toString());
+        } catch (IOException e) {
+            System.err.println("error while creating file for save");
+            return false;
+        }
+
+        CRC32 checksum = new CRC32();
+        try {
+            writeBucketFile(streamForSave, bucket, checksum, force);
+        } catch (UnsupportedEncodingException e) {
+            System.err.println("unsupported encoding");
+            return false;
+        } catch (IOException e) {
+            System.err.println("io exception");
+            return false;
+        }
+
+        try {
+            Files.deleteIfExists(getPathOfFilter(numberOfBucket));
+            Files.move(tempFile, fileForsave, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            if (force) {
+                forceDirectory(directoryForsave);
+            }
+        } catch (IOException e) {
+            System.err.println("error while replacing " + fileForsave);
+            return false;
+        }
+        if (isDurability(TableOptions.DURABILITY_PERIODIC)) {
+            bucketsForSync.add(numberOfBucket);
+        }
+        saveFilter(numberOfBucket, bucket.keySet(), checksum.getValue());
+        for (int oneColumn : indexes.keySet()) {
+            saveIndexOfBucket(numberOfBucket, oneColumn, bucket);
+        }
+        setSavedSize(numberOfBucket, bucket.size(), checksum.getValue());
+        return true;
+    }
+
+    /**
+     * Writes rows to the bucket file and closes it. If the table compresses buckets,
+     * the whole file is one Deflater stream.
+     *
+     * @param checksum - gets every byte written to the file
+     * @param force - return only when the file is on disk
+     */
+    private void writeBucketFile(FileOutputStream file, Map<String, Storeable> bucket, Checksum checksum,
+                                 boolean force) throws IOException {
+        DeflaterOutputStream deflated = null;
+        try {
+            OutputStream outputStream = new BufferedOutputStream(new CheckedOutputStream(file, checksum),
+                    SIZE_OF_BUFFER);
+            if (isCompressed()) {
+                deflated = new DeflaterOutputStream(outputStream);
+                outputStream = new BufferedOutputStream(deflated, SIZE_OF_BUFFER);
+            }
+            writeRecords(outputStream, bucket);
+            outputStream.flush();
+            if (deflated != null) {
+                deflated.finish();
+                deflated.flush();
+            }
+            if (force) {
+                file.getFD().sync();
+            }
+        } finally {
+            if (deflated != null) {
+                deflated.close();
+            }
+            file.close();
+        }
+    }
+
+    /**
+     * int length of key, key, int length of value, value for every row.
+     */
+    private void writeRecords(OutputStream outputStream, Map<String, Storeable> bucket) throws IOException {
+        ByteBuffer bufferForSize = ByteBuffer.allocate(4);
+        for (Map.Entry<String, Storeable> oneEntry : bucket.entrySet()) {
+            byte[] keyByte = oneEntry.getKey().getBytes(FILE_ENCODING);
+            byte[] valueByte = codec.encode(this, oneEntry.getValue());
+            outputStream.write(bufferForSize.putInt(0, keyByte.length).array());
+            outputStream.write(keyByte);
+            outputStream.write(bufferForSize.putInt(0, valueByte.length).array());
+            outputStream.write(valueByte);
+        }
+    }
+
+    /**
+     * Adds rows to the committed table without transactions, a row replaces the row
+     * with the same key. Rows are read in batches, every batch is validated in parallel
+     * and appended to new files N.dat.bulk of its buckets, then rows of the buckets which
+     * weren't replaced are appended too. Then bulk.tsv with the new files and sizes of their
+     * buckets is written, it switches the table to the new files and size.tsv to the new sizes.
+     * A load stopped before bulk.tsv is dropped by init, a load stopped after it is finished by init.
+     * Commits wait until the load ends, transactions which saw replaced rows get a conflict.
+     * The transaction of this thread sees the loaded rows if it has not read or changed any key.
+     * Returns the number of loaded rows.
+     */
+    public int bulkLoad(Iterator<Map.Entry<String, Storeable>> rows)
+            throws IOException, IllegalArgumentException, IndexOutOfBoundsException {
+        int result = 0;
+        try {
+            lockForLayout.writeLock().lock();
+            if (log != null && !checkpoint()) {
+                throw new IOException("error while checkpoint of " + getName());
+            }
+            Version base = stableData.get();
+            boolean force = !isDurability(TableOptions.DURABILITY_NONE);
+            BulkLoader loader = new BulkLoader(base);
+            try {
+                List<Map.Entry<String, Storeable>> batch = new ArrayList<>(SIZE_OF_BULK_BATCH);
+                while (rows.hasNext()) {
+                    Map.Entry<String, Storeable> oneRow = rows.next();
+                    if (oneRow.getKey() == null || oneRow.getValue() == null) {
+                        throw new IllegalArgumentException("null argument");
+                    }
+                    batch.add(new AbstractMap.SimpleImmutableEntry<>(oneRow.getKey(), oneRow.getValue()));
+                    ++result;
+                    if (batch.size() == SIZE_OF_BULK_BATCH) {
+                        loader.write(batch);
+                        batch.clear();
+                    }
+                }
+                loader.write(batch);
+                loader.finish(force);
+            } catch (IOException | RuntimeException e) {
+                deleteBulkFiles();
+                throw e;
+            }
+
+            Path bulkListFile = Paths.get(directoryOfTable, BULK_FILE);
+            Path tempFile = Paths.get(directoryOfTable, BULK_FILE + SUFFIX_OF_TEMP);
+            StringBuilder bulkList = new StringBuilder();
+            for (Map.Entry<Integer, Map<String, Storeable>> oneBucket : loader.newBuckets.entrySet()) {
+                bulkList.append(oneBucket.getKey()).append("\t").append(oneBucket.getValue().size())
+                        .append("\t").append(loader.checksums.get(oneBucket.getKey()).getValue())
+                        .append(System.lineSeparator());
+            }
+            Files.write(tempFile, bulkList.toString().getBytes(FILE_ENCODING));
+            if (force) {
+                forceFile(tempFile);
+            }
+            Files.move(tempFile, bulkListFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            if (force) {
+                forceDirectory(bulkListFile.getParent());
+            }
+            finishBulkLoad();
+
+            Bucket[] buckets = base.buckets.clone();
+            int size = base.size;
+            for (Map.Entry<Integer, Map<String, Storeable>> oneBucket : loader.newBuckets.entrySet()) {
+                int numberOfBucket = oneBucket.getKey();
+                size += oneBucket.getValue().size() - base.buckets[numberOfBucket].getData().size();
+                buckets[numberOfBucket] = new Bucket(base.layout, numberOfBucket,
+                        Collections.unmodifiableMap(oneBucket.getValue()));
+                setSavedSize(numberOfBucket, oneBucket.getValue().size(),
+                        loader.checksums.get(numberOfBucket).getValue());
+            }
+            stableData.set(new Version(base.number + 1, buckets, size, base.layout));
+
+            NavigableSet<String> keys = orderedKeys;
+            for (Map.Entry<Integer, Set<String>> oneBucket : loader.loadedKeys.entrySet()) {
+                Map<String, Storeable> oldData = base.buckets[oneBucket.getKey()].getData();
+                Map<String, Storeable> newData = buckets[oneBucket.getKey()].getData();
+                for (String oneKey : oneBucket.getValue()) {
+                    for (ColumnIndex oneIndex : indexes.values()) {
+                        oneIndex.update(oneKey, valueOf(oldData.get(oneKey), oneIndex.getColumn()),
+                                valueOf(newData.get(oneKey), oneIndex.getColumn()));
+                    }
+                }
+                if (keys != null) {
+                    keys.addAll(oneBucket.getValue());
+                }
+                if (isDurability(TableOptions.DURABILITY_PERIODIC)) {
+                    bucketsForSync.add(oneBucket.getKey());
+                }
+                saveFilter(oneBucket.getKey(), newData.keySet(), loader.checksums.get(oneBucket.getKey()).getValue());
+                for (int oneColumn : indexes.keySet()) {
+                    saveIndexOfBucket(oneBucket.getKey(), oneColumn, newData);
+                }
+            }
+        } finally {
+            lockForLayout.writeLock().unlock();
+        }
+        resizeIfNeeded();
+        return result;
+    }
+
+    /**
+     * New files of the buckets touched by a bulk load. Only the rows of one batch
+     * are kept apart from the new data of the buckets, the batch is written as soon
+     * as it is full. A bucket whose key came again in a later batch has that key twice
+     * in its file, so it is written again as a whole by finish.
+     */
+    private class BulkLoader {
+        private final Version base;
+        private final Map<Integer, Map<String, Storeable>> newBuckets = new HashMap<>();
+        private final Map<Integer, Set<String>> loadedKeys = new HashMap<>();
+        private final Set<Integer> bucketsWithRepeatedKeys = new HashSet<>();
+        private final Map<Integer, CRC32> checksums = new HashMap<>();
+
+        BulkLoader(Version newBase) {
+            base = newBase;
+        }
+
+        void write(List<Map.Entry<String, Storeable>> batch) throws IOException {
+            batch.parallelStream().forEach(oneRow -> schema.check(oneRow.getValue()));
+            Map<Integer, Map<String, Storeable>> batchBuckets = new HashMap<>();
+            for (Map.Entry<String, Storeable> oneRow : batch) {
+                batchBuckets.computeIfAbsent(base.layout.getNumberOfBucket(oneRow.getKey()),
+                        numberOfBucket -> new HashMap<>()).put(oneRow.getKey(), oneRow.getValue());
+            }
+            for (Map.Entry<Integer, Map<String, Storeable>> oneBucket : batchBuckets.entrySet()) {
+                int numberOfBucket = oneBucket.getKey();
+                boolean isNew = !newBuckets.containsKey(numberOfBucket);
+                if (isNew) {
+                    newBuckets.put(numberOfBucket, new HashMap<>(base.buckets[numberOfBucket].getData()));
+                    loadedKeys.put(numberOfBucket, new HashSet<>());
+                    checksums.put(numberOfBucket, new CRC32());
+                }
+                Set<String> keys = loadedKeys.get(numberOfBucket);
+                for (String oneKey : oneBucket.getValue().keySet()) {
+                    if (!keys.add(oneKey)) {
+                        bucketsWithRepeatedKeys.add(numberOfBucket);
+                    }
+                }
+                newBuckets.get(numberOfBucket).putAll(oneBucket.getValue());
+                if (!bucketsWithRepeatedKeys.contains(numberOfBucket)) {
+                    writeBucketFile(new FileOutputStream(getPathOfBulk(numberOfBucket).toString(), !isNew),
+                            oneBucket.getValue(), checksums.get(numberOfBucket), false);
+                }
+            }
+        }
+
+        /**
+         * Appends rows which were not replaced, rewrites buckets with repeated keys.
+         *
+         * @param force - return only when the files are on disk
+         */
+        void finish(boolean force) throws IOException {
+            for (Map.Entry<Integer, Map<String, Storeable>> oneBucket : newBuckets.entrySet()) {
+                int numberOfBucket = oneBucket.getKey();
+                Path bulkFile = getPathOfBulk(numberOfBucket);
+                CRC32 checksum = checksums.get(numberOfBucket);
+                if (bucketsWithRepeatedKeys.contains(numberOfBucket)) {
+                    checksum.reset();
+                    writeBucketFile(new FileOutputStream(bulkFile.toString()), oneBucket.getValue(), checksum, force);
+                    continue;
+                }
+                Map<String, Storeable> keptRows = new HashMap<>(base.buckets[numberOfBucket].getData());
+                keptRows.keySet().removeAll(loadedKeys.get(numberOfBucket));
+                if (!keptRows.isEmpty()) {
+                    writeBucketFile(new FileOutputStream(bulkFile.toString(), true), keptRows, checksum, force);
+                } else if (force) {
+                    forceFile(bulkFile);
+                }
+            }
+        }
+    }
+
+    /**
+     * Deletes .tmp files of the table and bucket directories. They are left by a crash
+     * between writing a file and renaming it, the file they were written for is still old.
+     */
+    private void deleteTempFiles() throws BadFileException {
+        Path[] directories = {Paths.get(directoryOfTable), Paths.get(directoryOfTable, BUCKETS_DIRECTORY)};
+        try {
+            for (Path oneDirectory : directories) {
+                File[] files = oneDirectory.toFile().listFiles();
+                if (files == null) {
+                    continue;
+                }
+                for (File oneFile : files) {
+                    if (oneFile.isFile() && oneFile.getName().endsWith(SUFFIX_OF_TEMP)) {
+                        Files.delete(oneFile.toPath());
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new BadFileException(e);
+        }
+    }
+
+    /**
+     * Moves files of the bulk load listed in bulk.tsv to their buckets and puts their sizes
+     * and checksums to size.tsv, deletes files of a load which didn't write bulk.tsv.
+     * Filters of the buckets are deleted before their files are replaced.
+     */
+    private void finishBulkLoad() throws BadFileException {
+        Path bulkListFile = Paths.get(directoryOfTable, BULK_FILE);
+        try {
+            if (Files.exists(bulkListFile)) {
+                Map<Integer, Integer> sizes = new HashMap<>();
+                Map<Integer, Long> checksums = new HashMap<>();
+                for (String oneLine : Files.readAllLines(bulkListFile)) {
+                    if (oneLine.trim().isEmpty()) {
+                        continue;
+                    }
+                    String[] parts = oneLine.trim().split("\\s+");
+                    int numberOfBucket = Integer.parseInt(parts[0]);
+                    sizes.put(numberOfBucket, parts.length > 1 ? Integer.parseInt(parts[1]) : -1);
+                    checksums.put(numberOfBucket, parts.length > 2 ? Long.parseLong(parts[2]) : UNKNOWN_CHECKSUM);
+                }
+                saveBulkSizes(sizes, checksums);
+                for (int oneBucket : sizes.keySet()) {
+                    Path bulkFile = getPathOfBulk(oneBucket);
+                    if (Files.exists(bulkFile)) {
+                        Files.deleteIfExists(getPathOfFilter(oneBucket));
+                        Files.move(bulkFile, getPathOfBucket(oneBucket), StandardCopyOption.ATOMIC_MOVE,
+                                StandardCopyOption.REPLACE_EXISTING);
+                    }
+                }
+                forceDirectory(Paths.get(directoryOfTable, BUCKETS_DIRECTORY));
+                Files.delete(bulkListFile);
+            }
+            deleteBulkFiles();
+        } catch (NumberFormatException e) {
+            throw new BadFileException(e);
+        } catch (IOException e) {
+            throw new BadFileException(e);
+        }
+    }
+
+    /**
+     * Puts sizes and checksums of the buckets of a bulk load to size.tsv. If a size is unknown
+     * or doesn't fit the file, size.tsv is deleted and init counts the rows again.
+     */
+    private void saveBulkSizes(Map<Integer, Integer> sizes, Map<Integer, Long> checksums) throws IOException {
+        Path sizeFile = Paths.get(directoryOfTable, SIZE_FILE);
+        if (!Files.exists(sizeFile)) {
+            return;
+        }
+        List<String> lines = Files.readAllLines(sizeFile);
+        String[] savedSizes = lines.isEmpty() ? new String[0] : lines.get(0).trim().split("\\s+");
+        String[] savedChecksums = lines.size() < 2 ? new String[0] : lines.get(1).trim().split("\\s+");
+        if (savedChecksums.length != savedSizes.length) {
+            savedChecksums = new String[savedSizes.length];
+            Arrays.fill(savedChecksums, String.valueOf(UNKNOWN_CHECKSUM));
+        }
+        for (Map.Entry<Integer, Integer> oneBucket : sizes.entrySet()) {
+            if (oneBucket.getKey() < 0 || oneBucket.getKey() >= savedSizes.length || oneBucket.getValue() < 0) {
+                Files.delete(sizeFile);
+                return;
+            }
+            savedSizes[oneBucket.getKey()] = String.valueOf(oneBucket.getValue());
+            savedChecksums[oneBucket.getKey()] = String.valueOf(checksums.get(oneBucket.getKey()));
+        }
+        Path tempFile = Paths.get(directoryOfTable, SIZE_FILE + SUFFIX_OF_TEMP);
+        Files.write(tempFile, (String.join(" ", savedSizes) + System.lineSeparator() + String.join(" ", savedChecksums)
+                + System.lineSeparator()).getBytes(FILE_ENCODING));
+        forceFile(tempFile);
+        Files.move(tempFile, sizeFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        forceDirectory(sizeFile.getParent());
+    }
+
+    /**
+     * Deletes N.dat.bulk files which are not listed in bulk.tsv.
+     */
+    private void deleteBulkFiles() throws IOException {
+        File[] leftFiles = Paths.get(directoryOfTable, BUCKETS_DIRECTORY).toFile().listFiles();
+        if (leftFiles != null) {
+            for (File oneFile : leftFiles) {
+                if (oneFile.getName().endsWith(SUFFIX_OF_BULK)) {
+                    Files.delete(oneFile.toPath());
+                }
+            }
+        }
+    }
+
+    private Path getPathOfBulk(int numberOfBucket) {
+        return Paths.get(getPathOfBucket(numberOfBucket).toString() + SUFFIX_OF_BULK);
+    }
+
+    /**
+     * Filter file: long CRC32 checksum of the bucket file it was built for, then the filter.
+     * Filters are used only by lazy tables, so other tables don't write them. A filter is
+     * used only if its checksum is the one size.tsv keeps for the bucket file, a filter left
+     * by a crash or by a table which doesn't write filters is ignored.
+     */
+    private void saveFilter(int numberOfBucket, Collection<String> keys, long checksum) {
+        if (!lazyLoading) {
+            return;
+        }
+        Path filterFile = getPathOfFilter(numberOfBucket);
+        Path tempFile = Paths.get(filterFile.toString() + SUFFIX_OF_TEMP);
+        try {
+            byte[] filter = BloomFilter.create(keys, options.getBloomFalsePositiveRate()).toBytes();
+            ByteBuffer content = ByteBuffer.allocate(8 + filter.length);
+            content.putLong(checksum);
+            content.put(filter);
+            Files.write(tempFile, content.array());
+            Files.move(tempFile, filterFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            System.err.println("error while writing " + filterFile);
+        }
+    }
+
+    /**
+     * Filter of the bucket file, null if there is no filter or it was built for another content.
+     * Called after readChecksums, bucket files are not read.
+     */
+    private BloomFilter readFilter(int numberOfBucket) {
+        Path filterFile = getPathOfFilter(numberOfBucket);
+        long checksum = savedChecksums[numberOfBucket];
+        try {
+            if (checksum == UNKNOWN_CHECKSUM || !Files.exists(filterFile)) {
+                return null;
+            }
+            ByteBuffer content = ByteBuffer.wrap(Files.readAllBytes(filterFile));
+            if (content.remaining() < 8 || content.getLong() != checksum) {
+                return null;
+            }
+            return BloomFilter.fromBytes(content.slice());
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static void forceFile(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        } catch (NoSuchFileException e) {
+            //file was deleted, nothing to force
+        }
+    }
+
+    /**
+     * Puts renames and deletions in the directory on disk. Some systems can't
+     * open a directory, then it is left to them.
+     */
+    static void forceDirectory(Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            //not supported
         }
-        return true;
     }
 
     public boolean deleteEmptyFiles(Path directory, Path file) throws BadFileException {
         try {
-            if (Files.size(file) == 0) {
+            if (Files.exists(file) && Files.size(file) == 0) {
                 Files.delete(file);
             }
         } catch (IOException e) {
@@ -1,6 +1,6 @@
 package ru.fizteh.fivt.students.titov.parallel.file_map;
 
-public abstract class FileMapCommand extends Command<FileMap> {
+public abstract class FileMapCommand extends Command<StoredTable> {
     public void initialize(String commandName, int n) {
         name = commandName;
         numberOfArguments = n;
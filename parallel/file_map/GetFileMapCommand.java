@@ -8,7 +8,7 @@ public class GetFileMapCommand extends FileMapCommand {
         initialize("get", 2);
     }
     @Override
-    public boolean run(FileMap fileMap, String[] args) {
+    public boolean run(StoredTable fileMap, String[] args) {
         Storeable value = fileMap.get(args[1]);
         if (value != null) {
             System.err.println("found\n" + Serializator.serialize(fileMap, fileMap.get(args[1])));
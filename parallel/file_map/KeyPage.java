@@ -0,0 +1,25 @@
+package ru.fizteh.fivt.students.titov.parallel.file_map;
+
+import java.util.List;
+
+/**
+ * Keys of one page of a listing in ascending order and the token of the next page,
+ * which is null for the last page.
+ */
+public class KeyPage {
+    private final List<String> keys;
+    private final String nextPageToken;
+
+    public KeyPage(List<String> newKeys, String newNextPageToken) {
+        keys = newKeys;
+        nextPageToken = newNextPageToken;
+    }
+
+    public List<String> getKeys() {
+        return keys;
+    }
+
+    public String getNextPageToken() {
+        return nextPageToken;
+    }
+}
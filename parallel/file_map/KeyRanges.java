@@ -0,0 +1,192 @@
+package ru.fizteh.fivt.students.titov.parallel.file_map;
+
+import ru.fizteh.fivt.storage.structured.Storeable;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+/**
+ * Helpers for ordered scans: ranges are [from, to), a null bound means no bound.
+ */
+public class KeyRanges {
+    public static void checkScan(int limit) throws IllegalArgumentException {
+        if (limit < 0) {
+            throw new IllegalArgumentException("limit should not be negative");
+        }
+    }
+
+    public static boolean isBeforeEnd(String key, String to) {
+        return to == null || key.compareTo(to) < 0;
+    }
+
+    public static boolean contains(String key, String from, String to) {
+        return (from == null || key.compareTo(from) >= 0) && isBeforeEnd(key, to);
+    }
+
+    /**
+     * The least key greater than all keys with the prefix, null if there is none.
+     */
+    public static String endOfPrefix(String prefix) {
+        StringBuilder result = new StringBuilder(prefix);
+        while (result.length() > 0) {
+            int last = result.length() - 1;
+            if (result.charAt(last) != Character.MAX_VALUE) {
+                result.setCharAt(last, (char) (result.charAt(last) + 1));
+                return result.toString();
+            }
+            result.setLength(last);
+        }
+        return null;
+    }
+
+    public static NavigableSet<String> subSet(NavigableSet<String> keys, String from, String to) {
+        if (from == null && to == null) {
+            return keys;
+        } else if (from == null) {
+            return keys.headSet(to, false);
+        } else if (to == null) {
+            return keys.tailSet(from, true);
+        }
+        if (from.compareTo(to) >= 0) {
+            return keys.subSet(from, true, from, false);
+        }
+        return keys.subSet(from, true, to, false);
+    }
+
+    /**
+     * Keys seen by a transaction in the range, in ascending order.
+     *
+     * @param committed - committed keys of the range in ascending order
+     * @param changes - uncommitted changes of the transaction
+     * @param removed - value which marks a removed key in changes
+     */
+    public static Iterator<String> merge(Iterator<String> committed, Map<String, Storeable> changes,
+                                         Storeable removed, String from, String to, int limit) {
+        TreeMap<String, Storeable> changesInRange = new TreeMap<>();
+        for (Map.Entry<String, Storeable> oneChange : changes.entrySet()) {
+            if (contains(oneChange.getKey(), from, to)) {
+                changesInRange.put(oneChange.getKey(), oneChange.getValue());
+            }
+        }
+        Iterator<Map.Entry<String, Storeable>> changed = changesInRange.entrySet().iterator();
+        return new Iterator<String>() {
+            private String nextCommitted = advanceCommitted();
+            private Map.Entry<String, Storeable> nextChanged = advanceChanged();
+            private int returned;
+
+            private String advanceCommitted() {
+                while (committed.hasNext()) {
+                    String key = committed.next();
+                    if (!changes.containsKey(key)) {
+                        return key;
+                    }
+                }
+                return null;
+            }
+
+            private Map.Entry<String, Storeable> advanceChanged() {
+                while (changed.hasNext()) {
+                    Map.Entry<String, Storeable> oneChange = changed.next();
+                    if (oneChange.getValue() != removed) {
+                        return oneChange;
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return returned < limit && (nextCommitted != null || nextChanged != null);
+            }
+
+            @Override
+            public String next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                String result;
+                if (nextChanged == null
+                        || nextCommitted != null && nextCommitted.compareTo(nextChanged.getKey()) < 0) {
+                    result = nextCommitted;
+                    nextCommitted = advanceCommitted();
+                } else {
+                    result = nextChanged.getKey();
+                    nextChanged = advanceChanged();
+                }
+                ++returned;
+                return result;
+            }
+        };
+    }
+
+    /**
+     * Committed keys which are not changed, then changed keys which are not removed.
+     * Keys are not sorted and not copied.
+     *
+     * @param removed - value which marks a removed key in changes
+     */
+    public static Iterator<String> overlay(Iterator<String> committed, Map<String, Storeable> changes,
+                                           Storeable removed) {
+        Iterator<Map.Entry<String, Storeable>> changed = changes.entrySet().iterator();
+        return new Iterator<String>() {
+            private String nextKey = advance();
+
+            private String advance() {
+                while (committed.hasNext()) {
+                    String oneKey = committed.next();
+                    if (!changes.containsKey(oneKey)) {
+                        return oneKey;
+                    }
+                }
+                while (changed.hasNext()) {
+                    Map.Entry<String, Storeable> oneChange = changed.next();
+                    if (oneChange.getValue() != removed) {
+                        return oneChange.getKey();
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return nextKey != null;
+            }
+
+            @Override
+            public String next() {
+                if (nextKey == null) {
+                    throw new NoSuchElementException();
+                }
+                String result = nextKey;
+                nextKey = advance();
+                return result;
+            }
+        };
+    }
+
+    /**
+     * Token of the page which starts after the key.
+     */
+    public static String toPageToken(String lastKey) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(lastKey.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * The least key of the page, keys after the last key of the previous page.
+     */
+    public static String fromPageToken(String pageToken) throws IllegalArgumentException {
+        try {
+            return new String(Base64.getUrlDecoder().decode(pageToken), StandardCharsets.UTF_8) + Character.MIN_VALUE;
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("wrong page token (" + pageToken + ")", e);
+        }
+    }
+}
@@ -0,0 +1,943 @@
+package ru.fizteh.fivt.students.titov.parallel.file_map;
+
+import ru.fizteh.fivt.storage.structured.Storeable;
+import ru.fizteh.fivt.storage.structured.TableProvider;
+import ru.fizteh.fivt.students.titov.parallel.storeable.AbstractStoreable;
+import ru.fizteh.fivt.students.titov.parallel.storeable.RowCodec;
+import ru.fizteh.fivt.students.titov.parallel.storeable.RowCodecs;
+import ru.fizteh.fivt.students.titov.parallel.storeable.TableSchema;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.text.ParseException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Table which keeps in memory only where the value of every key lies (keydir).
+ * Commit appends its changes to the data file data.N.log as one record of the
+ * write-ahead log format, values are read from mapped files and decoded by get.
+ * A data file is closed when it grows over SIZE_OF_FILE, a new one is started
+ * by the first commit after open. When old files hold more dead records than
+ * live ones, open copies the live values to new files and deletes the old ones.
+ *
+ * Transactions are checked at commit as in FileMap. A commit adds new locations
+ * of its keys in front of the old ones with its number, then publishes a State
+ * with that number, so readers see either all its changes or none. Old locations
+ * are kept while a transaction which pinned an older state may read them.
+ */
+public class KeydirTable implements StoredTable {
+    private static final String PREFIX_OF_FILE = "data.";
+    private static final String SUFFIX_OF_FILE = ".log";
+    private static final String SUFFIX_OF_TEMP = ".tmp";
+    private static final int SIZE_OF_FILE = 64 * 1024 * 1024;
+    private static final int MAX_NUMBER_OF_FILES = 16;
+    private static final Storeable TOMBSTONE = new AbstractStoreable(new Object[0], TableSchema.EMPTY);
+
+    private String directoryOfTable;
+    private TableSchema schema;
+    private TableProvider parent;
+    private TableOptions options;
+    private RowCodec codec;
+    private Map<String, Location> keydir;
+    private Map<Integer, DataFile> files;
+    private DataFile activeFile;
+    private volatile State state;
+    private Lock lockForCommit;
+    private ScheduledFuture<?> syncTask;
+    private ThreadLocal<KeydirTransaction> diff;
+    private Map<KeydirTransaction, Long> pinnedCommits;
+    private Deque<String> removedKeys;
+    private volatile NavigableSet<String> orderedKeys;
+
+    /**
+     * Number of the last commit and size seen by readers. Replaced as a whole by commit.
+     */
+    private static class State {
+        private final long lastCommit;
+        private final int size;
+
+        State(long newLastCommit, int newSize) {
+            lastCommit = newLastCommit;
+            size = newSize;
+        }
+    }
+
+    /**
+     * Place of a value set by one commit: data file, offset and length of the encoded
+     * value, length -1 for a removed key. Older locations of the key follow it.
+     */
+    private static class Location {
+        private final int numberOfFile;
+        private final int offset;
+        private final int length;
+        private final long numberOfCommit;
+        private final Location previous;
+
+        Location(int newNumberOfFile, int newOffset, int newLength, long newNumberOfCommit, Location newPrevious) {
+            numberOfFile = newNumberOfFile;
+            offset = newOffset;
+            length = newLength;
+            numberOfCommit = newNumberOfCommit;
+            previous = newPrevious;
+        }
+
+        Location withPrevious(Location newPrevious) {
+            return new Location(numberOfFile, offset, length, numberOfCommit, newPrevious);
+        }
+
+        boolean isSameValue(Location other) {
+            return other != null && numberOfFile == other.numberOfFile && offset == other.offset
+                    && length == other.length;
+        }
+    }
+
+    /**
+     * Data file, mapped again when a read goes past the mapped part.
+     */
+    private static class DataFile {
+        private final int number;
+        private final Path file;
+        private FileChannel channel;
+        private volatile ByteBuffer mapped;
+
+        DataFile(int newNumber, Path newFile) {
+            number = newNumber;
+            file = newFile;
+        }
+
+        byte[] read(Location location) throws IOException {
+            ByteBuffer data = mapped;
+            if (data == null || location.offset + location.length > data.capacity()) {
+                data = remap();
+            }
+            byte[] result = new byte[location.length];
+            ByteBuffer view = data.duplicate();
+            view.position(location.offset);
+            view.get(result);
+            return result;
+        }
+
+        private synchronized ByteBuffer remap() throws IOException {
+            try (FileChannel input = FileChannel.open(file)) {
+                mapped = input.map(MapMode.READ_ONLY, 0, input.size());
+            }
+            return mapped;
+        }
+
+        long size() throws IOException {
+            return Files.size(file);
+        }
+    }
+
+    /**
+     * Transaction over this table, as the one of FileMap: changes with TOMBSTONE for
+     * removed keys over a state pinned by the first read. Locations of committed
+     * values seen by the transaction are remembered in readData and checked by commit.
+     */
+    private class KeydirTransaction implements Transaction {
+        private HashMap<String, Storeable> changes = new HashMap<>();
+        private HashMap<String, Location> readData = new HashMap<>();
+        private int sizeDifference;
+        private State snapshot;
+        private boolean pinned;
+
+        /**
+         * Until the transaction reads or changes a key every call takes the latest state.
+         */
+        State getSnapshot() {
+            if (!pinned) {
+                snapshot = state;
+            }
+            return snapshot;
+        }
+
+        /**
+         * Takes the latest state and keeps its locations until unpin. Commits take the
+         * oldest pinned state under the same monitor, so they never drop what it needs.
+         */
+        void pin() {
+            synchronized (pinnedCommits) {
+                snapshot = state;
+                pinnedCommits.put(this, snapshot.lastCommit);
+            }
+            pinned = true;
+        }
+
+        void unpin() {
+            synchronized (pinnedCommits) {
+                pinnedCommits.remove(this);
+            }
+            pinned = false;
+        }
+
+        /**
+         * The first read pins the state until commit or rollback.
+         */
+        private Location getStable(String key) {
+            if (readData.containsKey(key)) {
+                return readData.get(key);
+            }
+            if (!pinned) {
+                pin();
+            }
+            Location result = getLocation(snapshot, key);
+            readData.put(key, result);
+            return result;
+        }
+
+        private Storeable getStableValue(String key) {
+            Location location = getStable(key);
+            return location == null ? null : read(key, location);
+        }
+
+        void clear() {
+            unpin();
+            changes.clear();
+            readData.clear();
+            sizeDifference = 0;
+            snapshot = null;
+        }
+
+        @Override
+        public Storeable get(String key) throws IllegalArgumentException {
+            if (key == null) {
+                throw new IllegalArgumentException("null argument");
+            }
+            Storeable changedValue = changes.get(key);
+            if (changedValue != null) {
+                return changedValue == TOMBSTONE ? null : changedValue;
+            }
+            return getStableValue(key);
+        }
+
+        @Override
+        public Storeable put(String key, Storeable value) throws IllegalArgumentException {
+            if (key == null || value == null) {
+                throw new IllegalArgumentException("null argument");
+            }
+            schema.check(value);
+            Storeable stableValue = getStableValue(key);
+            Storeable oldValue = changes.put(key, value);
+            if (oldValue == null) {
+                oldValue = stableValue;
+            } else if (oldValue == TOMBSTONE) {
+                oldValue = null;
+            }
+            if (oldValue == null) {
+                ++sizeDifference;
+            }
+            return oldValue;
+        }
+
+        @Override
+        public Storeable remove(String key) throws IllegalArgumentException {
+            if (key == null) {
+                throw new IllegalArgumentException("null argument");
+            }
+            Storeable stableValue = getStableValue(key);
+            Storeable oldValue = changes.containsKey(key) ? changes.get(key) : stableValue;
+            if (oldValue == null || oldValue == TOMBSTONE) {
+                return null;
+            }
+            if (stableValue == null) {
+                changes.remove(key);
+            } else {
+                changes.put(key, TOMBSTONE);
+            }
+            --sizeDifference;
+            return oldValue;
+        }
+
+        @Override
+        public int size() {
+            return getSnapshot().size + sizeDifference;
+        }
+
+        /**
+         * A transaction which is not pinned yet pins the state while the keys are listed.
+         */
+        @Override
+        public List<String> list() {
+            boolean pinnedForList = !pinned;
+            if (pinnedForList) {
+                pin();
+            }
+            try {
+                return listKeys(snapshot, changes);
+            } finally {
+                if (pinnedForList) {
+                    unpin();
+                }
+            }
+        }
+
+        @Override
+        public int getNumberOfUncommittedChanges() {
+            return changes.size();
+        }
+
+        @Override
+        public int commit() throws IOException {
+            try {
+                return commitTransaction(this);
+            } finally {
+                clear();
+            }
+        }
+
+        @Override
+        public int rollback() {
+            int result = changes.size();
+            clear();
+            return result;
+        }
+    }
+
+    /**
+     * @param newDirectory - directory of the table
+     * @param newSchema - types of columns (signature of table)
+     * @param newOptions - settings from signature.tsv
+     */
+    public KeydirTable(String newDirectory, TableSchema newSchema, TableProvider newParent,
+                       TableOptions newOptions) throws IOException {
+        directoryOfTable = newDirectory;
+        schema = newSchema;
+        parent = newParent;
+        options = newOptions;
+        codec = RowCodecs.forName(options.getCodecName());
+        if (options.isOrderedIndex()) {
+            keydir = new ConcurrentSkipListMap<>();
+        } else {
+            keydir = new ConcurrentHashMap<>();
+        }
+        orderedKeys = null;
+        files = new ConcurrentHashMap<>();
+        lockForCommit = new ReentrantLock();
+        diff = new ThreadLocal<>();
+        pinnedCommits = new WeakHashMap<>();
+        removedKeys = new ArrayDeque<>();
+        init();
+    }
+
+    @Override
+    public TableProvider getTableProvider() {
+        return parent;
+    }
+
+    @Override
+    public TableOptions getOptions() {
+        return options;
+    }
+
+    @Override
+    public String getName() {
+        return Paths.get(directoryOfTable).getFileName().toString();
+    }
+
+    @Override
+    public TableSchema getSchema() {
+        return schema;
+    }
+
+    @Override
+    public int getColumnsCount() {
+        return schema.getNumberOfColumns();
+    }
+
+    @Override
+    public Class<?> getColumnType(int columnIndex) throws IndexOutOfBoundsException {
+        return schema.getType(columnIndex);
+    }
+
+    /**
+     * Starts a transaction which is not bound to the calling thread.
+     * Methods of Table work with a separate transaction of every thread.
+     */
+    @Override
+    public Transaction begin() {
+        return new KeydirTransaction();
+    }
+
+    /**
+     * Transaction of the calling thread, made by its first read or change.
+     * Commit and rollback drop it.
+     */
+    private KeydirTransaction getTransactionOfThread() {
+        KeydirTransaction result = diff.get();
+        if (result == null) {
+            result = new KeydirTransaction();
+            diff.set(result);
+        }
+        return result;
+    }
+
+    @Override
+    public Storeable get(String key) throws IllegalArgumentException {
+        if (key == null) {
+            throw new IllegalArgumentException("null argument");
+        }
+        return getTransactionOfThread().get(key);
+    }
+
+    @Override
+    public Storeable put(String key, Storeable value) throws IllegalArgumentException {
+        return getTransactionOfThread().put(key, value);
+    }
+
+    @Override
+    public Storeable remove(String key) throws IllegalArgumentException {
+        return getTransactionOfThread().remove(key);
+    }
+
+    @Override
+    public int size() {
+        KeydirTransaction transaction = diff.get();
+        return transaction == null ? state.size : transaction.size();
+    }
+
+    @Override
+    public int getNumberOfUncommittedChanges() {
+        KeydirTransaction transaction = diff.get();
+        return transaction == null ? 0 : transaction.getNumberOfUncommittedChanges();
+    }
+
+    @Override
+    public int rollback() {
+        KeydirTransaction transaction = diff.get();
+        if (transaction == null) {
+            return 0;
+        }
+        try {
+            return transaction.rollback();
+        } finally {
+            diff.remove();
+        }
+    }
+
+    @Override
+    public int commit() throws IOException {
+        KeydirTransaction transaction = diff.get();
+        if (transaction == null) {
+            return 0;
+        }
+        try {
+            return transaction.commit();
+        } finally {
+            diff.remove();
+        }
+    }
+
+    /**
+     * Checks the locations read by the transaction, appends its changes to the active
+     * data file and publishes them as the next commit.
+     *
+     * @throws TransactionConflictException if another transaction has committed
+     * a key after this one has seen it
+     */
+    private int commitTransaction(KeydirTransaction transaction) throws IOException {
+        Map<String, Storeable> changes = transaction.changes;
+        if (changes.isEmpty()) {
+            return 0;
+        }
+        byte[] payload = ChangeRecords.encode(this, codec, changes, TOMBSTONE);
+        ByteBuffer record = WriteAheadLog.toRecord(payload);
+        try {
+            lockForCommit.lock();
+            State current = state;
+            for (Map.Entry<String, Location> oneRead : transaction.readData.entrySet()) {
+                Location committed = getLocation(current, oneRead.getKey());
+                if (committed == null ? oneRead.getValue() != null : !committed.isSameValue(oneRead.getValue())) {
+                    throw new TransactionConflictException(oneRead.getKey());
+                }
+            }
+            if (activeFile == null || activeFile.channel.size() + record.remaining() > SIZE_OF_FILE) {
+                rollActiveFile();
+            }
+            long position = activeFile.channel.size();
+            while (record.hasRemaining()) {
+                activeFile.channel.write(record);
+            }
+            if (options.getDurability().equals(TableOptions.DURABILITY_ON_COMMIT)) {
+                activeFile.channel.force(false);
+            }
+            long oldestCommit = getOldestPinnedCommit(current.lastCommit);
+            int difference = applyRecord(activeFile.number, payload,
+                    (int) position + record.capacity() - payload.length, current.lastCommit + 1, oldestCommit);
+            state = new State(current.lastCommit + 1, current.size + difference);
+            dropRemovedKeys(oldestCommit);
+        } finally {
+            lockForCommit.unlock();
+        }
+        return changes.size();
+    }
+
+    @Override
+    public List<String> list() {
+        KeydirTransaction transaction = diff.get();
+        return (transaction == null ? new KeydirTransaction() : transaction).list();
+    }
+
+    private List<String> listKeys(State current, Map<String, Storeable> changes) {
+        List<String> result = new ArrayList<>();
+        for (Map.Entry<String, Location> oneEntry : keydir.entrySet()) {
+            if (!changes.containsKey(oneEntry.getKey()) && visibleAt(oneEntry.getValue(), current.lastCommit) != null) {
+                result.add(oneEntry.getKey());
+            }
+        }
+        for (Map.Entry<String, Storeable> oneChange : changes.entrySet()) {
+            if (oneChange.getValue() != TOMBSTONE) {
+                result.add(oneChange.getKey());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * With the ordered index the keydir is sorted itself, otherwise its keys are sorted
+     * by the first scan and kept sorted by commits.
+     */
+    @Override
+    public Iterator<String> scan(String fromKey, String toKey, int limit) throws IllegalArgumentException {
+        KeyRanges.checkScan(limit);
+        KeydirTransaction transaction = diff.get();
+        Map<String, Storeable> changes = transaction == null ? Collections.emptyMap() : transaction.changes;
+        NavigableSet<String> sortedKeys;
+        if (keydir instanceof ConcurrentSkipListMap) {
+            sortedKeys = ((ConcurrentSkipListMap<String, Location>) keydir).navigableKeySet();
+        } else {
+            sortedKeys = getOrderedKeys();
+        }
+        Iterator<String> committed = committedKeys(KeyRanges.subSet(sortedKeys, fromKey, toKey).iterator());
+        return KeyRanges.merge(committed, changes, TOMBSTONE, fromKey, toKey, limit);
+    }
+
+    /**
+     * Sorted keys of the keydir, built under the lock of commits, which change the keydir.
+     */
+    private NavigableSet<String> getOrderedKeys() {
+        NavigableSet<String> result = orderedKeys;
+        if (result != null) {
+            return result;
+        }
+        try {
+            lockForCommit.lock();
+            if (orderedKeys == null) {
+                orderedKeys = new ConcurrentSkipListSet<>(keydir.keySet());
+            }
+            return orderedKeys;
+        } finally {
+            lockForCommit.unlock();
+        }
+    }
+
+    @Override
+    public Iterator<String> keys() {
+        KeydirTransaction transaction = diff.get();
+        Map<String, Storeable> changes = transaction == null ? Collections.emptyMap() : transaction.changes;
+        return KeyRanges.overlay(committedKeys(keydir.keySet().iterator()), changes, TOMBSTONE);
+    }
+
+    /**
+     * Keys committed in the latest state at the moment each of them is checked.
+     */
+    private Iterator<String> committedKeys(Iterator<String> keys) {
+        return new Iterator<String>() {
+            private String nextKey = advance();
+
+            private String advance() {
+                while (keys.hasNext()) {
+                    String oneKey = keys.next();
+                    if (getLatestLocation(oneKey) != null) {
+                        return oneKey;
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return nextKey != null;
+            }
+
+            @Override
+            public String next() {
+                if (nextKey == null) {
+                    throw new NoSuchElementException();
+                }
+                String result = nextKey;
+                nextKey = advance();
+                return result;
+            }
+        };
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (syncTask != null) {
+            syncTask.cancel(false);
+            syncTask = null;
+        }
+        try {
+            lockForCommit.lock();
+            if (activeFile == null) {
+                return;
+            }
+            if (!options.getDurability().equals(TableOptions.DURABILITY_NONE)) {
+                activeFile.channel.force(false);
+            }
+            activeFile.channel.close();
+            activeFile = null;
+        } finally {
+            lockForCommit.unlock();
+        }
+    }
+
+    @Override
+    public void discard() throws IOException {
+        if (syncTask != null) {
+            syncTask.cancel(false);
+            syncTask = null;
+        }
+        try {
+            lockForCommit.lock();
+            if (activeFile != null) {
+                activeFile.channel.close();
+                activeFile = null;
+            }
+        } finally {
+            lockForCommit.unlock();
+        }
+    }
+
+    /**
+     * Location of the value of the key in a pinned state, null if the key has no value there.
+     */
+    private Location getLocation(State current, String key) {
+        return visibleAt(keydir.get(key), current.lastCommit);
+    }
+
+    /**
+     * Location of the last committed value without pinning. The state is taken after the
+     * locations of the key: a commit publishes its state after its locations, and keeps
+     * the old location for the state it starts from, so the state is never older than
+     * every location still there.
+     */
+    private Location getLatestLocation(String key) {
+        Location location = keydir.get(key);
+        return visibleAt(location, state.lastCommit);
+    }
+
+    private static Location visibleAt(Location location, long lastCommit) {
+        Location result = location;
+        while (result != null && result.numberOfCommit > lastCommit) {
+            result = result.previous;
+        }
+        return result == null || result.length < 0 ? null : result;
+    }
+
+    /**
+     * Locations of keys are copied while the state is pinned, values are read later.
+     * Data files are only appended until the next start, so the values stay in place.
+     */
+    @Override
+    public Iterator<Map.Entry<String, Storeable>> snapshotRows() {
+        Map<String, Location> snapshot = new HashMap<>();
+        KeydirTransaction reader = new KeydirTransaction();
+        reader.pin();
+        try {
+            for (Map.Entry<String, Location> oneEntry : keydir.entrySet()) {
+                Location location = visibleAt(oneEntry.getValue(), reader.snapshot.lastCommit);
+                if (location != null) {
+                    snapshot.put(oneEntry.getKey(), location);
+                }
+            }
+        } finally {
+            reader.unpin();
+        }
+        Iterator<Map.Entry<String, Location>> locations = snapshot.entrySet().iterator();
+        return new Iterator<Map.Entry<String, Storeable>>() {
+            @Override
+            public boolean hasNext() {
+                return locations.hasNext();
+            }
+
+            @Override
+            public Map.Entry<String, Storeable> next() {
+                Map.Entry<String, Location> oneLocation = locations.next();
+                return new AbstractMap.SimpleImmutableEntry<>(oneLocation.getKey(),
+                        read(oneLocation.getKey(), oneLocation.getValue()));
+            }
+        };
+    }
+
+    private Storeable read(String key, Location location) {
+        try {
+            return codec.decode(this, files.get(location.numberOfFile).read(location));
+        } catch (IOException | ParseException e) {
+            throw new IllegalStateException("can't read value of " + key + " from " + getName(), e);
+        }
+    }
+
+    /**
+     * Puts locations of the record in front of the old ones of its keys, offsetOfPayload
+     * is the offset in the data file. Old locations not needed by states from oldestCommit
+     * on are dropped. Called under lockForCommit or by init.
+     *
+     * @return how the number of keys changes
+     */
+    private int applyRecord(int numberOfFile, byte[] payload, int offsetOfPayload, long numberOfCommit,
+                            long oldestCommit) throws BadFileException {
+        int difference = 0;
+        try {
+            ByteBuffer input = ByteBuffer.wrap(payload);
+            int numberOfChanges = input.getInt();
+            for (int i = 0; i < numberOfChanges; ++i) {
+                byte[] keyByte = new byte[input.getInt()];
+                input.get(keyByte);
+                String key = new String(keyByte, StandardCharsets.UTF_8);
+                int length = input.getInt();
+                Location oldLocation = keydir.get(key);
+                boolean existed = visibleAt(oldLocation, numberOfCommit - 1) != null;
+                Location previous = oldestCommit >= numberOfCommit ? null : dropOld(oldLocation, oldestCommit);
+                NavigableSet<String> keys = orderedKeys;
+                if (length < 0) {
+                    if (previous == null) {
+                        keydir.remove(key);
+                        if (keys != null) {
+                            keys.remove(key);
+                        }
+                    } else {
+                        keydir.put(key, new Location(numberOfFile, 0, -1, numberOfCommit, previous));
+                        removedKeys.add(key);
+                    }
+                    difference -= existed ? 1 : 0;
+                } else {
+                    keydir.put(key, new Location(numberOfFile, offsetOfPayload + input.position(), length,
+                            numberOfCommit, previous));
+                    if (keys != null) {
+                        keys.add(key);
+                    }
+                    input.position(input.position() + length);
+                    difference += existed ? 0 : 1;
+                }
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new BadFileException(e);
+        }
+        return difference;
+    }
+
+    /**
+     * Locations which a state from oldestCommit on may see, null if there are none.
+     */
+    private static Location dropOld(Location location, long oldestCommit) {
+        if (location == null) {
+            return null;
+        }
+        if (location.numberOfCommit <= oldestCommit) {
+            if (location.length < 0) {
+                return null;
+            }
+            return location.previous == null ? location : location.withPrevious(null);
+        }
+        Location previous = dropOld(location.previous, oldestCommit);
+        return previous == location.previous ? location : location.withPrevious(previous);
+    }
+
+    /**
+     * Number of the oldest commit a pinned state sees, lastCommit if nothing is pinned.
+     * Transactions dropped without commit or rollback are forgotten by the weak map.
+     */
+    private long getOldestPinnedCommit(long lastCommit) {
+        long result = lastCommit;
+        synchronized (pinnedCommits) {
+            for (long oneCommit : pinnedCommits.values()) {
+                result = Math.min(result, oneCommit);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Forgets removed keys which no pinned state sees any more.
+     */
+    private void dropRemovedKeys(long oldestCommit) {
+        while (!removedKeys.isEmpty()) {
+            String key = removedKeys.peek();
+            Location location = keydir.get(key);
+            if (location != null && location.length < 0) {
+                if (location.numberOfCommit > oldestCommit) {
+                    return;
+                }
+                if (keydir.remove(key, location) && orderedKeys != null) {
+                    orderedKeys.remove(key);
+                }
+            }
+            removedKeys.poll();
+        }
+    }
+
+    /**
+     * Starts a new data file after all the others. Called by the first commit after
+     * open and when the active file is full.
+     */
+    private void rollActiveFile() throws IOException {
+        if (activeFile != null) {
+            activeFile.channel.force(false);
+            activeFile.channel.close();
+        }
+        int number = activeFile == null ? 0 : activeFile.number + 1;
+        for (int oneNumber : files.keySet()) {
+            number = Math.max(number, oneNumber + 1);
+        }
+        DataFile newFile = new DataFile(number, getPathOfFile(number));
+        newFile.channel = FileChannel.open(newFile.file, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        files.put(number, newFile);
+        activeFile = newFile;
+    }
+
+    private Path getPathOfFile(int number) {
+        return Paths.get(directoryOfTable, PREFIX_OF_FILE + number + SUFFIX_OF_FILE);
+    }
+
+    private List<Integer> listFiles() throws IOException {
+        List<Integer> result = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(Paths.get(directoryOfTable),
+                PREFIX_OF_FILE + "*" + SUFFIX_OF_FILE)) {
+            for (Path oneFile : stream) {
+                String name = oneFile.getFileName().toString();
+                try {
+                    result.add(Integer.parseInt(name.substring(PREFIX_OF_FILE.length(),
+                            name.length() - SUFFIX_OF_FILE.length())));
+                } catch (NumberFormatException e) {
+                    //not a data file
+                }
+            }
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    /**
+     * Reads all data files in the order they were written. A record cut by
+     * a crash can only be at the end of a file, it is dropped.
+     */
+    private void init() throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(Paths.get(directoryOfTable),
+                "*" + SUFFIX_OF_TEMP)) {
+            for (Path oneFile : stream) {
+                Files.delete(oneFile);
+            }
+        }
+        long sizeOfFiles = 0;
+        long numberOfCommit = 0;
+        int size = 0;
+        for (int oneNumber : listFiles()) {
+            DataFile oneFile = new DataFile(oneNumber, getPathOfFile(oneNumber));
+            if (oneFile.size() == 0) {
+                Files.delete(oneFile.file);
+                continue;
+            }
+            files.put(oneNumber, oneFile);
+            sizeOfFiles += oneFile.size();
+            ByteBuffer data = oneFile.remap().duplicate();
+            while (data.hasRemaining()) {
+                byte[] payload = WriteAheadLog.readRecord(data);
+                if (payload == null) {
+                    break;
+                }
+                ++numberOfCommit;
+                size += applyRecord(oneNumber, payload, data.position() - payload.length, numberOfCommit,
+                        numberOfCommit);
+            }
+        }
+        state = new State(numberOfCommit, size);
+        long sizeOfValues = 0;
+        for (Location oneLocation : keydir.values()) {
+            sizeOfValues += oneLocation.length;
+        }
+        if (files.size() > MAX_NUMBER_OF_FILES || files.size() > 1 && sizeOfFiles > 2 * sizeOfValues) {
+            merge();
+        }
+        if (options.getDurability().equals(TableOptions.DURABILITY_PERIODIC)) {
+            syncTask = BackgroundWorker.schedule(() -> {
+                try {
+                    lockForCommit.lock();
+                    if (activeFile != null) {
+                        activeFile.channel.force(false);
+                    }
+                } catch (IOException e) {
+                    System.err.println("error while sync of " + getName());
+                } finally {
+                    lockForCommit.unlock();
+                }
+            }, options.getSyncInterval());
+        }
+    }
+
+    /**
+     * Copies live values to new data files and deletes the old ones. New files
+     * are numbered after the old ones and are on disk before anything is deleted,
+     * old files are deleted from the oldest, so a crash during the deletion leaves
+     * files which are read to the same keydir: a removal is never lost while
+     * an older value of its key is kept.
+     */
+    private void merge() throws IOException {
+        List<DataFile> oldFiles = new ArrayList<>(files.values());
+        oldFiles.sort((first, second) -> Integer.compare(first.number, second.number));
+        int number = 0;
+        for (DataFile oneFile : oldFiles) {
+            number = Math.max(number, oneFile.number + 1);
+        }
+        Map<String, Location> newKeydir = new HashMap<>();
+        Iterator<Map.Entry<String, Location>> entries = keydir.entrySet().iterator();
+        while (entries.hasNext()) {
+            int numberOfFile = number++;
+            Path tempFile = Paths.get(directoryOfTable, PREFIX_OF_FILE + numberOfFile + SUFFIX_OF_TEMP);
+            try (FileChannel output = FileChannel.open(tempFile, StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.WRITE)) {
+                long position = 0;
+                while (entries.hasNext() && position < SIZE_OF_FILE) {
+                    Map.Entry<String, Location> oneEntry = entries.next();
+                    Location oneLocation = oneEntry.getValue();
+                    byte[] value = files.get(oneLocation.numberOfFile).read(oneLocation);
+                    byte[] keyByte = oneEntry.getKey().getBytes(StandardCharsets.UTF_8);
+                    ByteBuffer payload = ByteBuffer.allocate(12 + keyByte.length + value.length);
+                    payload.putInt(1).putInt(keyByte.length).put(keyByte).putInt(value.length).put(value);
+                    ByteBuffer record = WriteAheadLog.toRecord(payload.array());
+                    int offset = (int) position + record.capacity() - value.length;
+                    while (record.hasRemaining()) {
+                        position += output.write(record);
+                    }
+                    newKeydir.put(oneEntry.getKey(), new Location(numberOfFile, offset, value.length, 0, null));
+                }
+                output.force(false);
+            }
+            Files.move(tempFile, getPathOfFile(numberOfFile), StandardCopyOption.ATOMIC_MOVE);
+            files.put(numberOfFile, new DataFile(numberOfFile, getPathOfFile(numberOfFile)));
+        }
+        FileMap.forceDirectory(Paths.get(directoryOfTable));
+        keydir.putAll(newKeydir);
+        for (DataFile oneFile : oldFiles) {
+            files.remove(oneFile.number);
+            Files.delete(oneFile.file);
+        }
+    }
+}
@@ -1,16 +1,50 @@
 package ru.fizteh.fivt.students.titov.parallel.file_map;
 
-import java.util.List;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Iterator;
 
+/**
+ * list - all keys, list prefix - keys with the prefix in order,
+ * list from to - keys from "from" inclusive to "to" exclusive in order.
+ * Keys are written as they are read, the list is never built in memory.
+ */
 public class ListFileMapCommand extends FileMapCommand {
     public ListFileMapCommand() {
-        initialize("list", 1);
+        initialize("list", -1);
     }
 
     @Override
-    public boolean run(FileMap fileMap, String[] args) {
-        List<String> allKeys = fileMap.list();
-        System.out.println(String.join(", ", allKeys));
+    public boolean run(StoredTable fileMap, String[] args) {
+        Iterator<String> keys;
+        if (args.length == 1) {
+            keys = fileMap.keys();
+        } else if (args.length == 2) {
+            keys = fileMap.prefixScan(args[1]);
+        } else if (args.length == 3) {
+            keys = fileMap.scan(args[1], args[2], Integer.MAX_VALUE);
+        } else {
+            System.err.println(name + ": wrong number of arguments");
+            return false;
+        }
+        try {
+            Writer output = new BufferedWriter(new OutputStreamWriter(System.out));
+            boolean first = true;
+            while (keys.hasNext()) {
+                if (!first) {
+                    output.write(", ");
+                }
+                output.write(keys.next());
+                first = false;
+            }
+            output.write(System.lineSeparator());
+            output.flush();
+        } catch (IOException e) {
+            System.err.println(name + ": " + e.getMessage());
+            return false;
+        }
         return true;
     }
 }
@@ -0,0 +1,1074 @@
+package ru.fizteh.fivt.students.titov.parallel.file_map;
+
+import ru.fizteh.fivt.storage.structured.Storeable;
+import ru.fizteh.fivt.storage.structured.TableProvider;
+import ru.fizteh.fivt.students.titov.parallel.storeable.AbstractStoreable;
+import ru.fizteh.fivt.students.titov.parallel.storeable.RowCodec;
+import ru.fizteh.fivt.students.titov.parallel.storeable.RowCodecs;
+import ru.fizteh.fivt.students.titov.parallel.storeable.TableSchema;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.text.ParseException;
+import java.util.*;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Table for write-heavy loads. Commit appends its changes to the write-ahead log
+ * and puts them into a sorted map in memory (memtable). A full memtable is written
+ * in background as an immutable sorted run of level 0. Runs are merged by leveled
+ * compaction: level 0 runs may overlap, runs of every next level don't overlap and
+ * the level holds ten times more bytes than the previous one.
+ *
+ * Only one memtable is written at a time, commits wait for it, so memory does not
+ * grow with the table. Reads look at memtables, then runs from new to old.
+ *
+ * Transactions are checked at commit as in FileMap. Every commit adds versions of its
+ * keys to the memtable, then publishes a new State with its number, versions of
+ * later commits are not seen by readers of an older State.
+ */
+public class LsmTable implements StoredTable {
+    private static final String MANIFEST_FILE = "lsm.tsv";
+    private static final String PREFIX_OF_RUN = "run.";
+    private static final String SUFFIX_OF_RUN = ".sst";
+    private static final String SUFFIX_OF_TEMP = ".tmp";
+    private static final int MAX_RUNS_IN_FIRST_LEVEL = 4;
+    private static final int SIZE_OF_RUN = 2 * 1024 * 1024;
+    private static final long SIZE_OF_SECOND_LEVEL = 10 * 1024 * 1024;
+    private static final int LEVEL_RATIO = 10;
+    private static final Storeable TOMBSTONE = new AbstractStoreable(new Object[0], TableSchema.EMPTY);
+    private static final byte[] PRESENT = new byte[0];
+
+    private String directoryOfTable;
+    private TableSchema schema;
+    private TableProvider parent;
+    private TableOptions options;
+    private RowCodec codec;
+    private volatile State state;
+    private int sizeOfRuns;
+    private long nextNumberOfRun;
+    private int sizeOfFlushingMemtable;
+    private long segmentOfMemtable;
+    private int versionsInMemtable;
+    private Lock lockForCommit;
+    private Condition flushFinished;
+    private Lock lockForState;
+    private IOException flushError;
+    private WriteAheadLog log;
+    private Future<?> backgroundWork;
+    private ScheduledFuture<?> syncTask;
+    private ThreadLocal<LsmTransaction> diff;
+
+    /**
+     * Memtables, runs, number of the last commit and size seen by readers.
+     * Replaced as a whole by commit, flush and compaction.
+     */
+    private static class State {
+        private final ConcurrentNavigableMap<String, Change> memtable;
+        private final ConcurrentNavigableMap<String, Change> flushingMemtable;
+        private final List<List<SortedRun>> levels;
+        private final long lastCommit;
+        private final int size;
+
+        State(ConcurrentNavigableMap<String, Change> newMemtable,
+              ConcurrentNavigableMap<String, Change> newFlushingMemtable, List<List<SortedRun>> newLevels,
+              long newLastCommit, int newSize) {
+            memtable = newMemtable;
+            flushingMemtable = newFlushingMemtable;
+            levels = newLevels;
+            lastCommit = newLastCommit;
+            size = newSize;
+        }
+    }
+
+    /**
+     * Value of a key set by one commit, TOMBSTONE for a removed key, with the
+     * version of the same memtable it replaced.
+     */
+    private static class Change {
+        private final Storeable value;
+        private final long numberOfCommit;
+        private final Change previous;
+
+        Change(Storeable newValue, long newNumberOfCommit, Change newPrevious) {
+            value = newValue;
+            numberOfCommit = newNumberOfCommit;
+            previous = newPrevious;
+        }
+    }
+
+    /**
+     * Transaction over this table, as the one of FileMap: changes with TOMBSTONE for
+     * removed keys over a state pinned by the first read. Committed values seen by
+     * the transaction are remembered in readData and checked again by commit.
+     */
+    private class LsmTransaction implements Transaction {
+        private HashMap<String, Storeable> changes = new HashMap<>();
+        private HashMap<String, Storeable> readData = new HashMap<>();
+        private int sizeDifference;
+        private State snapshot;
+
+        /**
+         * Until the transaction reads or changes a key every call takes the latest state.
+         */
+        State getSnapshot() {
+            if (changes.isEmpty() && readData.isEmpty()) {
+                snapshot = state;
+            }
+            return snapshot;
+        }
+
+        private Storeable getStable(String key) {
+            State currentSnapshot = getSnapshot();
+            if (readData.containsKey(key)) {
+                return readData.get(key);
+            }
+            Storeable result = getCommitted(currentSnapshot, key);
+            readData.put(key, result);
+            return result;
+        }
+
+        void clear() {
+            changes.clear();
+            readData.clear();
+            sizeDifference = 0;
+            snapshot = null;
+        }
+
+        @Override
+        public Storeable get(String key) throws IllegalArgumentException {
+            if (key == null) {
+                throw new IllegalArgumentException("null argument");
+            }
+            Storeable changedValue = changes.get(key);
+            if (changedValue != null) {
+                return changedValue == TOMBSTONE ? null : changedValue;
+            }
+            return getStable(key);
+        }
+
+        @Override
+        public Storeable put(String key, Storeable value) throws IllegalArgumentException {
+            if (key == null || value == null) {
+                throw new IllegalArgumentException("null argument");
+            }
+            schema.check(value);
+            Storeable stableValue = getStable(key);
+            Storeable oldValue = changes.put(key, value);
+            if (oldValue == null) {
+                oldValue = stableValue;
+            } else if (oldValue == TOMBSTONE) {
+                oldValue = null;
+            }
+            if (oldValue == null) {
+                ++sizeDifference;
+            }
+            return oldValue;
+        }
+
+        @Override
+        public Storeable remove(String key) throws IllegalArgumentException {
+            if (key == null) {
+                throw new IllegalArgumentException("null argument");
+            }
+            Storeable stableValue = getStable(key);
+            Storeable oldValue = changes.containsKey(key) ? changes.get(key) : stableValue;
+            if (oldValue == null || oldValue == TOMBSTONE) {
+                return null;
+            }
+            if (stableValue == null) {
+                changes.remove(key);
+            } else {
+                changes.put(key, TOMBSTONE);
+            }
+            --sizeDifference;
+            return oldValue;
+        }
+
+        @Override
+        public int size() {
+            return getSnapshot().size + sizeDifference;
+        }
+
+        @Override
+        public List<String> list() {
+            return listKeys(getSnapshot(), changes);
+        }
+
+        @Override
+        public int getNumberOfUncommittedChanges() {
+            return changes.size();
+        }
+
+        @Override
+        public int commit() throws IOException {
+            try {
+                return commitTransaction(this);
+            } finally {
+                clear();
+            }
+        }
+
+        @Override
+        public int rollback() {
+            int result = changes.size();
+            clear();
+            return result;
+        }
+    }
+
+    /**
+     * @param newDirectory - directory of the table
+     * @param newSchema - types of columns (signature of table)
+     * @param newOptions - settings from signature.tsv
+     */
+    public LsmTable(String newDirectory, TableSchema newSchema, TableProvider newParent,
+                    TableOptions newOptions) throws IOException {
+        directoryOfTable = newDirectory;
+        schema = newSchema;
+        parent = newParent;
+        options = newOptions;
+        codec = RowCodecs.forName(options.getCodecName());
+        lockForCommit = new ReentrantLock();
+        flushFinished = lockForCommit.newCondition();
+        lockForState = new ReentrantLock();
+        diff = new ThreadLocal<>();
+        init();
+    }
+
+    public TableProvider getTableProvider() {
+        return parent;
+    }
+
+    @Override
+    public TableOptions getOptions() {
+        return options;
+    }
+
+    @Override
+    public String getName() {
+        return Paths.get(directoryOfTable).getFileName().toString();
+    }
+
+    @Override
+    public TableSchema getSchema() {
+        return schema;
+    }
+
+    @Override
+    public int getColumnsCount() {
+        return schema.getNumberOfColumns();
+    }
+
+    @Override
+    public Class<?> getColumnType(int columnIndex) throws IndexOutOfBoundsException {
+        return schema.getType(columnIndex);
+    }
+
+    /**
+     * Starts a transaction which is not bound to the calling thread.
+     * Methods of Table work with a separate transaction of every thread.
+     */
+    @Override
+    public Transaction begin() {
+        return new LsmTransaction();
+    }
+
+    /**
+     * Transaction of the calling thread, made by its first read or change.
+     * Commit and rollback drop it.
+     */
+    private LsmTransaction getTransactionOfThread() {
+        LsmTransaction result = diff.get();
+        if (result == null) {
+            result = new LsmTransaction();
+            diff.set(result);
+        }
+        return result;
+    }
+
+    @Override
+    public Storeable get(String key) throws IllegalArgumentException {
+        if (key == null) {
+            throw new IllegalArgumentException("null argument");
+        }
+        return getTransactionOfThread().get(key);
+    }
+
+    @Override
+    public Storeable put(String key, Storeable value) throws IllegalArgumentException {
+        return getTransactionOfThread().put(key, value);
+    }
+
+    @Override
+    public Storeable remove(String key) throws IllegalArgumentException {
+        return getTransactionOfThread().remove(key);
+    }
+
+    @Override
+    public int size() {
+        LsmTransaction transaction = diff.get();
+        return transaction == null ? state.size : transaction.size();
+    }
+
+    @Override
+    public int getNumberOfUncommittedChanges() {
+        LsmTransaction transaction = diff.get();
+        return transaction == null ? 0 : transaction.getNumberOfUncommittedChanges();
+    }
+
+    @Override
+    public int rollback() {
+        LsmTransaction transaction = diff.get();
+        if (transaction == null) {
+            return 0;
+        }
+        try {
+            return transaction.rollback();
+        } finally {
+            diff.remove();
+        }
+    }
+
+    @Override
+    public int commit() throws IOException {
+        LsmTransaction transaction = diff.get();
+        if (transaction == null) {
+            return 0;
+        }
+        try {
+            return transaction.commit();
+        } finally {
+            diff.remove();
+        }
+    }
+
+    /**
+     * Checks the values read by the transaction, appends its changes to the log, adds
+     * them to the memtable as versions of the next commit and publishes the new state.
+     *
+     * @throws TransactionConflictException if another transaction has committed
+     * a key after this one has seen it
+     */
+    private int commitTransaction(LsmTransaction transaction) throws IOException {
+        Map<String, Storeable> changes = transaction.changes;
+        if (changes.isEmpty()) {
+            return 0;
+        }
+        byte[] record = ChangeRecords.encode(this, codec, changes, TOMBSTONE);
+        try {
+            lockForCommit.lock();
+            State current = state;
+            for (Map.Entry<String, Storeable> oneRead : transaction.readData.entrySet()) {
+                if (!isSameValue(oneRead.getValue(), getCommitted(current, oneRead.getKey()))) {
+                    throw new TransactionConflictException(oneRead.getKey());
+                }
+            }
+            long end = log.append(record);
+            if (options.getDurability().equals(TableOptions.DURABILITY_ON_COMMIT)) {
+                log.sync(end);
+            }
+            long numberOfCommit = current.lastCommit + 1;
+            ConcurrentNavigableMap<String, Change> memtable = current.memtable;
+            for (Map.Entry<String, Storeable> oneChange : changes.entrySet()) {
+                memtable.put(oneChange.getKey(),
+                        new Change(oneChange.getValue(), numberOfCommit, memtable.get(oneChange.getKey())));
+            }
+            versionsInMemtable += changes.size();
+            try {
+                lockForState.lock();
+                State latest = state;
+                state = new State(latest.memtable, latest.flushingMemtable, latest.levels, numberOfCommit,
+                        latest.size + transaction.sizeDifference);
+            } finally {
+                lockForState.unlock();
+            }
+            if (versionsInMemtable >= options.getMemtableSize()) {
+                switchMemtable();
+            }
+        } finally {
+            lockForCommit.unlock();
+        }
+        return changes.size();
+    }
+
+    /**
+     * Values read from runs are decoded again by every read, so they are compared by their encoding.
+     */
+    private boolean isSameValue(Storeable first, Storeable second) {
+        if (first == second) {
+            return true;
+        }
+        if (first == null || second == null) {
+            return false;
+        }
+        return Arrays.equals(codec.encode(this, first), codec.encode(this, second));
+    }
+
+    @Override
+    public List<String> list() {
+        LsmTransaction transaction = diff.get();
+        return transaction == null ? listKeys(state, Collections.emptyMap()) : transaction.list();
+    }
+
+    private List<String> listKeys(State current, Map<String, Storeable> changes) {
+        List<String> result = new ArrayList<>();
+        Iterator<SortedRun.Entry> committed = iterator(current, null);
+        while (committed.hasNext()) {
+            SortedRun.Entry oneEntry = committed.next();
+            if (oneEntry.getValue() != null && !changes.containsKey(oneEntry.getKey())) {
+                result.add(oneEntry.getKey());
+            }
+        }
+        for (Map.Entry<String, Storeable> oneChange : changes.entrySet()) {
+            if (oneChange.getValue() != TOMBSTONE) {
+                result.add(oneChange.getKey());
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public Iterator<String> scan(String fromKey, String toKey, int limit) throws IllegalArgumentException {
+        KeyRanges.checkScan(limit);
+        LsmTransaction transaction = diff.get();
+        Iterator<SortedRun.Entry> entries = iterator(transaction == null ? state : transaction.getSnapshot(), fromKey);
+        Iterator<String> committed = new Iterator<String>() {
+            private String nextKey = advance();
+
+            private String advance() {
+                while (entries.hasNext()) {
+                    SortedRun.Entry oneEntry = entries.next();
+                    if (!KeyRanges.isBeforeEnd(oneEntry.getKey(), toKey)) {
+                        return null;
+                    }
+                    if (oneEntry.getValue() != null) {
+                        return oneEntry.getKey();
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return nextKey != null;
+            }
+
+            @Override
+            public String next() {
+                if (nextKey == null) {
+                    throw new NoSuchElementException();
+                }
+                String result = nextKey;
+                nextKey = advance();
+                return result;
+            }
+        };
+        Map<String, Storeable> changes = transaction == null ? Collections.emptyMap() : transaction.changes;
+        return KeyRanges.merge(committed, changes, TOMBSTONE, fromKey, toKey, limit);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (syncTask != null) {
+            syncTask.cancel(false);
+            syncTask = null;
+        }
+        try {
+            lockForCommit.lock();
+            if (log == null) {
+                return;
+            }
+            if (!state.memtable.isEmpty()) {
+                switchMemtable();
+            }
+            waitForBackgroundWork();
+            if (state.flushingMemtable != null) {
+                throw new IOException("can't write memtable of " + getName(), flushError);
+            }
+            log.close();
+            log = null;
+        } finally {
+            lockForCommit.unlock();
+        }
+    }
+
+    /**
+     * A flush which is running is waited for, so no file is written into the removed directory.
+     */
+    @Override
+    public void discard() throws IOException {
+        if (syncTask != null) {
+            syncTask.cancel(false);
+            syncTask = null;
+        }
+        try {
+            lockForCommit.lock();
+            if (log == null) {
+                return;
+            }
+            waitForBackgroundWork();
+            log.close();
+            log = null;
+        } finally {
+            lockForCommit.unlock();
+        }
+    }
+
+    private Storeable getCommitted(State current, String key) {
+        Storeable result = valueAt(current.memtable.get(key), current.lastCommit);
+        if (result == null && current.flushingMemtable != null) {
+            result = valueAt(current.flushingMemtable.get(key), current.lastCommit);
+        }
+        if (result != null) {
+            return result == TOMBSTONE ? null : result;
+        }
+        for (List<SortedRun> oneLevel : current.levels) {
+            for (SortedRun oneRun : oneLevel) {
+                SortedRun.Entry found = oneRun.get(key);
+                if (found != null) {
+                    return decode(found);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Value set by the last of the versions which is not later than the commit,
+     * null if the memtable has no such version.
+     */
+    private static Storeable valueAt(Change change, long lastCommit) {
+        Change result = change;
+        while (result != null && result.numberOfCommit > lastCommit) {
+            result = result.previous;
+        }
+        return result == null ? null : result.value;
+    }
+
+    /**
+     * Versions of later commits in the memtable are skipped, so the state is the snapshot.
+     * Files of runs replaced by compaction stay mapped while they are read.
+     */
+    @Override
+    public Iterator<Map.Entry<String, Storeable>> snapshotRows() throws IOException {
+        State snapshot = state;
+        Iterator<SortedRun.Entry> entries = iterator(snapshot, null);
+        return new Iterator<Map.Entry<String, Storeable>>() {
+            private Map.Entry<String, Storeable> nextRow = advance();
+
+            private Map.Entry<String, Storeable> advance() {
+                while (entries.hasNext()) {
+                    SortedRun.Entry oneEntry = entries.next();
+                    if (oneEntry.getValue() != null) {
+                        Storeable value = oneEntry.getValue() == PRESENT ? getCommitted(snapshot, oneEntry.getKey())
+                                : decode(oneEntry);
+                        return new AbstractMap.SimpleImmutableEntry<>(oneEntry.getKey(), value);
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return nextRow != null;
+            }
+
+            @Override
+            public Map.Entry<String, Storeable> next() {
+                if (nextRow == null) {
+                    throw new NoSuchElementException();
+                }
+                Map.Entry<String, Storeable> result = nextRow;
+                nextRow = advance();
+                return result;
+            }
+        };
+    }
+
+    private Storeable decode(SortedRun.Entry entry) {
+        if (entry.getValue() == null) {
+            return null;
+        }
+        try {
+            return codec.decode(this, entry.getValue());
+        } catch (ParseException e) {
+            throw new IllegalStateException("broken run of " + getName(), e);
+        }
+    }
+
+    /**
+     * Committed keys not less than from in ascending order, value is null for a removed key.
+     */
+    private Iterator<SortedRun.Entry> iterator(State current, String from) {
+        List<Iterator<SortedRun.Entry>> sources = new ArrayList<>();
+        sources.add(keysOf(from == null ? current.memtable : current.memtable.tailMap(from), current.lastCommit));
+        if (current.flushingMemtable != null) {
+            sources.add(keysOf(from == null ? current.flushingMemtable : current.flushingMemtable.tailMap(from),
+                    current.lastCommit));
+        }
+        for (SortedRun oneRun : current.levels.get(0)) {
+            sources.add(from == null ? oneRun.iterator() : oneRun.iterator(from));
+        }
+        for (int i = 1; i < current.levels.size(); ++i) {
+            List<SortedRun> runs = new ArrayList<>();
+            for (SortedRun oneRun : current.levels.get(i)) {
+                if (from == null || oneRun.getLastKey().compareTo(from) >= 0) {
+                    runs.add(oneRun);
+                }
+            }
+            sources.add(concat(runs, from));
+        }
+        return new MergingIterator(sources);
+    }
+
+    /**
+     * Keys with a version not later than the commit.
+     */
+    private static Iterator<SortedRun.Entry> keysOf(Map<String, Change> memtable, long lastCommit) {
+        Iterator<Map.Entry<String, Change>> entries = memtable.entrySet().iterator();
+        return new Iterator<SortedRun.Entry>() {
+            private SortedRun.Entry nextEntry = advance();
+
+            private SortedRun.Entry advance() {
+                while (entries.hasNext()) {
+                    Map.Entry<String, Change> oneEntry = entries.next();
+                    Storeable value = valueAt(oneEntry.getValue(), lastCommit);
+                    if (value != null) {
+                        return new SortedRun.Entry(oneEntry.getKey(), value == TOMBSTONE ? null : PRESENT);
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return nextEntry != null;
+            }
+
+            @Override
+            public SortedRun.Entry next() {
+                if (nextEntry == null) {
+                    throw new NoSuchElementException();
+                }
+                SortedRun.Entry result = nextEntry;
+                nextEntry = advance();
+                return result;
+            }
+        };
+    }
+
+    /**
+     * Records of runs which don't overlap and are sorted by their first keys.
+     */
+    private static Iterator<SortedRun.Entry> concat(List<SortedRun> runs, String from) {
+        Iterator<SortedRun> nextRuns = runs.iterator();
+        return new Iterator<SortedRun.Entry>() {
+            private Iterator<SortedRun.Entry> current = Collections.emptyIterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!current.hasNext() && nextRuns.hasNext()) {
+                    current = from == null ? nextRuns.next().iterator() : nextRuns.next().iterator(from);
+                }
+                return current.hasNext();
+            }
+
+            @Override
+            public SortedRun.Entry next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return current.next();
+            }
+        };
+    }
+
+    /**
+     * Makes the memtable immutable and starts writing it to a run. Called under
+     * lockForCommit, waits while the previous memtable is written.
+     */
+    private void switchMemtable() throws IOException {
+        while (state.flushingMemtable != null) {
+            if (flushError != null) {
+                IOException error = flushError;
+                flushError = null;
+                backgroundWork = BackgroundWorker.submit(this::flush);
+                throw new IOException("can't write memtable of " + getName(), error);
+            }
+            flushFinished.awaitUninterruptibly();
+        }
+        long newSegment = log.rotate();
+        try {
+            lockForState.lock();
+            State current = state;
+            state = new State(new ConcurrentSkipListMap<>(), current.memtable, current.levels, current.lastCommit,
+                    current.size);
+            sizeOfFlushingMemtable = current.size;
+            segmentOfMemtable = newSegment;
+        } finally {
+            lockForState.unlock();
+        }
+        versionsInMemtable = 0;
+        backgroundWork = BackgroundWorker.submit(this::flush);
+    }
+
+    private void waitForBackgroundWork() {
+        Future<?> work = backgroundWork;
+        if (work == null) {
+            return;
+        }
+        lockForCommit.unlock();
+        try {
+            work.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            System.err.println("error in background work of " + getName());
+        } finally {
+            lockForCommit.lock();
+        }
+    }
+
+    /**
+     * Writes the immutable memtable to a new run of level 0, then drops the log
+     * of its commits and compacts runs if needed. Runs on the background thread.
+     * Only segments written before the memtable was frozen are deleted, and they are
+     * deleted before the memtable is dropped from the state.
+     */
+    private void flush() {
+        try {
+            ConcurrentNavigableMap<String, Change> memtable = state.flushingMemtable;
+            if (memtable == null) {
+                return;
+            }
+            SortedRun run = null;
+            if (!memtable.isEmpty()) {
+                long number = newNumberOfRun();
+                SortedRun.Writer writer = new SortedRun.Writer(getPathOfRun(number), number);
+                try {
+                    for (Map.Entry<String, Change> oneEntry : memtable.entrySet()) {
+                        Storeable value = oneEntry.getValue().value;
+                        writer.add(oneEntry.getKey(), value == TOMBSTONE ? null : codec.encode(this, value));
+                    }
+                } catch (IOException | RuntimeException e) {
+                    writer.abort();
+                    throw e;
+                }
+                run = writer.finish(isForced());
+            }
+            try {
+                lockForState.lock();
+                List<List<SortedRun>> levels = copyOf(state.levels);
+                if (run != null) {
+                    levels.get(0).add(0, run);
+                }
+                sizeOfRuns = sizeOfFlushingMemtable;
+                saveManifest(levels);
+                log.deleteSegmentsBefore(segmentOfMemtable);
+                State current = state;
+                state = new State(current.memtable, null, levels, current.lastCommit, current.size);
+            } finally {
+                lockForState.unlock();
+            }
+            signalFlushFinished(null);
+            compact();
+        } catch (IOException | RuntimeException e) {
+            System.err.println("error while writing memtable of " + getName() + ": " + e.getMessage());
+            signalFlushFinished(e instanceof IOException ? (IOException) e : new IOException(e));
+        }
+    }
+
+    private void signalFlushFinished(IOException error) {
+        try {
+            lockForCommit.lock();
+            flushError = error;
+            flushFinished.signalAll();
+        } finally {
+            lockForCommit.unlock();
+        }
+    }
+
+    private static long getLimitOfLevel(int level) {
+        long result = SIZE_OF_SECOND_LEVEL;
+        for (int i = 1; i < level; ++i) {
+            result *= LEVEL_RATIO;
+        }
+        return result;
+    }
+
+    /**
+     * Merges runs while level 0 has too many runs or another level has too many bytes.
+     */
+    private void compact() throws IOException {
+        while (true) {
+            List<List<SortedRun>> levels = state.levels;
+            if (levels.get(0).size() >= MAX_RUNS_IN_FIRST_LEVEL) {
+                compactLevel(0, new ArrayList<>(levels.get(0)));
+                continue;
+            }
+            int overfullLevel = -1;
+            for (int i = 1; i < levels.size() && overfullLevel < 0; ++i) {
+                long sizeOfLevel = 0;
+                for (SortedRun oneRun : levels.get(i)) {
+                    sizeOfLevel += oneRun.getSizeInBytes();
+                }
+                if (sizeOfLevel > getLimitOfLevel(i)) {
+                    overfullLevel = i;
+                }
+            }
+            if (overfullLevel < 0) {
+                return;
+            }
+            compactLevel(overfullLevel, Collections.singletonList(levels.get(overfullLevel).get(0)));
+        }
+    }
+
+    /**
+     * Merges inputs of the level with the runs of the next level they overlap.
+     * Removed keys are dropped when there is nothing below the next level.
+     */
+    private void compactLevel(int level, List<SortedRun> inputs) throws IOException {
+        List<List<SortedRun>> levels = state.levels;
+        String from = null;
+        String to = null;
+        for (SortedRun oneRun : inputs) {
+            if (from == null || oneRun.getFirstKey().compareTo(from) < 0) {
+                from = oneRun.getFirstKey();
+            }
+            if (to == null || oneRun.getLastKey().compareTo(to) > 0) {
+                to = oneRun.getLastKey();
+            }
+        }
+        List<SortedRun> overlapping = new ArrayList<>();
+        if (level + 1 < levels.size()) {
+            for (SortedRun oneRun : levels.get(level + 1)) {
+                if (oneRun.overlaps(from, to)) {
+                    overlapping.add(oneRun);
+                }
+            }
+        }
+        boolean bottom = true;
+        for (int i = level + 2; i < levels.size(); ++i) {
+            if (!levels.get(i).isEmpty()) {
+                bottom = false;
+            }
+        }
+
+        List<Iterator<SortedRun.Entry>> sources = new ArrayList<>();
+        for (SortedRun oneRun : inputs) {
+            sources.add(oneRun.iterator());
+        }
+        sources.add(concat(overlapping, null));
+        Iterator<SortedRun.Entry> merged = new MergingIterator(sources);
+        List<SortedRun> outputs = new ArrayList<>();
+        SortedRun.Writer writer = null;
+        try {
+            while (merged.hasNext()) {
+                SortedRun.Entry oneEntry = merged.next();
+                if (bottom && oneEntry.getValue() == null) {
+                    continue;
+                }
+                if (writer == null) {
+                    long number = newNumberOfRun();
+                    writer = new SortedRun.Writer(getPathOfRun(number), number);
+                }
+                writer.add(oneEntry.getKey(), oneEntry.getValue());
+                if (writer.getSize() >= SIZE_OF_RUN) {
+                    outputs.add(writer.finish(isForced()));
+                    writer = null;
+                }
+            }
+            if (writer != null) {
+                outputs.add(writer.finish(isForced()));
+            }
+        } catch (IOException | RuntimeException e) {
+            if (writer != null) {
+                writer.abort();
+            }
+            throw e;
+        }
+
+        try {
+            lockForState.lock();
+            List<List<SortedRun>> newLevels = copyOf(state.levels);
+            newLevels.get(level).removeAll(inputs);
+            if (level + 1 == newLevels.size()) {
+                newLevels.add(new ArrayList<>());
+            }
+            List<SortedRun> nextLevel = newLevels.get(level + 1);
+            nextLevel.removeAll(overlapping);
+            nextLevel.addAll(outputs);
+            nextLevel.sort((first, second) -> first.getFirstKey().compareTo(second.getFirstKey()));
+            saveManifest(newLevels);
+            State current = state;
+            state = new State(current.memtable, current.flushingMemtable, newLevels, current.lastCommit, current.size);
+        } finally {
+            lockForState.unlock();
+        }
+        for (SortedRun oneRun : inputs) {
+            Files.deleteIfExists(oneRun.getFile());
+        }
+        for (SortedRun oneRun : overlapping) {
+            Files.deleteIfExists(oneRun.getFile());
+        }
+    }
+
+    private static List<List<SortedRun>> copyOf(List<List<SortedRun>> levels) {
+        List<List<SortedRun>> result = new ArrayList<>();
+        for (List<SortedRun> oneLevel : levels) {
+            result.add(new ArrayList<>(oneLevel));
+        }
+        return result;
+    }
+
+    /**
+     * Flush and compaction may run at the same time, so nextNumberOfRun and sizeOfRuns
+     * are changed and saved to the manifest only under lockForState.
+     */
+    private long newNumberOfRun() {
+        try {
+            lockForState.lock();
+            return nextNumberOfRun++;
+        } finally {
+            lockForState.unlock();
+        }
+    }
+
+    private boolean isForced() {
+        return !options.getDurability().equals(TableOptions.DURABILITY_NONE);
+    }
+
+    private Path getPathOfRun(long number) {
+        return Paths.get(directoryOfTable, PREFIX_OF_RUN + number + SUFFIX_OF_RUN);
+    }
+
+    /**
+     * Manifest: "size N" - rows in runs, "next N" - number of the next run,
+     * then "run level number" for every run, runs of level 0 from new to old.
+     */
+    private void saveManifest(List<List<SortedRun>> levels) throws IOException {
+        List<String> lines = new ArrayList<>();
+        lines.add("size " + sizeOfRuns);
+        lines.add("next " + nextNumberOfRun);
+        for (int i = 0; i < levels.size(); ++i) {
+            for (SortedRun oneRun : levels.get(i)) {
+                lines.add("run " + i + " " + oneRun.getNumber());
+            }
+        }
+        Path manifestFile = Paths.get(directoryOfTable, MANIFEST_FILE);
+        Path tempFile = Paths.get(directoryOfTable, MANIFEST_FILE + SUFFIX_OF_TEMP);
+        try (FileOutputStream output = new FileOutputStream(tempFile.toString())) {
+            output.write((String.join(System.lineSeparator(), lines) + System.lineSeparator())
+                    .getBytes(StandardCharsets.UTF_8));
+            if (isForced()) {
+                output.getFD().sync();
+            }
+        }
+        Files.move(tempFile, manifestFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Opens runs listed in the manifest, deletes runs left by an interrupted
+     * flush or compaction and replays the log into the memtable.
+     */
+    private void init() throws IOException {
+        List<List<SortedRun>> levels = new ArrayList<>();
+        levels.add(new ArrayList<>());
+        Set<Long> usedRuns = new HashSet<>();
+        Path manifestFile = Paths.get(directoryOfTable, MANIFEST_FILE);
+        if (Files.exists(manifestFile)) {
+            try {
+                for (String line : Files.readAllLines(manifestFile)) {
+                    String[] parts = line.trim().split("\\s+");
+                    if (parts[0].equals("size")) {
+                        sizeOfRuns = Integer.parseInt(parts[1]);
+                    } else if (parts[0].equals("next")) {
+                        nextNumberOfRun = Long.parseLong(parts[1]);
+                    } else if (parts[0].equals("run")) {
+                        int level = Integer.parseInt(parts[1]);
+                        long number = Long.parseLong(parts[2]);
+                        while (levels.size() <= level) {
+                            levels.add(new ArrayList<>());
+                        }
+                        levels.get(level).add(new SortedRun(getPathOfRun(number), number));
+                        usedRuns.add(number);
+                    }
+                }
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                throw new BadFileException(e);
+            }
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(Paths.get(directoryOfTable),
+                PREFIX_OF_RUN + "*" + SUFFIX_OF_RUN)) {
+            for (Path oneFile : stream) {
+                String name = oneFile.getFileName().toString();
+                try {
+                    long number = Long.parseLong(name.substring(PREFIX_OF_RUN.length(),
+                            name.length() - SUFFIX_OF_RUN.length()));
+                    if (!usedRuns.contains(number)) {
+                        Files.delete(oneFile);
+                    }
+                } catch (NumberFormatException e) {
+                    //not a run
+                }
+            }
+        }
+        ConcurrentNavigableMap<String, Change> memtable = new ConcurrentSkipListMap<>();
+        state = new State(memtable, null, levels, 0, sizeOfRuns);
+
+        log = new WriteAheadLog(Paths.get(directoryOfTable));
+        List<byte[]> records = new ArrayList<>();
+        log.replay(records::add);
+        try {
+            long numberOfCommit = 0;
+            int newSize = sizeOfRuns;
+            for (byte[] oneRecord : records) {
+                ++numberOfCommit;
+                for (SortedRun.Entry oneChange : ChangeRecords.decode(oneRecord)) {
+                    boolean existed = getCommitted(state, oneChange.getKey()) != null;
+                    Storeable value = oneChange.getValue() == null ? TOMBSTONE
+                            : codec.decode(this, oneChange.getValue());
+                    memtable.put(oneChange.getKey(),
+                            new Change(value, numberOfCommit, memtable.get(oneChange.getKey())));
+                    if (existed != (value != TOMBSTONE)) {
+                        newSize += existed ? -1 : 1;
+                    }
+                    ++versionsInMemtable;
+                }
+                state = new State(memtable, null, levels, numberOfCommit, newSize);
+            }
+        } catch (ParseException e) {
+            throw new BadFileException(e);
+        }
+        if (options.getDurability().equals(TableOptions.DURABILITY_PERIODIC)) {
+            syncTask = BackgroundWorker.schedule(() -> {
+                try {
+                    log.sync();
+                } catch (IOException e) {
+                    System.err.println("error while sync of " + getName());
+                }
+            }, options.getSyncInterval());
+        }
+        backgroundWork = BackgroundWorker.submit(() -> {
+            try {
+                compact();
+            } catch (IOException e) {
+                System.err.println("error while compaction of " + getName());
+            }
+        });
+    }
+}
@@ -0,0 +1,64 @@
+package ru.fizteh.fivt.students.titov.parallel.file_map;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Merges sorted sources into one sorted sequence. If several sources have the
+ * same key, the record of the source with the smallest index is taken.
+ */
+public class MergingIterator implements Iterator<SortedRun.Entry> {
+    private final List<Iterator<SortedRun.Entry>> sources;
+    private final PriorityQueue<Head> heads;
+
+    private static class Head implements Comparable<Head> {
+        private final SortedRun.Entry entry;
+        private final int numberOfSource;
+
+        Head(SortedRun.Entry newEntry, int newNumberOfSource) {
+            entry = newEntry;
+            numberOfSource = newNumberOfSource;
+        }
+
+        @Override
+        public int compareTo(Head other) {
+            int result = entry.getKey().compareTo(other.entry.getKey());
+            return result != 0 ? result : Integer.compare(numberOfSource, other.numberOfSource);
+        }
+    }
+
+    public MergingIterator(List<Iterator<SortedRun.Entry>> newSources) {
+        sources = newSources;
+        heads = new PriorityQueue<>();
+        for (int i = 0; i < sources.size(); ++i) {
+            advance(i);
+        }
+    }
+
+    private void advance(int numberOfSource) {
+        Iterator<SortedRun.Entry> source = sources.get(numberOfSource);
+        if (source.hasNext()) {
+            heads.add(new Head(source.next(), numberOfSource));
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        return !heads.isEmpty();
+    }
+
+    @Override
+    public SortedRun.Entry next() {
+        Head result = heads.poll();
+        if (result == null) {
+            throw new NoSuchElementException();
+        }
+        advance(result.numberOfSource);
+        while (!heads.isEmpty() && heads.peek().entry.getKey().equals(result.entry.getKey())) {
+            advance(heads.poll().numberOfSource);
+        }
+        return result.entry;
+    }
+}
@@ -0,0 +1,52 @@
+package ru.fizteh.fivt.students.titov.parallel.file_map;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Runs loading jobs on a ForkJoinPool. Jobs may start nested jobs on the same
+ * loader (tables load their buckets), they are then forked inside the pool.
+ */
+public class ParallelLoader {
+    private ForkJoinPool pool;
+
+    public ParallelLoader(int parallelism) {
+        pool = new ForkJoinPool(parallelism);
+    }
+
+    /**
+     * Runs all jobs and returns their results in the same order.
+     */
+    public <T> List<T> invokeAll(List<Callable<T>> jobs) throws BadFileException {
+        List<ForkJoinTask<T>> tasks = new ArrayList<>(jobs.size());
+        for (Callable<T> oneJob : jobs) {
+            tasks.add(ForkJoinTask.adapt(oneJob));
+        }
+        try {
+            if (ForkJoinTask.getPool() == pool) {
+                ForkJoinTask.invokeAll(tasks);
+            } else {
+                pool.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(tasks)));
+            }
+        } catch (RuntimeException e) {
+            for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+                if (cause instanceof BadFileException) {
+                    throw (BadFileException) cause;
+                }
+            }
+            throw new BadFileException(e);
+        }
+        List<T> result = new ArrayList<>(tasks.size());
+        for (ForkJoinTask<T> oneTask : tasks) {
+            result.add(oneTask.join());
+        }
+        return result;
+    }
+
+    public void shutdown() {
+        pool.shutdown();
+    }
+}
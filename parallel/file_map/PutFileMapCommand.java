@@ -11,7 +11,7 @@ public class PutFileMapCommand extends FileMapCommand {
         initialize("put", 2);
     }
     @Override
-    public boolean run(FileMap fileMap, String[] args) {
+    public boolean run(StoredTable fileMap, String[] args) {
         Storeable oldValue = fileMap.get(args[1]);
         try {
             fileMap.put(args[1], Serializator.deserialize(fileMap, args[2]));
@@ -0,0 +1,24 @@
+package ru.fizteh.fivt.students.titov.parallel.file_map;
+
+import java.util.List;
+
+/**
+ * Key of a row found by a query and values of the selected columns.
+ */
+public class QueryRow {
+    private final String key;
+    private final List<Object> values;
+
+    public QueryRow(String newKey, List<Object> newValues) {
+        key = newKey;
+        values = newValues;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public List<Object> getValues() {
+        return values;
+    }
+}
@@ -7,7 +7,7 @@ public class RemoveFileMapCommand extends FileMapCommand {
         initialize("remove", 2);
     }
     @Override
-    public boolean run(FileMap fileMap, String[] args) {
+    public boolean run(StoredTable fileMap, String[] args) {
         Storeable value = fileMap.remove(args[1]);
         if (value != null) {
             System.out.println("removed");
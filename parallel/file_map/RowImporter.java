@@ -0,0 +1,175 @@
+package ru.fizteh.fivt.students.titov.parallel.file_map;
+
+import ru.fizteh.fivt.storage.structured.ColumnFormatException;
+import ru.fizteh.fivt.storage.structured.Storeable;
+import ru.fizteh.fivt.storage.structured.Table;
+import ru.fizteh.fivt.students.titov.parallel.storeable.PackedStoreable;
+import ru.fizteh.fivt.students.titov.parallel.storeable.RowCodec;
+import ru.fizteh.fivt.students.titov.parallel.storeable.RowCodecs;
+import ru.fizteh.fivt.students.titov.parallel.storeable.TableSchema;
+import ru.fizteh.fivt.students.titov.parallel.storeable.TypesUtils;
+import ru.fizteh.fivt.students.titov.parallel.storeable.XmlRowCodec;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Reads rows for FileMap.bulkLoad, one row per line:
+ * csv - key,value,... with values in double quotes if they have commas or quotes;
+ * tsv - key and values separated by tabs;
+ * xml - key, tab and the value in the format of TableProvider.serialize.
+ * An empty csv or tsv field without quotes is null. Values are parsed by types of
+ * the table, so rows don't need the usual checks. Empty lines are skipped.
+ */
+public class RowImporter implements Iterator<Map.Entry<String, Storeable>> {
+    public static final String CSV = "csv";
+    public static final String TSV = "tsv";
+    public static final String XML = "xml";
+
+    private final Table table;
+    private final BufferedReader input;
+    private final String format;
+    private final RowCodec xmlCodec;
+    private Map.Entry<String, Storeable> nextRow;
+    private int numberOfLine;
+
+    public RowImporter(Table newTable, BufferedReader newInput, String newFormat) throws IllegalArgumentException {
+        if (!CSV.equals(newFormat) && !TSV.equals(newFormat) && !XML.equals(newFormat)) {
+            throw new IllegalArgumentException("unknown format (" + newFormat + ")");
+        }
+        table = newTable;
+        input = newInput;
+        format = newFormat;
+        xmlCodec = RowCodecs.forName(XmlRowCodec.NAME);
+    }
+
+    /**
+     * Format by the extension of the file, tsv if it is unknown.
+     */
+    public static String formatOf(String fileName) {
+        String name = fileName.toLowerCase();
+        if (name.endsWith("." + CSV)) {
+            return CSV;
+        } else if (name.endsWith("." + XML)) {
+            return XML;
+        }
+        return TSV;
+    }
+
+    /**
+     * @throws UncheckedIOException if the input can't be read
+     * @throws IllegalArgumentException if a line is wrong
+     */
+    @Override
+    public boolean hasNext() {
+        if (nextRow != null) {
+            return true;
+        }
+        try {
+            String line;
+            do {
+                line = input.readLine();
+                ++numberOfLine;
+                if (line == null) {
+                    return false;
+                }
+            } while (line.isEmpty());
+            nextRow = parseLine(line);
+            return true;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (ParseException | IllegalArgumentException e) {
+            throw new IllegalArgumentException("line " + numberOfLine + ": " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public Map.Entry<String, Storeable> next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Map.Entry<String, Storeable> result = nextRow;
+        nextRow = null;
+        return result;
+    }
+
+    private Map.Entry<String, Storeable> parseLine(String line) throws ParseException, ColumnFormatException {
+        if (format.equals(XML)) {
+            int tab = line.indexOf('\t');
+            if (tab < 0) {
+                throw new ParseException("no tab after key", 0);
+            }
+            Storeable value = xmlCodec.decode(table, line.substring(tab + 1).getBytes(StandardCharsets.UTF_8));
+            return new AbstractMap.SimpleImmutableEntry<>(line.substring(0, tab), value);
+        }
+        List<String> fields = format.equals(CSV) ? splitCsv(line) : splitTsv(line);
+        if (fields.size() != table.getColumnsCount() + 1 || fields.get(0) == null) {
+            throw new ParseException("need key and " + table.getColumnsCount() + " values", 0);
+        }
+        PackedStoreable value = new PackedStoreable(TableSchema.of(table));
+        for (int i = 0; i < table.getColumnsCount(); ++i) {
+            String oneField = fields.get(i + 1);
+            if (oneField != null) {
+                value.setColumnAt(i, TypesUtils.parseValue(table.getColumnType(i), oneField));
+            }
+        }
+        return new AbstractMap.SimpleImmutableEntry<>(fields.get(0), value);
+    }
+
+    private static List<String> splitTsv(String line) {
+        List<String> result = new ArrayList<>();
+        for (String oneField : line.split("\t", -1)) {
+            result.add(oneField.isEmpty() ? null : oneField);
+        }
+        return result;
+    }
+
+    private static List<String> splitCsv(String line) throws ParseException {
+        List<String> result = new ArrayList<>();
+        int position = 0;
+        while (true) {
+            if (position < line.length() && line.charAt(position) == '"') {
+                StringBuilder field = new StringBuilder();
+                ++position;
+                while (true) {
+                    if (position >= line.length()) {
+                        throw new ParseException("no closing quote", position);
+                    }
+                    char current = line.charAt(position++);
+                    if (current != '"') {
+                        field.append(current);
+                    } else if (position < line.length() && line.charAt(position) == '"') {
+                        field.append('"');
+                        ++position;
+                    } else {
+                        break;
+                    }
+                }
+                result.add(field.toString());
+                if (position < line.length() && line.charAt(position) != ',') {
+                    throw new ParseException("comma expected after quote", position);
+                }
+            } else {
+                int end = line.indexOf(',', position);
+                if (end < 0) {
+                    end = line.length();
+                }
+                result.add(end == position ? null : line.substring(position, end));
+                position = end;
+            }
+            if (position >= line.length()) {
+                return result;
+            }
+            ++position;
+        }
+    }
+}
@@ -0,0 +1,322 @@
+package ru.fizteh.fivt.students.titov.parallel.file_map;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Immutable file of LsmTable with records sorted by key:
+ * int length of key, key, int length of value (-1 for a removed key), value.
+ * Records are followed by every INDEX_STEP-th key with its offset and by the
+ * footer: int offset of the index, int number of index entries.
+ * Only the index is kept in memory, records are read from the mapped file.
+ */
+public class SortedRun {
+    private static final int INDEX_STEP = 64;
+    private static final int FOOTER_SIZE = 8;
+
+    private final long number;
+    private final Path file;
+    private final ByteBuffer data;
+    private final int endOfRecords;
+    private final String[] indexKeys;
+    private final int[] indexOffsets;
+    private final String lastKey;
+
+    /**
+     * Record of a run. Value is null for a removed key.
+     */
+    public static class Entry {
+        private final String key;
+        private final byte[] value;
+
+        public Entry(String newKey, byte[] newValue) {
+            key = newKey;
+            value = newValue;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public byte[] getValue() {
+            return value;
+        }
+    }
+
+    /**
+     * Writes records given in ascending order of keys.
+     */
+    public static class Writer {
+        private final long number;
+        private final Path file;
+        private final FileOutputStream fileStream;
+        private final DataOutputStream output;
+        private final List<String> indexKeys;
+        private final List<Integer> indexOffsets;
+        private int position;
+        private int numberOfRecords;
+
+        public Writer(Path newFile, long newNumber) throws IOException {
+            number = newNumber;
+            file = newFile;
+            fileStream = new FileOutputStream(file.toString());
+            output = new DataOutputStream(new BufferedOutputStream(fileStream));
+            indexKeys = new ArrayList<>();
+            indexOffsets = new ArrayList<>();
+        }
+
+        public void add(String key, byte[] value) throws IOException {
+            if (numberOfRecords % INDEX_STEP == 0) {
+                indexKeys.add(key);
+                indexOffsets.add(position);
+            }
+            byte[] keyByte = key.getBytes(StandardCharsets.UTF_8);
+            output.writeInt(keyByte.length);
+            output.write(keyByte);
+            position += 4 + keyByte.length;
+            if (value == null) {
+                output.writeInt(-1);
+                position += 4;
+            } else {
+                output.writeInt(value.length);
+                output.write(value);
+                position += 4 + value.length;
+            }
+            ++numberOfRecords;
+        }
+
+        public int getSize() {
+            return position;
+        }
+
+        public boolean isEmpty() {
+            return numberOfRecords == 0;
+        }
+
+        /**
+         * Writes the index and opens the run for reading.
+         *
+         * @param force - return only when the file is on disk
+         */
+        public SortedRun finish(boolean force) throws IOException {
+            int indexOffset = position;
+            for (int i = 0; i < indexKeys.size(); ++i) {
+                byte[] keyByte = indexKeys.get(i).getBytes(StandardCharsets.UTF_8);
+                output.writeInt(keyByte.length);
+                output.write(keyByte);
+                output.writeInt(indexOffsets.get(i));
+            }
+            output.writeInt(indexOffset);
+            output.writeInt(indexKeys.size());
+            output.flush();
+            if (force) {
+                fileStream.getFD().sync();
+            }
+            output.close();
+            return new SortedRun(file, number);
+        }
+
+        /**
+         * Closes the file without finishing it.
+         */
+        public void abort() {
+            try {
+                output.close();
+            } catch (IOException e) {
+                //nothing to do
+            }
+        }
+    }
+
+    public SortedRun(Path newFile, long newNumber) throws BadFileException {
+        number = newNumber;
+        file = newFile;
+        try (FileChannel channel = FileChannel.open(file)) {
+            data = channel.map(MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException e) {
+            throw new BadFileException(e);
+        }
+        try {
+            if (data.capacity() < FOOTER_SIZE) {
+                throw new BadFileException();
+            }
+            endOfRecords = data.getInt(data.capacity() - FOOTER_SIZE);
+            int numberOfIndexEntries = data.getInt(data.capacity() - FOOTER_SIZE + 4);
+            if (endOfRecords < 0 || endOfRecords > data.capacity() - FOOTER_SIZE || numberOfIndexEntries < 0) {
+                throw new BadFileException();
+            }
+            indexKeys = new String[numberOfIndexEntries];
+            indexOffsets = new int[numberOfIndexEntries];
+            ByteBuffer index = data.duplicate();
+            index.position(endOfRecords);
+            for (int i = 0; i < numberOfIndexEntries; ++i) {
+                indexKeys[i] = readKey(index);
+                indexOffsets[i] = index.getInt();
+            }
+            String last = null;
+            if (numberOfIndexEntries > 0) {
+                Iterator<Entry> tail = iterator(numberOfIndexEntries - 1);
+                while (tail.hasNext()) {
+                    last = tail.next().getKey();
+                }
+            }
+            lastKey = last;
+        } catch (RuntimeException e) {
+            throw new BadFileException(e);
+        }
+    }
+
+    public long getNumber() {
+        return number;
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    public int getSizeInBytes() {
+        return data.capacity();
+    }
+
+    public boolean isEmpty() {
+        return indexKeys.length == 0;
+    }
+
+    public String getFirstKey() {
+        return indexKeys.length == 0 ? null : indexKeys[0];
+    }
+
+    public String getLastKey() {
+        return lastKey;
+    }
+
+    /**
+     * True if keys of the run may be between from and to inclusive.
+     */
+    public boolean overlaps(String from, String to) {
+        return !isEmpty() && getFirstKey().compareTo(to) <= 0 && getLastKey().compareTo(from) >= 0;
+    }
+
+    /**
+     * Record with the key, null if the run has no record for it.
+     */
+    public Entry get(String key) {
+        if (isEmpty() || key.compareTo(getFirstKey()) < 0 || key.compareTo(lastKey) > 0) {
+            return null;
+        }
+        Iterator<Entry> records = iterator(findIndexEntry(key));
+        for (int i = 0; i < INDEX_STEP && records.hasNext(); ++i) {
+            Entry oneEntry = records.next();
+            int comparison = oneEntry.getKey().compareTo(key);
+            if (comparison == 0) {
+                return oneEntry;
+            }
+            if (comparison > 0) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    public Iterator<Entry> iterator() {
+        return iterator(0);
+    }
+
+    /**
+     * Records with keys not less than from.
+     */
+    public Iterator<Entry> iterator(String from) {
+        if (isEmpty() || from.compareTo(getFirstKey()) <= 0) {
+            return iterator();
+        }
+        Iterator<Entry> records = iterator(findIndexEntry(from));
+        return new Iterator<Entry>() {
+            private Entry nextEntry = advance();
+
+            private Entry advance() {
+                while (records.hasNext()) {
+                    Entry oneEntry = records.next();
+                    if (oneEntry.getKey().compareTo(from) >= 0) {
+                        return oneEntry;
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return nextEntry != null;
+            }
+
+            @Override
+            public Entry next() {
+                if (nextEntry == null) {
+                    throw new NoSuchElementException();
+                }
+                Entry result = nextEntry;
+                nextEntry = records.hasNext() ? records.next() : null;
+                return result;
+            }
+        };
+    }
+
+    /**
+     * Last index entry whose key is not greater than the key.
+     */
+    private int findIndexEntry(String key) {
+        int left = 0;
+        int right = indexKeys.length - 1;
+        while (left < right) {
+            int middle = (left + right + 1) / 2;
+            if (indexKeys[middle].compareTo(key) <= 0) {
+                left = middle;
+            } else {
+                right = middle - 1;
+            }
+        }
+        return left;
+    }
+
+    private Iterator<Entry> iterator(int numberOfIndexEntry) {
+        ByteBuffer records = data.duplicate();
+        records.position(indexKeys.length == 0 ? endOfRecords : indexOffsets[numberOfIndexEntry]);
+        return new Iterator<Entry>() {
+            @Override
+            public boolean hasNext() {
+                return records.position() < endOfRecords;
+            }
+
+            @Override
+            public Entry next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                String key = readKey(records);
+                int length = records.getInt();
+                byte[] value = null;
+                if (length >= 0) {
+                    value = new byte[length];
+                    records.get(value);
+                }
+                return new Entry(key, value);
+            }
+        };
+    }
+
+    private static String readKey(ByteBuffer buffer) {
+        byte[] keyByte = new byte[buffer.getInt()];
+        buffer.get(keyByte);
+        return new String(keyByte, StandardCharsets.UTF_8);
+    }
+}
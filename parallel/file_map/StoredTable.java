@@ -0,0 +1,102 @@
+package ru.fizteh.fivt.students.titov.parallel.file_map;
+
+import ru.fizteh.fivt.storage.structured.Storeable;
+import ru.fizteh.fivt.storage.structured.Table;
+import ru.fizteh.fivt.storage.structured.TableProvider;
+import ru.fizteh.fivt.students.titov.parallel.storeable.TableSchema;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Table kept in a directory of the database. Implemented by FileMap, which
+ * rewrites bucket files, by LsmTable, which appends sorted runs, and by
+ * KeydirTable, which keeps only keys in memory.
+ */
+public interface StoredTable extends Table {
+    TableProvider getTableProvider();
+
+    TableOptions getOptions();
+
+    /**
+     * Types of columns, the same object for the whole life of the table.
+     */
+    TableSchema getSchema();
+
+    /**
+     * Starts a transaction which is not bound to the calling thread.
+     * Methods of Table work with a separate transaction of every thread.
+     */
+    Transaction begin();
+
+    /**
+     * Keys of the table as seen by the transaction of the calling thread.
+     */
+    List<String> list();
+
+    /**
+     * Keys as seen by the transaction of the calling thread, read while the
+     * iterator goes, in no particular order. The transaction should not be
+     * changed until the iteration is over.
+     */
+    default Iterator<String> keys() {
+        return scan(null, null, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Keys from fromKey inclusive to toKey exclusive in ascending order, at most
+     * limit of them, as seen by the transaction of the calling thread. A null
+     * bound means no bound. Commits of other threads made during the scan may
+     * be seen or not.
+     */
+    Iterator<String> scan(String fromKey, String toKey, int limit) throws IllegalArgumentException;
+
+    /**
+     * Keys which start with the prefix in ascending order.
+     */
+    default Iterator<String> prefixScan(String prefix) throws IllegalArgumentException {
+        if (prefix == null) {
+            throw new IllegalArgumentException("null argument");
+        }
+        return scan(prefix, KeyRanges.endOfPrefix(prefix), Integer.MAX_VALUE);
+    }
+
+    /**
+     * Stops background work and puts everything committed to disk.
+     */
+    void close() throws IOException;
+
+    /**
+     * Stops background work without writing anything, the table is about to be removed.
+     */
+    void discard() throws IOException;
+
+    /**
+     * Committed rows at the moment of the call, read while the iterator goes.
+     * Later commits are not seen, uncommitted changes of the calling thread too.
+     */
+    Iterator<Map.Entry<String, Storeable>> snapshotRows() throws IOException;
+
+    /**
+     * One page of keys in ascending order. Tables without the ordered index sort
+     * their keys once, by the first page or scan, and keep them sorted after that.
+     *
+     * @param pageToken - token of the page from the previous page, null for the first page
+     */
+    default KeyPage listPage(String pageToken, int pageSize) throws IllegalArgumentException {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("page size should be positive");
+        }
+        String from = pageToken == null ? null : KeyRanges.fromPageToken(pageToken);
+        Iterator<String> keys = scan(from, null, pageSize + 1);
+        List<String> result = new ArrayList<>(pageSize);
+        while (keys.hasNext() && result.size() < pageSize) {
+            result.add(keys.next());
+        }
+        String nextPageToken = keys.hasNext() ? KeyRanges.toPageToken(result.get(pageSize - 1)) : null;
+        return new KeyPage(result, nextPageToken);
+    }
+}
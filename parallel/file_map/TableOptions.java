@@ -0,0 +1,326 @@
+package ru.fizteh.fivt.students.titov.parallel.file_map;
+
+import ru.fizteh.fivt.students.titov.parallel.storeable.BinaryRowCodec;
+import ru.fizteh.fivt.students.titov.parallel.storeable.RowCodecs;
+import ru.fizteh.fivt.students.titov.parallel.storeable.XmlRowCodec;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Per-table settings, kept in signature.tsv after the line with types.
+ * Every setting is one line "name value".
+ */
+public class TableOptions {
+    /**
+     * Files are left to the operating system.
+     */
+    public static final String DURABILITY_NONE = "none";
+    /**
+     * Commit returns when its changes are on disk.
+     */
+    public static final String DURABILITY_ON_COMMIT = "on-commit";
+    /**
+     * Written files are forced to disk every syncInterval ms.
+     */
+    public static final String DURABILITY_PERIODIC = "periodic";
+
+    /**
+     * Rows are kept in hashed bucket files rewritten by commit (FileMap).
+     */
+    public static final String ENGINE_HASH = "hash";
+    /**
+     * Rows are appended to sorted runs merged in background (LsmTable).
+     */
+    public static final String ENGINE_LSM = "lsm";
+    /**
+     * Only keys are kept in memory, values are appended to data files (KeydirTable).
+     */
+    public static final String ENGINE_KEYDIR = "keydir";
+
+    /**
+     * Bucket files are written as they are.
+     */
+    public static final String COMPRESSION_NONE = "none";
+    /**
+     * Bucket files are compressed by Deflater.
+     */
+    public static final String COMPRESSION_DEFLATE = "deflate";
+
+    private static final String CODEC = "codec";
+    private static final String WAL = "wal";
+    private static final String CHECKPOINT = "checkpoint";
+    private static final String DURABILITY = "durability";
+    private static final String SYNC = "sync";
+    private static final String SPLIT = "split";
+    private static final String ENGINE = "engine";
+    private static final String MEMTABLE = "memtable";
+    private static final String BLOOM = "bloom";
+    private static final String ORDERED = "ordered";
+    private static final String COMPRESSION = "compression";
+    private static final String ON = "on";
+    private static final String OFF = "off";
+
+    private String codecName;
+    private boolean writeAheadLog;
+    private long checkpointInterval;
+    private String durability;
+    private long syncInterval;
+    private int splitThreshold;
+    private String engine;
+    private int memtableSize;
+    private double bloomFalsePositiveRate;
+    private boolean orderedIndex;
+    private String compression;
+
+    /**
+     * Settings for a new table.
+     */
+    public TableOptions() {
+        codecName = BinaryRowCodec.NAME;
+        checkpointInterval = 1000;
+        durability = DURABILITY_ON_COMMIT;
+        syncInterval = 1000;
+        splitThreshold = 1024;
+        engine = ENGINE_HASH;
+        memtableSize = 4096;
+        bloomFalsePositiveRate = 0.01;
+        compression = COMPRESSION_NONE;
+    }
+
+    /**
+     * Settings of a table whose signature.tsv has nothing but types.
+     */
+    public static TableOptions legacy() {
+        TableOptions result = new TableOptions();
+        result.codecName = XmlRowCodec.NAME;
+        result.durability = DURABILITY_NONE;
+        return result;
+    }
+
+    public static TableOptions parse(List<String> lines) throws IllegalArgumentException {
+        TableOptions result = legacy();
+        for (String line : lines) {
+            String[] parts = line.trim().split("\\s+");
+            if (parts.length == 0 || parts[0].isEmpty()) {
+                continue;
+            }
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("wrong table option (" + line + ")");
+            }
+            switch (parts[0]) {
+                case CODEC:
+                    result.setCodecName(parts[1]);
+                    break;
+                case WAL:
+                    result.setWriteAheadLog(parseSwitch(parts[1]));
+                    break;
+                case CHECKPOINT:
+                    result.setCheckpointInterval(parseNumber(line, parts[1]));
+                    break;
+                case DURABILITY:
+                    result.setDurability(parts[1]);
+                    break;
+                case SYNC:
+                    result.setSyncInterval(parseNumber(line, parts[1]));
+                    break;
+                case SPLIT:
+                    result.setSplitThreshold((int) parseNumber(line, parts[1]));
+                    break;
+                case ENGINE:
+                    result.setEngine(parts[1]);
+                    break;
+                case MEMTABLE:
+                    result.setMemtableSize((int) parseNumber(line, parts[1]));
+                    break;
+                case ORDERED:
+                    result.setOrderedIndex(parseSwitch(parts[1]));
+                    break;
+                case COMPRESSION:
+                    result.setCompression(parts[1]);
+                    break;
+                case BLOOM:
+                    try {
+                        result.setBloomFalsePositiveRate(Double.parseDouble(parts[1]));
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("wrong table option (" + line + ")");
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown table option (" + parts[0] + ")");
+            }
+        }
+        return result;
+    }
+
+    public List<String> toLines() {
+        List<String> result = new ArrayList<>();
+        result.add(CODEC + " " + codecName);
+        result.add(WAL + " " + (writeAheadLog ? ON : OFF));
+        result.add(CHECKPOINT + " " + checkpointInterval);
+        result.add(DURABILITY + " " + durability);
+        result.add(SYNC + " " + syncInterval);
+        result.add(SPLIT + " " + splitThreshold);
+        result.add(ENGINE + " " + engine);
+        result.add(MEMTABLE + " " + memtableSize);
+        result.add(BLOOM + " " + bloomFalsePositiveRate);
+        result.add(ORDERED + " " + (orderedIndex ? ON : OFF));
+        result.add(COMPRESSION + " " + compression);
+        return result;
+    }
+
+    private static long parseNumber(String line, String value) throws IllegalArgumentException {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("wrong table option (" + line + ")");
+        }
+    }
+
+    private static boolean parseSwitch(String value) throws IllegalArgumentException {
+        switch (value) {
+            case ON:
+                return true;
+            case OFF:
+                return false;
+            default:
+                throw new IllegalArgumentException("expected " + ON + " or " + OFF + ", but got: " + value);
+        }
+    }
+
+    public String getCodecName() {
+        return codecName;
+    }
+
+    public void setCodecName(String newCodecName) throws IllegalArgumentException {
+        RowCodecs.forName(newCodecName);
+        codecName = newCodecName;
+    }
+
+    public boolean isWriteAheadLog() {
+        return writeAheadLog;
+    }
+
+    /**
+     * With the log a commit appends one record to wal.N.log, bucket files are
+     * rewritten later by a checkpoint every checkpointInterval ms.
+     */
+    public void setWriteAheadLog(boolean newWriteAheadLog) {
+        writeAheadLog = newWriteAheadLog;
+    }
+
+    public long getCheckpointInterval() {
+        return checkpointInterval;
+    }
+
+    public void setCheckpointInterval(long newCheckpointInterval) throws IllegalArgumentException {
+        if (newCheckpointInterval <= 0) {
+            throw new IllegalArgumentException("checkpoint interval should be positive");
+        }
+        checkpointInterval = newCheckpointInterval;
+    }
+
+    public String getDurability() {
+        return durability;
+    }
+
+    public void setDurability(String newDurability) throws IllegalArgumentException {
+        if (!DURABILITY_NONE.equals(newDurability) && !DURABILITY_ON_COMMIT.equals(newDurability)
+                && !DURABILITY_PERIODIC.equals(newDurability)) {
+            throw new IllegalArgumentException("unknown durability (" + newDurability + ")");
+        }
+        durability = newDurability;
+    }
+
+    public long getSyncInterval() {
+        return syncInterval;
+    }
+
+    public void setSyncInterval(long newSyncInterval) throws IllegalArgumentException {
+        if (newSyncInterval <= 0) {
+            throw new IllegalArgumentException("sync interval should be positive");
+        }
+        syncInterval = newSyncInterval;
+    }
+
+    public int getSplitThreshold() {
+        return splitThreshold;
+    }
+
+    /**
+     * Buckets are split when the table has more rows than splitThreshold per bucket.
+     */
+    public void setSplitThreshold(int newSplitThreshold) throws IllegalArgumentException {
+        if (newSplitThreshold <= 0) {
+            throw new IllegalArgumentException("split threshold should be positive");
+        }
+        splitThreshold = newSplitThreshold;
+    }
+
+    public String getEngine() {
+        return engine;
+    }
+
+    public void setEngine(String newEngine) throws IllegalArgumentException {
+        if (!ENGINE_HASH.equals(newEngine) && !ENGINE_LSM.equals(newEngine)
+                && !ENGINE_KEYDIR.equals(newEngine)) {
+            throw new IllegalArgumentException("unknown engine (" + newEngine + ")");
+        }
+        engine = newEngine;
+    }
+
+    public int getMemtableSize() {
+        return memtableSize;
+    }
+
+    /**
+     * An LSM table writes its rows in memory to a new run when there are memtableSize of them.
+     */
+    public void setMemtableSize(int newMemtableSize) throws IllegalArgumentException {
+        if (newMemtableSize <= 0) {
+            throw new IllegalArgumentException("memtable size should be positive");
+        }
+        memtableSize = newMemtableSize;
+    }
+
+    public double getBloomFalsePositiveRate() {
+        return bloomFalsePositiveRate;
+    }
+
+    /**
+     * Part of absent keys for which the filter of a bucket file can't tell that
+     * the bucket doesn't have them. Lower rate makes filter files bigger.
+     */
+    public void setBloomFalsePositiveRate(double newBloomFalsePositiveRate) throws IllegalArgumentException {
+        if (!(newBloomFalsePositiveRate > 0 && newBloomFalsePositiveRate < 1)) {
+            throw new IllegalArgumentException("false positive rate should be between 0 and 1");
+        }
+        bloomFalsePositiveRate = newBloomFalsePositiveRate;
+    }
+
+    public boolean isOrderedIndex() {
+        return orderedIndex;
+    }
+
+    /**
+     * With the index keys are kept sorted from the start, otherwise they are sorted by the first scan or page.
+     * LSM tables are always sorted.
+     */
+    public void setOrderedIndex(boolean newOrderedIndex) {
+        orderedIndex = newOrderedIndex;
+    }
+
+    public String getCompression() {
+        return compression;
+    }
+
+    /**
+     * Compression of bucket files of a hash table. It can't be changed once the table has files.
+     */
+    public void setCompression(String newCompression) throws IllegalArgumentException {
+        if (!COMPRESSION_NONE.equals(newCompression) && !COMPRESSION_DEFLATE.equals(newCompression)) {
+            throw new IllegalArgumentException("unknown compression (" + newCompression + ")");
+        }
+        compression = newCompression;
+    }
+}
@@ -0,0 +1,80 @@
+package ru.fizteh.fivt.students.titov.parallel.file_map;
+
+import ru.fizteh.fivt.storage.structured.ColumnFormatException;
+import ru.fizteh.fivt.storage.structured.Storeable;
+import ru.fizteh.fivt.students.titov.parallel.storeable.TableSchema;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Rows which satisfy all predicates, with values of the selected columns only.
+ * An empty list of columns selects all of them.
+ */
+public class TableQuery {
+    private final List<ColumnPredicate> predicates;
+    private final List<Integer> columns;
+
+    public TableQuery(List<ColumnPredicate> newPredicates, List<Integer> newColumns) throws IllegalArgumentException {
+        if (newPredicates == null || newColumns == null) {
+            throw new IllegalArgumentException("null argument");
+        }
+        predicates = Collections.unmodifiableList(new ArrayList<>(newPredicates));
+        columns = Collections.unmodifiableList(new ArrayList<>(newColumns));
+    }
+
+    public List<ColumnPredicate> getPredicates() {
+        return predicates;
+    }
+
+    public List<Integer> getColumns() {
+        return columns;
+    }
+
+    /**
+     * Checks that columns of the query exist in a table of the schema and values
+     * of predicates are of the types of their columns, so rows are compared without
+     * ClassCastException.
+     */
+    public void check(TableSchema schema) throws ColumnFormatException, IndexOutOfBoundsException {
+        int numberOfColumns = schema.getNumberOfColumns();
+        for (ColumnPredicate onePredicate : predicates) {
+            if (onePredicate.getColumn() >= numberOfColumns) {
+                throw new IndexOutOfBoundsException("wrong column (" + onePredicate.getColumn() + ")");
+            }
+            if (!schema.getType(onePredicate.getColumn()).isInstance(onePredicate.getValue())) {
+                throw new ColumnFormatException("expected:" + schema.getType(onePredicate.getColumn())
+                        + " , but got:" + onePredicate.getValue().getClass());
+            }
+        }
+        for (int oneColumn : columns) {
+            if (oneColumn < 0 || oneColumn >= numberOfColumns) {
+                throw new IndexOutOfBoundsException("wrong column (" + oneColumn + ")");
+            }
+        }
+    }
+
+    public boolean matches(Storeable row) {
+        for (ColumnPredicate onePredicate : predicates) {
+            if (!onePredicate.test(row)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public QueryRow project(String key, Storeable row, int numberOfColumns) {
+        List<Object> values = new ArrayList<>();
+        if (columns.isEmpty()) {
+            for (int i = 0; i < numberOfColumns; ++i) {
+                values.add(row.getColumnAt(i));
+            }
+        } else {
+            for (int oneColumn : columns) {
+                values.add(row.getColumnAt(oneColumn));
+            }
+        }
+        return new QueryRow(key, values);
+    }
+}
@@ -0,0 +1,35 @@
+package ru.fizteh.fivt.students.titov.parallel.file_map;
+
+import ru.fizteh.fivt.storage.structured.ColumnFormatException;
+import ru.fizteh.fivt.storage.structured.Storeable;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Uncommitted changes of one session over a table. A transaction is not bound
+ * to a thread and may be passed between threads, but must not be used by two
+ * threads at the same time. After commit or rollback it starts over with the
+ * last committed data.
+ */
+public interface Transaction {
+    Storeable get(String key) throws IllegalArgumentException;
+
+    Storeable put(String key, Storeable value) throws ColumnFormatException, IllegalArgumentException;
+
+    Storeable remove(String key) throws IllegalArgumentException;
+
+    int size();
+
+    List<String> list();
+
+    int getNumberOfUncommittedChanges();
+
+    /**
+     * @throws TransactionConflictException if another transaction has committed
+     * a key after this one has seen it; changes of this transaction are dropped
+     */
+    int commit() throws IOException;
+
+    int rollback();
+}
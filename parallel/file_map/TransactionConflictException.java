@@ -0,0 +1,21 @@
+package ru.fizteh.fivt.students.titov.parallel.file_map;
+
+/**
+ * Thrown by commit when a key read or written by the transaction was changed
+ * by another commit after the transaction has seen it. The transaction is
+ * rolled back, so it can simply be repeated.
+ */
+public class TransactionConflictException extends IllegalStateException {
+    private static final long serialVersionUID = 1L;
+
+    private final String key;
+
+    public TransactionConflictException(String newKey) {
+        super("key \'" + newKey + "\' was changed by another transaction");
+        key = newKey;
+    }
+
+    public String getKey() {
+        return key;
+    }
+}
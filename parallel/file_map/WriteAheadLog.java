@@ -0,0 +1,270 @@
+package ru.fizteh.fivt.students.titov.parallel.file_map;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of committed transactions, split into segments wal.N.log.
+ * Record: int length of payload, int CRC32 of payload, payload.
+ *
+ * Threads syncing at the same time share one fsync: the first thread which
+ * needs the log on disk forces it, the others wait until their records are
+ * covered by that force.
+ */
+public class WriteAheadLog implements Closeable {
+    private static final String PREFIX_OF_SEGMENT = "wal.";
+    private static final String SUFFIX_OF_SEGMENT = ".log";
+    private static final int HEADER_SIZE = 8;
+
+    private Path directory;
+    private FileChannel channel;
+    private long numberOfSegment;
+    private volatile long writtenPosition;
+    private long syncedPosition;
+    private boolean syncInProgress;
+    private Lock lockForAppend;
+    private Lock lockForSync;
+    private Condition syncFinished;
+
+    /**
+     * Opens the log in the directory. Old segments are kept for replay,
+     * new records go to a new segment.
+     */
+    public WriteAheadLog(Path newDirectory) throws IOException {
+        directory = newDirectory;
+        lockForAppend = new ReentrantLock();
+        lockForSync = new ReentrantLock();
+        syncFinished = lockForSync.newCondition();
+        List<Long> segments = listSegments();
+        numberOfSegment = segments.isEmpty() ? 0 : segments.get(segments.size() - 1) + 1;
+        channel = openSegment(numberOfSegment);
+    }
+
+    /**
+     * Passes payloads of all records of old segments to the handler in the order they were written.
+     * A record cut by a crash at the end of the last old segment is dropped.
+     */
+    public void replay(Consumer<byte[]> handler) throws BadFileException {
+        List<Long> segments;
+        try {
+            segments = listSegments();
+        } catch (IOException e) {
+            throw new BadFileException(e);
+        }
+        segments.removeIf(oneSegment -> oneSegment >= numberOfSegment);
+        for (int i = 0; i < segments.size(); ++i) {
+            boolean lastSegment = i == segments.size() - 1;
+            try (FileChannel input = FileChannel.open(getPathOfSegment(segments.get(i)))) {
+                ByteBuffer buffer = input.map(MapMode.READ_ONLY, 0, input.size());
+                while (buffer.hasRemaining()) {
+                    byte[] payload = readRecord(buffer);
+                    if (payload == null) {
+                        if (lastSegment) {
+                            break;
+                        }
+                        throw new BadFileException();
+                    }
+                    handler.accept(payload);
+                }
+            } catch (BadFileException e) {
+                throw e;
+            } catch (IOException e) {
+                throw new BadFileException(e);
+            }
+        }
+    }
+
+    /**
+     * Payload of the record at the position of the buffer, null if the record is cut or broken.
+     */
+    static byte[] readRecord(ByteBuffer buffer) {
+        if (buffer.remaining() < HEADER_SIZE) {
+            return null;
+        }
+        int length = buffer.getInt();
+        int checksum = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            return null;
+        }
+        byte[] payload = new byte[length];
+        buffer.get(payload);
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        if ((int) crc.getValue() != checksum) {
+            return null;
+        }
+        return payload;
+    }
+
+    /**
+     * Writes the record and returns its end position for sync.
+     */
+    public long append(byte[] payload) throws IOException {
+        ByteBuffer record = toRecord(payload);
+        long end;
+        try {
+            lockForAppend.lock();
+            while (record.hasRemaining()) {
+                channel.write(record);
+            }
+            writtenPosition += record.capacity();
+            end = writtenPosition;
+        } finally {
+            lockForAppend.unlock();
+        }
+        return end;
+    }
+
+    /**
+     * Header and payload ready to be written.
+     */
+    static ByteBuffer toRecord(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+        record.putInt(payload.length).putInt((int) crc.getValue()).put(payload).flip();
+        return record;
+    }
+
+    /**
+     * Returns when all records written before are on disk.
+     */
+    public void sync() throws IOException {
+        sync(writtenPosition);
+    }
+
+    /**
+     * Returns when records up to the position are on disk.
+     */
+    public void sync(long position) throws IOException {
+        try {
+            lockForSync.lock();
+            while (syncedPosition < position) {
+                if (syncInProgress) {
+                    syncFinished.awaitUninterruptibly();
+                    continue;
+                }
+                syncInProgress = true;
+                long target = writtenPosition;
+                FileChannel channelForSync = channel;
+                lockForSync.unlock();
+                try {
+                    channelForSync.force(false);
+                } finally {
+                    lockForSync.lock();
+                    syncInProgress = false;
+                    syncFinished.signalAll();
+                }
+                syncedPosition = Math.max(syncedPosition, target);
+            }
+        } finally {
+            lockForSync.unlock();
+        }
+    }
+
+    /**
+     * Starts a new segment. Records written before are kept in old segments
+     * until deleteOldSegments is called.
+     *
+     * @return number of the new segment, records written before are in segments with smaller numbers
+     */
+    public long rotate() throws IOException {
+        try {
+            lockForAppend.lock();
+            try {
+                lockForSync.lock();
+                while (syncInProgress) {
+                    syncFinished.awaitUninterruptibly();
+                }
+                channel.force(false);
+                channel.close();
+                syncedPosition = writtenPosition;
+                syncFinished.signalAll();
+                ++numberOfSegment;
+                channel = openSegment(numberOfSegment);
+                return numberOfSegment;
+            } finally {
+                lockForSync.unlock();
+            }
+        } finally {
+            lockForAppend.unlock();
+        }
+    }
+
+    /**
+     * Removes all segments except the one records are written to now.
+     */
+    public void deleteOldSegments() throws IOException {
+        long current;
+        try {
+            lockForAppend.lock();
+            current = numberOfSegment;
+        } finally {
+            lockForAppend.unlock();
+        }
+        deleteSegmentsBefore(current);
+    }
+
+    /**
+     * Removes segments with numbers less than the given one, in ascending order.
+     */
+    public void deleteSegmentsBefore(long number) throws IOException {
+        for (long oneSegment : listSegments()) {
+            if (oneSegment < number) {
+                Files.deleteIfExists(getPathOfSegment(oneSegment));
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            lockForAppend.lock();
+            channel.close();
+        } finally {
+            lockForAppend.unlock();
+        }
+    }
+
+    private FileChannel openSegment(long number) throws IOException {
+        return FileChannel.open(getPathOfSegment(number), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private Path getPathOfSegment(long number) {
+        return directory.resolve(PREFIX_OF_SEGMENT + number + SUFFIX_OF_SEGMENT);
+    }
+
+    private List<Long> listSegments() throws IOException {
+        List<Long> result = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory,
+                PREFIX_OF_SEGMENT + "*" + SUFFIX_OF_SEGMENT)) {
+            for (Path oneFile : stream) {
+                String name = oneFile.getFileName().toString();
+                try {
+                    result.add(Long.parseLong(name.substring(PREFIX_OF_SEGMENT.length(),
+                            name.length() - SUFFIX_OF_SEGMENT.length())));
+                } catch (NumberFormatException e) {
+                    //not a segment
+                }
+            }
+        }
+        Collections.sort(result);
+        return result;
+    }
+}
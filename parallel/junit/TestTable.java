@@ -5,13 +5,47 @@ import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import ru.fizteh.fivt.storage.structured.*;
+import ru.fizteh.fivt.students.titov.parallel.multi_file_hash_map.MFileHashMap;
 import ru.fizteh.fivt.students.titov.parallel.multi_file_hash_map.MFileHashMapFactory;
+import ru.fizteh.fivt.students.titov.parallel.file_map.BucketLayout;
+import ru.fizteh.fivt.students.titov.parallel.file_map.ColumnAggregate;
+import ru.fizteh.fivt.students.titov.parallel.file_map.ColumnIndex;
+import ru.fizteh.fivt.students.titov.parallel.file_map.ColumnPredicate;
 import ru.fizteh.fivt.students.titov.parallel.file_map.FileMap;
+import ru.fizteh.fivt.students.titov.parallel.file_map.KeyPage;
+import ru.fizteh.fivt.students.titov.parallel.file_map.LsmTable;
+import ru.fizteh.fivt.students.titov.parallel.file_map.QueryRow;
+import ru.fizteh.fivt.students.titov.parallel.file_map.RowImporter;
+import ru.fizteh.fivt.students.titov.parallel.file_map.StoredTable;
+import ru.fizteh.fivt.students.titov.parallel.file_map.TableQuery;
+import ru.fizteh.fivt.students.titov.parallel.file_map.TableOptions;
+import ru.fizteh.fivt.students.titov.parallel.file_map.Transaction;
+import ru.fizteh.fivt.students.titov.parallel.file_map.TransactionConflictException;
+import ru.fizteh.fivt.students.titov.parallel.storeable.XmlRowCodec;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static org.junit.Assert.*;
 
@@ -254,4 +288,1225 @@ public class TestTable {
             //allright
         }
     }
+
+    @Test
+    public void testReloadAfterCommit() throws Exception {
+        TableOptions xmlOptions = new TableOptions();
+        xmlOptions.setCodecName(XmlRowCodec.NAME);
+        Table xmlTable = ((MFileHashMap) provider).createTable("xmlTestTable", typeList, xmlOptions);
+        try {
+            for (Table oneTable : new Table[] {testTable, xmlTable}) {
+                Storeable row = provider.createFor(oneTable);
+                row.setColumnAt(0, -7);
+                row.setColumnAt(1, "\u0444\u0438\u0437\u0442\u0435\u0445 <&>");
+                row.setColumnAt(2, null);
+                oneTable.put(key, row);
+                oneTable.put(key + 1, value);
+                oneTable.commit();
+            }
+
+            TableProvider reopened = factory.create(providerDirectory);
+            for (String oneName : new String[] {tableName, "xmlTestTable"}) {
+                Table reopenedTable = reopened.getTable(oneName);
+                assertEquals(reopenedTable.size(), 2);
+                Storeable row = reopenedTable.get(key);
+                assertEquals(row.getIntAt(0), Integer.valueOf(-7));
+                assertEquals(row.getStringAt(1), "\u0444\u0438\u0437\u0442\u0435\u0445 <&>");
+                assertNull(row.getColumnAt(2));
+                assertEquals(reopened.serialize(reopenedTable, reopenedTable.get(key + 1)),
+                        provider.serialize(testTable, value));
+            }
+        } finally {
+            provider.removeTable("xmlTestTable");
+        }
+    }
+
+    @Test
+    public void testLazyReload() throws Exception {
+        int size = 40;
+        for (int i = 0; i < size; ++i) {
+            Storeable row = provider.createFor(testTable);
+            row.setColumnAt(0, i);
+            testTable.put(key + i, row);
+        }
+        testTable.commit();
+
+        Table lazyTable = new MFileHashMap(providerDirectory, true).getTable(tableName);
+        assertEquals(lazyTable.size(), size);
+        assertEquals(lazyTable.get(key + 7).getIntAt(0), Integer.valueOf(7));
+        lazyTable.remove(key + 8);
+        assertEquals(lazyTable.commit(), 1);
+
+        Files.delete(Paths.get(providerDirectory, tableName, "size.tsv"));
+        lazyTable = new MFileHashMap(providerDirectory, true).getTable(tableName);
+        assertEquals(lazyTable.size(), size - 1);
+        assertNull(lazyTable.get(key + 8));
+    }
+
+    @Test
+    public void testWriteAheadLogReplay() throws Exception {
+        TableOptions options = new TableOptions();
+        options.setWriteAheadLog(true);
+        options.setCheckpointInterval(100000);
+        FileMap loggedTable = (FileMap) ((MFileHashMap) provider).createTable("loggedTable", typeList, options);
+        int size = 30;
+        for (int i = 0; i < size; ++i) {
+            Storeable row = provider.createFor(loggedTable);
+            row.setColumnAt(0, i);
+            loggedTable.put(key + i, row);
+        }
+        assertEquals(loggedTable.commit(), size);
+        loggedTable.remove(key + 3);
+        assertEquals(loggedTable.commit(), 1);
+        assertFalse(Files.exists(Paths.get(providerDirectory, "loggedTable", "size.tsv")));
+
+        MFileHashMap reopenedProvider = new MFileHashMap(providerDirectory);
+        Table reopenedTable = reopenedProvider.getTable("loggedTable");
+        assertEquals(reopenedTable.size(), size - 1);
+        assertNull(reopenedTable.get(key + 3));
+        assertEquals(reopenedTable.get(key + 5).getIntAt(0), Integer.valueOf(5));
+        reopenedProvider.close();
+        loggedTable.close();
+
+        reopenedTable = new MFileHashMap(providerDirectory, true).getTable("loggedTable");
+        assertEquals(reopenedTable.size(), size - 1);
+        assertEquals(reopenedTable.get(key + 7).getIntAt(0), Integer.valueOf(7));
+        ((FileMap) reopenedTable).close();
+    }
+
+    @Test
+    public void testDurabilityModes() throws Exception {
+        String[] modes = {TableOptions.DURABILITY_NONE, TableOptions.DURABILITY_ON_COMMIT,
+                TableOptions.DURABILITY_PERIODIC};
+        for (String oneMode : modes) {
+            TableOptions options = new TableOptions();
+            options.setDurability(oneMode);
+            options.setSyncInterval(10);
+            FileMap table = (FileMap) ((MFileHashMap) provider).createTable(oneMode, typeList, options);
+            for (int i = 0; i < 20; ++i) {
+                Storeable row = provider.createFor(table);
+                row.setColumnAt(1, oneMode + i);
+                table.put(key + i, row);
+            }
+            table.commit();
+            table.remove(key + 0);
+            table.commit();
+            table.close();
+            Files.write(Paths.get(providerDirectory, oneMode, "buckets", "3.dat.tmp"), new byte[] {1, 2});
+            Files.write(Paths.get(providerDirectory, oneMode, "size.tsv.tmp"), new byte[] {1});
+
+            Table reopenedTable = new MFileHashMap(providerDirectory).getTable(oneMode);
+            assertEquals(reopenedTable.size(), 19);
+            assertEquals(reopenedTable.get(key + 4).getStringAt(1), oneMode + 4);
+            assertEquals(((FileMap) reopenedTable).getOptions().getDurability(), oneMode);
+            assertFalse(Files.walk(Paths.get(providerDirectory, oneMode))
+                    .anyMatch(file -> file.toString().endsWith(".tmp")));
+        }
+    }
+
+    @Test
+    public void testSplitAndMergeBuckets() throws Exception {
+        TableOptions options = new TableOptions();
+        options.setSplitThreshold(4);
+        Table table = ((MFileHashMap) provider).createTable("splitTable", typeList, options);
+        int size = 300;
+        for (int i = 0; i < size; ++i) {
+            Storeable row = provider.createFor(table);
+            row.setColumnAt(0, i);
+            table.put(key + i, row);
+        }
+        table.commit();
+        int numberOfFiles = Paths.get(providerDirectory, "splitTable", "buckets").toFile().list().length;
+        assertTrue(numberOfFiles > size / 4 / 2);
+
+        Table reopenedTable = new MFileHashMap(providerDirectory).getTable("splitTable");
+        assertEquals(reopenedTable.size(), size);
+        for (int i = 0; i < size; ++i) {
+            assertEquals(reopenedTable.get(key + i).getIntAt(0), Integer.valueOf(i));
+        }
+        for (int i = 10; i < size; ++i) {
+            reopenedTable.remove(key + i);
+        }
+        reopenedTable.commit();
+        assertTrue(Paths.get(providerDirectory, "splitTable", "buckets").toFile().list().length < numberOfFiles);
+
+        reopenedTable = new MFileHashMap(providerDirectory, true).getTable("splitTable");
+        assertEquals(reopenedTable.size(), 10);
+        assertEquals(reopenedTable.get(key + 9).getIntAt(0), Integer.valueOf(9));
+        assertNull(reopenedTable.get(key + 10));
+    }
+
+    @Test
+    public void testKeysOfOtherBuckets() throws Exception {
+        TableOptions options = new TableOptions();
+        options.setSplitThreshold(4);
+        Table table = ((MFileHashMap) provider).createTable("movingTable", typeList, options);
+        int size = 100;
+        for (int i = 0; i < size; ++i) {
+            Storeable row = provider.createFor(table);
+            row.setColumnAt(0, i);
+            table.put(key + i, row);
+        }
+        table.commit();
+        Path tableDirectory = Paths.get(providerDirectory, "movingTable");
+        Path manifestFile = tableDirectory.resolve("manifest.tsv");
+        BucketLayout layout = BucketLayout.parse(Files.readAllLines(manifestFile));
+        int lastBucket = layout.getNumberOfBuckets() - 1;
+        int movingBucket = layout.moving().getMovingBucket();
+        Path bucketsDirectory = tableDirectory.resolve("buckets");
+        byte[] copies = Files.readAllBytes(bucketsDirectory.resolve(lastBucket + ".dat"));
+
+        Path otherFile = bucketsDirectory.resolve((movingBucket + 1) % lastBucket + ".dat");
+        byte[] otherContent = Files.readAllBytes(otherFile);
+        Files.write(otherFile, copies, StandardOpenOption.APPEND);
+        try {
+            new MFileHashMap(providerDirectory);
+            fail();
+        } catch (IOException e) {
+            //keys of the last bucket in a bucket which isn't moving
+        }
+        Files.write(otherFile, otherContent);
+
+        Files.write(bucketsDirectory.resolve(movingBucket + ".dat"), copies, StandardOpenOption.APPEND);
+        try {
+            new MFileHashMap(providerDirectory);
+            fail();
+        } catch (IOException e) {
+            //the manifest doesn't mark the bucket as moving
+        }
+
+        Files.write(manifestFile, layout.moving().toLines());
+        Table reopenedTable = new MFileHashMap(providerDirectory).getTable("movingTable");
+        assertEquals(reopenedTable.size(), size);
+        for (int i = 0; i < size; ++i) {
+            assertEquals(reopenedTable.get(key + i).getIntAt(0), Integer.valueOf(i));
+        }
+        assertEquals(Files.readAllLines(manifestFile), layout.toLines());
+        reopenedTable = new MFileHashMap(providerDirectory, true).getTable("movingTable");
+        assertEquals(reopenedTable.get(key + 7).getIntAt(0), Integer.valueOf(7));
+    }
+
+    @Test
+    public void testLsmEngine() throws Exception {
+        TableOptions options = new TableOptions();
+        options.setEngine(TableOptions.ENGINE_LSM);
+        options.setMemtableSize(16);
+        StoredTable table = (StoredTable) ((MFileHashMap) provider).createTable("lsmTable", typeList, options);
+        int size = 500;
+        for (int i = 0; i < size; ++i) {
+            Storeable row = provider.createFor(table);
+            row.setColumnAt(0, i);
+            table.put(key + i, row);
+            if (i % 10 == 9) {
+                table.commit();
+            }
+        }
+        for (int i = 0; i < size; i += 2) {
+            Storeable row = provider.createFor(table);
+            row.setColumnAt(0, -i);
+            table.put(key + i, row);
+        }
+        for (int i = 1; i < size; i += 4) {
+            table.remove(key + i);
+        }
+        table.commit();
+        int expectedSize = size - size / 4;
+        assertEquals(table.size(), expectedSize);
+        assertEquals(table.list().size(), expectedSize);
+        table.close();
+
+        MFileHashMap reopenedProvider = new MFileHashMap(providerDirectory);
+        Table reopenedTable = reopenedProvider.getTable("lsmTable");
+        assertEquals(reopenedTable.size(), expectedSize);
+        for (int i = 0; i < size; ++i) {
+            if (i % 4 == 1) {
+                assertNull(reopenedTable.get(key + i));
+            } else {
+                assertEquals(reopenedTable.get(key + i).getIntAt(0), Integer.valueOf(i % 2 == 0 ? -i : i));
+            }
+        }
+        reopenedTable.remove(key + 0);
+        assertEquals(((StoredTable) reopenedTable).list().size(), expectedSize - 1);
+        assertEquals(reopenedTable.commit(), 1);
+        reopenedProvider.close();
+
+        reopenedTable = new MFileHashMap(providerDirectory).getTable("lsmTable");
+        assertEquals(reopenedTable.size(), expectedSize - 1);
+        assertNull(reopenedTable.get(key + 0));
+        ((StoredTable) reopenedTable).close();
+    }
+
+    @Test
+    public void testLsmTransactions() throws Exception {
+        TableOptions options = new TableOptions();
+        options.setEngine(TableOptions.ENGINE_LSM);
+        options.setMemtableSize(8);
+        LsmTable table = (LsmTable) ((MFileHashMap) provider).createTable("lsmTransactions", typeList, options);
+        Storeable firstRow = provider.createFor(table);
+        firstRow.setColumnAt(0, 1);
+        Storeable secondRow = provider.createFor(table);
+        secondRow.setColumnAt(0, 2);
+
+        Transaction first = table.begin();
+        Transaction second = table.begin();
+        assertNull(first.put(key, firstRow));
+        assertNull(second.put(key, secondRow));
+        assertNull(table.get(key));
+        assertEquals(first.commit(), 1);
+        assertNull(table.get(key));
+        assertEquals(table.rollback(), 0);
+        assertEquals(table.get(key).getIntAt(0), Integer.valueOf(1));
+        try {
+            second.commit();
+            fail();
+        } catch (TransactionConflictException e) {
+            assertEquals(e.getKey(), key);
+        }
+        assertEquals(second.getNumberOfUncommittedChanges(), 0);
+        assertEquals(second.remove(key).getIntAt(0), Integer.valueOf(1));
+        assertEquals(second.commit(), 1);
+        assertEquals(table.rollback(), 0);
+        assertNull(table.get(key));
+
+        int rounds = 200;
+        AtomicBoolean broken = new AtomicBoolean(false);
+        Thread writer = new Thread(() -> {
+            try {
+                for (int i = 1; i <= rounds; ++i) {
+                    Storeable newFirst = provider.createFor(table);
+                    Storeable newSecond = provider.createFor(table);
+                    newFirst.setColumnAt(0, i);
+                    newSecond.setColumnAt(0, -i);
+                    table.put("first", newFirst);
+                    table.put("second", newSecond);
+                    table.commit();
+                }
+            } catch (IOException e) {
+                broken.set(true);
+            }
+        });
+        Thread reader = new Thread(() -> {
+            Transaction transaction = table.begin();
+            for (int i = 0; i < rounds; ++i) {
+                transaction.put("reader", firstRow);
+                Storeable firstValue = transaction.get("first");
+                Thread.yield();
+                Storeable secondValue = transaction.get("second");
+                if ((firstValue == null) != (secondValue == null) || firstValue != null
+                        && firstValue.getIntAt(0) + secondValue.getIntAt(0) != 0) {
+                    broken.set(true);
+                }
+                transaction.rollback();
+            }
+        });
+        writer.start();
+        reader.start();
+        writer.join();
+        reader.join();
+        assertFalse(broken.get());
+        assertEquals(table.rollback(), 0);
+        assertEquals(table.size(), 2);
+        table.close();
+
+        Table reopenedTable = new MFileHashMap(providerDirectory).getTable("lsmTransactions");
+        assertEquals(reopenedTable.size(), 2);
+        assertEquals(reopenedTable.get("second").getIntAt(0), Integer.valueOf(-rounds));
+    }
+
+    @Test
+    public void testKeydirEngine() throws Exception {
+        TableOptions options = new TableOptions();
+        options.setEngine(TableOptions.ENGINE_KEYDIR);
+        StoredTable table = (StoredTable) ((MFileHashMap) provider).createTable("keydirTable", typeList, options);
+        int size = 100;
+        for (int i = 0; i < size; ++i) {
+            Storeable row = provider.createFor(table);
+            row.setColumnAt(0, i);
+            row.setColumnAt(1, "value" + i);
+            table.put(key + i, row);
+        }
+        assertEquals(table.commit(), size);
+        assertEquals(table.get(key + 5).getStringAt(1), "value5");
+        table.close();
+
+        for (int round = 0; round < 3; ++round) {
+            MFileHashMap reopenedProvider = new MFileHashMap(providerDirectory);
+            Table reopenedTable = reopenedProvider.getTable("keydirTable");
+            assertEquals(reopenedTable.size(), round == 0 ? size : size - 1);
+            for (int i = 0; i < size; ++i) {
+                Storeable row = provider.createFor(reopenedTable);
+                row.setColumnAt(0, -i);
+                reopenedTable.put(key + i, row);
+            }
+            reopenedTable.remove(key + round);
+            reopenedTable.commit();
+            assertEquals(reopenedTable.get(key + 7).getIntAt(0), Integer.valueOf(-7));
+            reopenedProvider.close();
+        }
+
+        Set<String> mergedFiles = new TreeSet<>(Arrays.asList("data.6.log", "signature.tsv"));
+        for (int round = 0; round < 2; ++round) {
+            StoredTable reopenedTable = (StoredTable) new MFileHashMap(providerDirectory).getTable("keydirTable");
+            assertEquals(reopenedTable.size(), size - 1);
+            for (int i = 0; i < size; ++i) {
+                if (i == 2) {
+                    assertNull(reopenedTable.get(key + i));
+                } else {
+                    assertEquals(reopenedTable.get(key + i).getIntAt(0), Integer.valueOf(-i));
+                    assertNull(reopenedTable.get(key + i).getStringAt(1));
+                }
+            }
+            reopenedTable.close();
+            assertEquals(new TreeSet<>(Arrays.asList(Paths.get(providerDirectory, "keydirTable").toFile().list())),
+                    mergedFiles);
+        }
+    }
+
+    @Test
+    public void testKeydirTransactions() throws Exception {
+        TableOptions options = new TableOptions();
+        options.setEngine(TableOptions.ENGINE_KEYDIR);
+        StoredTable table = (StoredTable) ((MFileHashMap) provider).createTable("keydirTransactions", typeList,
+                options);
+        Storeable firstRow = provider.createFor(table);
+        firstRow.setColumnAt(0, 1);
+        Storeable secondRow = provider.createFor(table);
+        secondRow.setColumnAt(0, 2);
+        table.put(key, firstRow);
+        table.commit();
+
+        Transaction first = table.begin();
+        Transaction second = table.begin();
+        assertEquals(first.remove(key).getIntAt(0), Integer.valueOf(1));
+        assertNull(second.put("other", secondRow));
+        assertEquals(second.put(key, secondRow).getIntAt(0), Integer.valueOf(1));
+        assertEquals(first.commit(), 1);
+        assertNull(table.get(key));
+        assertEquals(second.get(key).getIntAt(0), Integer.valueOf(2));
+        assertEquals(second.size(), 2);
+        try {
+            second.commit();
+            fail();
+        } catch (TransactionConflictException e) {
+            assertEquals(e.getKey(), key);
+        }
+        assertNull(table.get("other"));
+        assertEquals(table.size(), 0);
+
+        int rounds = 200;
+        AtomicBoolean broken = new AtomicBoolean(false);
+        Thread writer = new Thread(() -> {
+            try {
+                for (int i = 1; i <= rounds; ++i) {
+                    Storeable newFirst = provider.createFor(table);
+                    Storeable newSecond = provider.createFor(table);
+                    newFirst.setColumnAt(0, i);
+                    newSecond.setColumnAt(0, -i);
+                    table.put("first", newFirst);
+                    table.put("second", newSecond);
+                    table.commit();
+                }
+            } catch (IOException e) {
+                broken.set(true);
+            }
+        });
+        Thread reader = new Thread(() -> {
+            Transaction transaction = table.begin();
+            for (int i = 0; i < rounds; ++i) {
+                transaction.put("reader", firstRow);
+                Storeable firstValue = transaction.get("first");
+                Thread.yield();
+                Storeable secondValue = transaction.get("second");
+                if ((firstValue == null) != (secondValue == null) || firstValue != null
+                        && firstValue.getIntAt(0) + secondValue.getIntAt(0) != 0) {
+                    broken.set(true);
+                }
+                List<String> keys = transaction.list();
+                if (keys.contains("first") != keys.contains("second")) {
+                    broken.set(true);
+                }
+                transaction.rollback();
+            }
+        });
+        writer.start();
+        reader.start();
+        writer.join();
+        reader.join();
+        assertFalse(broken.get());
+        assertEquals(table.rollback(), 0);
+        assertEquals(table.size(), 2);
+        assertEquals(table.get("second").getIntAt(0), Integer.valueOf(-rounds));
+        table.close();
+    }
+
+    @Test
+    public void testBloomFiltersSkipAbsentKeys() throws Exception {
+        TableOptions options = new TableOptions();
+        options.setBloomFalsePositiveRate(0.0001);
+        Table table = ((MFileHashMap) provider).createTable("bloomTable", typeList, options);
+        Path bucketsDirectory = Paths.get(providerDirectory, "bloomTable", "buckets");
+        Storeable oldRow = provider.createFor(table);
+        table.put("old", oldRow);
+        table.commit();
+        for (File oneFile : bucketsDirectory.toFile().listFiles()) {
+            assertFalse(oneFile.getName().endsWith(".bloom"));
+        }
+
+        Table writingTable = new MFileHashMap(providerDirectory, true).getTable("bloomTable");
+        int size = 200;
+        for (int i = 0; i < size; ++i) {
+            Storeable row = provider.createFor(writingTable);
+            row.setColumnAt(0, i);
+            writingTable.put(key + i, row);
+        }
+        writingTable.commit();
+        table = new MFileHashMap(providerDirectory, false).getTable("bloomTable");
+        table.put("late", oldRow);
+        table.commit();
+        Table checkingTable = new MFileHashMap(providerDirectory, true).getTable("bloomTable");
+        assertNotNull(checkingTable.get("late"));
+        checkingTable.remove("late");
+        checkingTable.commit();
+
+        for (File oneFile : bucketsDirectory.toFile().listFiles()) {
+            if (oneFile.getName().endsWith(".dat")) {
+                Files.write(oneFile.toPath(), new byte[] {1, 2, 3});
+            }
+        }
+        Table lazyTable = new MFileHashMap(providerDirectory, true).getTable("bloomTable");
+        for (int i = 0; i < size; ++i) {
+            assertNull(lazyTable.get("absent" + i));
+            assertNull(lazyTable.remove("absent" + i));
+        }
+        assertEquals(lazyTable.size(), size + 1);
+        provider.removeTable("bloomTable");
+    }
+
+    @Test
+    public void testCompressedBuckets() throws Exception {
+        long[] sizes = new long[2];
+        String[] compressions = {TableOptions.COMPRESSION_NONE, TableOptions.COMPRESSION_DEFLATE};
+        for (int c = 0; c < compressions.length; ++c) {
+            TableOptions options = new TableOptions();
+            options.setCompression(compressions[c]);
+            String name = "compressed" + compressions[c];
+            Table table = ((MFileHashMap) provider).createTable(name, typeList, options);
+            int size = 300;
+            String text = "the same long text in every row of the table ";
+            for (int i = 0; i < size; ++i) {
+                Storeable row = provider.createFor(table);
+                row.setColumnAt(0, i);
+                row.setColumnAt(1, text + i % 3);
+                table.put(key + i, row);
+            }
+            table.commit();
+            table.remove(key + 7);
+            table.commit();
+
+            Path bucketsDirectory = Paths.get(providerDirectory, name, "buckets");
+            for (File oneFile : bucketsDirectory.toFile().listFiles()) {
+                if (oneFile.getName().endsWith(".dat")) {
+                    sizes[c] += oneFile.length();
+                }
+            }
+            for (boolean lazy : new boolean[] {false, true}) {
+                Files.deleteIfExists(Paths.get(providerDirectory, name, "size.tsv"));
+                Table reopenedTable = new MFileHashMap(providerDirectory, lazy).getTable(name);
+                assertEquals(reopenedTable.size(), size - 1);
+                assertNull(reopenedTable.get(key + 7));
+                assertEquals(reopenedTable.get(key + 8).getStringAt(1), text + 2);
+                ((StoredTable) reopenedTable).close();
+            }
+            provider.removeTable(name);
+        }
+        assertTrue(sizes[1] * 3 < sizes[0]);
+    }
+
+    @Test
+    public void testOrderedScans() throws Exception {
+        String[] engines = {TableOptions.ENGINE_HASH, TableOptions.ENGINE_LSM, TableOptions.ENGINE_KEYDIR};
+        for (String oneEngine : engines) {
+            for (boolean ordered : new boolean[] {false, true}) {
+                TableOptions options = new TableOptions();
+                options.setEngine(oneEngine);
+                options.setOrderedIndex(ordered);
+                options.setMemtableSize(8);
+                String name = "scan" + oneEngine + ordered;
+                StoredTable table = (StoredTable) ((MFileHashMap) provider).createTable(name, typeList, options);
+                for (int i = 10; i < 40; ++i) {
+                    table.put(key + i, value);
+                }
+                table.commit();
+                assertEquals(toList(table.scan(key + 15, key + 18, 10)), Arrays.asList(key + 15, key + 16, key + 17));
+                table.remove(key + 16);
+                table.put(key + 155, value);
+                table.commit();
+                table.remove(key + 17);
+                table.put(key + 15 + "a", value);
+                assertEquals(toList(table.scan(key + 15, key + 18, 10)),
+                        Arrays.asList(key + 15, key + 155, key + 15 + "a"));
+                assertEquals(toList(table.scan(null, key + 12, 10)), Arrays.asList(key + 10, key + 11));
+                assertEquals(toList(table.scan(key + 38, null, 10)), Arrays.asList(key + 38, key + 39));
+                assertEquals(toList(table.scan(null, null, 3)), Arrays.asList(key + 10, key + 11, key + 12));
+                assertEquals(toList(table.prefixScan(key + 2)).size(), 10);
+                assertEquals(toList(table.prefixScan(key + 15)), Arrays.asList(key + 15, key + 155, key + 15 + "a"));
+                table.rollback();
+                assertEquals(toList(table.prefixScan(key + 15)), Arrays.asList(key + 15, key + 155));
+                table.close();
+                provider.removeTable(name);
+            }
+        }
+    }
+
+    @Test
+    public void testPagedListing() throws Exception {
+        String[] engines = {TableOptions.ENGINE_HASH, TableOptions.ENGINE_LSM, TableOptions.ENGINE_KEYDIR};
+        for (String oneEngine : engines) {
+            TableOptions options = new TableOptions();
+            options.setEngine(oneEngine);
+            String name = "pages" + oneEngine;
+            StoredTable table = (StoredTable) ((MFileHashMap) provider).createTable(name, typeList, options);
+            List<String> expected = new ArrayList<>();
+            for (int i = 0; i < 95; ++i) {
+                table.put(key + i, value);
+                expected.add(key + i);
+            }
+            table.commit();
+            table.remove(key + 3);
+            table.remove(key + 50);
+            table.put("extra", value);
+            expected.remove(key + 3);
+            expected.remove(key + 50);
+            expected.add("extra");
+            Collections.sort(expected);
+
+            List<String> listed = new ArrayList<>();
+            String pageToken = null;
+            int pages = 0;
+            do {
+                KeyPage page = table.listPage(pageToken, 10);
+                assertTrue(page.getKeys().size() <= 10);
+                listed.addAll(page.getKeys());
+                pageToken = page.getNextPageToken();
+                ++pages;
+            } while (pageToken != null);
+            assertEquals(listed, expected);
+            assertEquals(pages, 10);
+
+            List<String> streamed = toList(table.keys());
+            Collections.sort(streamed);
+            assertEquals(streamed, expected);
+            table.rollback();
+
+            table.put("late", value);
+            table.remove(key + 10);
+            table.commit();
+            expected = new ArrayList<>();
+            for (int i = 0; i < 95; ++i) {
+                expected.add(key + i);
+            }
+            expected.remove(key + 10);
+            expected.add("late");
+            Collections.sort(expected);
+            listed = new ArrayList<>();
+            pageToken = null;
+            do {
+                KeyPage page = table.listPage(pageToken, 7);
+                listed.addAll(page.getKeys());
+                pageToken = page.getNextPageToken();
+            } while (pageToken != null);
+            assertEquals(listed, expected);
+            table.close();
+            provider.removeTable(name);
+        }
+    }
+
+    @Test
+    public void testColumnIndexes() throws Exception {
+        MFileHashMap database = (MFileHashMap) provider;
+        FileMap table = (FileMap) database.createTable("indexTable", typeList);
+        for (int i = 0; i < 50; ++i) {
+            Storeable row = provider.createFor(table);
+            row.setColumnAt(0, i % 5);
+            row.setColumnAt(1, "s" + (100 + i));
+            table.put(key + i, row);
+        }
+        table.commit();
+        assertTrue(database.createIndex("indexTable", 0, ColumnIndex.HASH));
+        assertFalse(database.createIndex("indexTable", 0, ColumnIndex.ORDERED));
+        assertTrue(database.createIndex("indexTable", 1, ColumnIndex.ORDERED));
+        assertEquals(table.lookup(0, 3).size(), 10);
+
+        table.remove(key + 3);
+        Storeable row = provider.createFor(table);
+        row.setColumnAt(0, 3);
+        row.setColumnAt(1, "s" + 200);
+        table.put(key + 4, row);
+        assertEquals(table.lookup(0, 3).size(), 10);
+        assertEquals(table.lookup(0, 4).size(), 9);
+        table.commit();
+        assertEquals(table.lookup(0, 4).size(), 9);
+        assertEquals(table.lookupRange(1, "s110", "s113"), Arrays.asList(key + 10, key + 11, key + 12));
+        List<String> found = table.lookupRange(1, "s145", null);
+        assertEquals(found, Arrays.asList(key + 45, key + 46, key + 47, key + 48, key + 49, key + 4));
+        try {
+            table.lookupRange(0, 1, 2);
+            fail();
+        } catch (IllegalStateException e) {
+            //hash index has no ranges
+        }
+        assertTrue(database.dropIndex("indexTable", 1));
+
+        FileMap lazyTable = (FileMap) new MFileHashMap(providerDirectory, true).getTable("indexTable");
+        assertEquals(lazyTable.getIndexes().keySet(), Collections.singleton(0));
+        List<String> lazyFound = lazyTable.lookup(0, 3);
+        Collections.sort(lazyFound);
+        List<String> expected = new ArrayList<>();
+        for (int i = 8; i < 50; i += 5) {
+            expected.add(key + i);
+        }
+        expected.add(key + 4);
+        Collections.sort(expected);
+        assertEquals(lazyFound, expected);
+        provider.removeTable("indexTable");
+    }
+
+    @Test
+    public void testSelectQueries() throws Exception {
+        FileMap table = (FileMap) testTable;
+        for (int i = 0; i < 300; ++i) {
+            Storeable row = provider.createFor(table);
+            row.setColumnAt(0, i);
+            row.setColumnAt(1, "s" + i);
+            row.setColumnAt(2, i % 3 == 0);
+            table.put(key + i, row);
+        }
+        table.commit();
+        table.remove(key + 201);
+        Storeable row = provider.createFor(table);
+        row.setColumnAt(0, 1000);
+        row.setColumnAt(2, true);
+        table.put("extra", row);
+
+        List<ColumnPredicate> predicates = Arrays.asList(
+                new ColumnPredicate(0, ColumnPredicate.GREATER, 100),
+                ColumnPredicate.parse(table, "2", ColumnPredicate.EQUAL, "true"));
+        Iterator<QueryRow> rows = table.select(new TableQuery(predicates, Arrays.asList(1, 0)));
+        List<String> found = new ArrayList<>();
+        while (rows.hasNext()) {
+            QueryRow oneRow = rows.next();
+            assertEquals(oneRow.getValues().size(), 2);
+            if (!oneRow.getKey().equals("extra")) {
+                assertEquals(oneRow.getValues().get(0), "s" + oneRow.getValues().get(1));
+            }
+            found.add(oneRow.getKey());
+        }
+        List<String> expected = new ArrayList<>();
+        for (int i = 102; i < 300; i += 3) {
+            expected.add(key + i);
+        }
+        expected.remove(key + 201);
+        expected.add("extra");
+        Collections.sort(found);
+        Collections.sort(expected);
+        assertEquals(found, expected);
+
+        rows = table.select(new TableQuery(Collections.singletonList(
+                new ColumnPredicate(1, ColumnPredicate.NOT_EQUAL, "s5")), new ArrayList<>()));
+        int count = 0;
+        while (rows.hasNext()) {
+            assertEquals(rows.next().getValues().size(), 3);
+            ++count;
+        }
+        assertEquals(count, 299);
+        try {
+            table.select(new TableQuery(Collections.singletonList(
+                    new ColumnPredicate(0, ColumnPredicate.GREATER, 100L)), new ArrayList<>()));
+            fail();
+        } catch (ColumnFormatException e) {
+            //long value for an int column
+        }
+        try {
+            new ColumnPredicate(0, ColumnPredicate.EQUAL, new Object());
+            fail();
+        } catch (ColumnFormatException e) {
+            //not a type of columns
+        }
+        table.rollback();
+    }
+
+    @Test
+    public void testAggregates() throws Exception {
+        FileMap table = (FileMap) testTable;
+        for (int i = 1; i <= 100; ++i) {
+            Storeable row = provider.createFor(table);
+            row.setColumnAt(0, i);
+            row.setColumnAt(1, "g" + i % 4);
+            row.setColumnAt(2, i % 2 == 0);
+            table.put(key + i, row);
+        }
+        table.commit();
+        Storeable row = provider.createFor(table);
+        row.setColumnAt(1, "g0");
+        table.put(key + 1000, row);
+        table.remove(key + 100);
+
+        ColumnAggregate all = table.aggregate(0, -1, new ArrayList<>()).get(null);
+        assertEquals(all.getCount(), 99);
+        assertEquals(all.getSum(), 5050L - 100);
+        assertEquals(all.getMin(), 1);
+        assertEquals(all.getMax(), 99);
+        assertEquals(all.getAverage(), 50.0, 1e-9);
+
+        Map<Object, ColumnAggregate> groups = table.aggregate(0, 1,
+                Collections.singletonList(new ColumnPredicate(2, ColumnPredicate.EQUAL, true)));
+        assertEquals(groups.keySet(), new HashSet<>(Arrays.asList("g0", "g2")));
+        assertEquals(groups.get("g0").getCount(), 24);
+        assertEquals(groups.get("g0").get(ColumnAggregate.MAX), 96);
+        assertEquals(groups.get("g2").getSum(), 1250L);
+        try {
+            table.aggregate(1, -1, new ArrayList<>()).get(null).getSum();
+            fail();
+        } catch (IllegalStateException e) {
+            //strings have no sum
+        }
+        try {
+            table.aggregate(0, 1, Collections.singletonList(new ColumnPredicate(1, ColumnPredicate.EQUAL, 5)));
+            fail();
+        } catch (ColumnFormatException e) {
+            //int value for a String column
+        }
+        table.rollback();
+    }
+
+    @Test
+    public void testBulkLoad() throws Exception {
+        FileMap table = (FileMap) testTable;
+        table.put(key + 0, value);
+        table.put("old", value);
+        table.commit();
+        assertTrue(((MFileHashMap) provider).createIndex(tableName, 0, ColumnIndex.HASH));
+        StringBuilder csv = new StringBuilder();
+        for (int i = 0; i < 500; ++i) {
+            csv.append(key).append(i).append(",").append(i % 7).append(",\"s, \"\"").append(i)
+                    .append("\"\"\",").append(i % 2 == 0).append(System.lineSeparator());
+        }
+        csv.append("nulls,,,").append(System.lineSeparator());
+        Storeable seen = table.get(key + 0);
+        int loaded = table.bulkLoad(new RowImporter(table, new BufferedReader(new StringReader(csv.toString())),
+                RowImporter.CSV));
+        assertEquals(loaded, 501);
+        assertEquals(table.size(), 2);
+        assertEquals(table.rollback(), 0);
+        assertEquals(table.size(), 502);
+        assertEquals(table.get(key + 42).getStringAt(1), "s, \"42\"");
+        assertEquals(table.get(key + 42).getBooleanAt(2), true);
+        assertNull(table.get("nulls").getColumnAt(0));
+        assertEquals(table.lookup(0, 3).size(), 71);
+        assertTrue(seen != table.get(key + 0));
+
+        String tsv = "tsv1\t5\tx\tfalse\n\ntsv2\t6\t\ttrue\n";
+        table.bulkLoad(new RowImporter(table, new BufferedReader(new StringReader(tsv)), RowImporter.TSV));
+        table.rollback();
+        String xml = "xml1\t" + provider.serialize(table, table.get("tsv1")) + "\n";
+        table.bulkLoad(new RowImporter(table, new BufferedReader(new StringReader(xml)), RowImporter.XML));
+        table.rollback();
+        assertEquals(table.get("xml1").getIntAt(0), Integer.valueOf(5));
+        assertNull(table.get("tsv2").getColumnAt(1));
+        try {
+            table.bulkLoad(new RowImporter(table, new BufferedReader(new StringReader("bad,1,x\n")),
+                    RowImporter.CSV));
+            fail();
+        } catch (IllegalArgumentException e) {
+            //two values instead of three
+        }
+        assertEquals(table.size(), 505);
+
+        Table reopenedTable = new MFileHashMap(providerDirectory, true).getTable(tableName);
+        assertEquals(reopenedTable.size(), 505);
+        assertEquals(reopenedTable.get(key + 499).getIntAt(0), Integer.valueOf(499 % 7));
+        assertFalse(Files.exists(Paths.get(providerDirectory, tableName, "bulk.tsv")));
+    }
+
+    @Test
+    public void testBulkLoadInBatches() throws Exception {
+        TableOptions options = new TableOptions();
+        options.setCompression(TableOptions.COMPRESSION_DEFLATE);
+        FileMap table = (FileMap) ((MFileHashMap) provider).createTable("batches", typeList, options);
+        Storeable oldRow = provider.createFor(table);
+        oldRow.setColumnAt(0, -1);
+        table.put("old", oldRow);
+        table.put(key + 3, oldRow);
+        table.commit();
+        List<Map.Entry<String, Storeable>> rows = new ArrayList<>();
+        for (int i = 0; i < 10000; ++i) {
+            Storeable row = provider.createFor(table);
+            row.setColumnAt(0, i);
+            rows.add(new AbstractMap.SimpleEntry<>(key + i, row));
+        }
+        Storeable repeatedRow = provider.createFor(table);
+        repeatedRow.setColumnAt(0, 42);
+        rows.add(new AbstractMap.SimpleEntry<>(key + 5, repeatedRow));
+
+        List<Map.Entry<String, Storeable>> badRows = new ArrayList<>(rows);
+        badRows.add(new AbstractMap.SimpleEntry<>("bad", null));
+        try {
+            table.bulkLoad(badRows.iterator());
+            fail();
+        } catch (IllegalArgumentException e) {
+            //null value in the last batch
+        }
+        assertEquals(table.size(), 2);
+        for (File oneFile : Paths.get(providerDirectory, "batches", "buckets").toFile().listFiles()) {
+            assertFalse(oneFile.getName().endsWith(".bulk"));
+        }
+
+        assertEquals(table.bulkLoad(rows.iterator()), 10001);
+        assertEquals(table.size(), 10001);
+        for (boolean lazy : new boolean[] {false, true}) {
+            Table reopenedTable = new MFileHashMap(providerDirectory, lazy).getTable("batches");
+            assertEquals(reopenedTable.size(), 10001);
+            assertEquals(reopenedTable.get(key + 5).getIntAt(0), Integer.valueOf(42));
+            assertEquals(reopenedTable.get(key + 3).getIntAt(0), Integer.valueOf(3));
+            assertEquals(reopenedTable.get(key + 9999).getIntAt(0), Integer.valueOf(9999));
+            assertEquals(reopenedTable.get("old").getIntAt(0), Integer.valueOf(-1));
+        }
+    }
+
+    @Test
+    public void testExportAndRestore() throws Exception {
+        MFileHashMap database = (MFileHashMap) provider;
+        List<String> names = new ArrayList<>();
+        for (String oneEngine : new String[] {TableOptions.ENGINE_HASH, TableOptions.ENGINE_LSM,
+                TableOptions.ENGINE_KEYDIR}) {
+            TableOptions options = new TableOptions();
+            options.setEngine(oneEngine);
+            options.setMemtableSize(16);
+            Table table = database.createTable("export" + oneEngine, typeList, options);
+            for (int i = 0; i < 100; ++i) {
+                Storeable row = provider.createFor(table);
+                row.setColumnAt(0, i);
+                row.setColumnAt(1, oneEngine + i);
+                table.put(key + i, row);
+            }
+            table.commit();
+            table.remove(key + 7);
+            names.add(table.getName());
+        }
+        database.createIndex("export" + TableOptions.ENGINE_HASH, 0, ColumnIndex.ORDERED);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        assertEquals(database.export(output, names), 300);
+        for (String oneName : names) {
+            database.getTable(oneName).rollback();
+            provider.removeTable(oneName);
+        }
+
+        byte[] archive = output.toByteArray();
+        assertEquals(database.restore(new ByteArrayInputStream(archive)), names);
+        for (String oneName : names) {
+            StoredTable table = (StoredTable) database.getTable(oneName);
+            assertEquals(table.size(), 100);
+            assertEquals(table.get(key + 7).getIntAt(0), Integer.valueOf(7));
+            assertEquals(table.getOptions().getEngine(), oneName.substring("export".length()));
+        }
+        FileMap hashTable = (FileMap) database.getTable("export" + TableOptions.ENGINE_HASH);
+        assertEquals(hashTable.lookupRange(0, 10, 12), Arrays.asList(key + 10, key + 11));
+        try {
+            database.restore(new ByteArrayInputStream(archive));
+            fail();
+        } catch (IllegalStateException e) {
+            //tables exist
+        }
+        for (String oneName : names) {
+            provider.removeTable(oneName);
+        }
+
+        archive[archive.length / 2] ^= 1;
+        try {
+            database.restore(new ByteArrayInputStream(archive));
+            fail();
+        } catch (IOException e) {
+            //broken byte
+        }
+        for (String oneName : names) {
+            assertNull(database.getTable(oneName));
+        }
+    }
+
+    /**
+     * Two transactions read the key, then both change it: the later commit gets a conflict.
+     * The same for transactions of two threads.
+     */
+    private void checkReadThenWriteConflict(StoredTable table) throws Exception {
+        Storeable[] rows = new Storeable[4];
+        for (int i = 0; i < rows.length; ++i) {
+            rows[i] = provider.createFor(table);
+            rows[i].setColumnAt(0, i);
+        }
+        table.put(key, rows[0]);
+        table.commit();
+
+        Transaction first = table.begin();
+        Transaction second = table.begin();
+        assertEquals(first.get(key).getIntAt(0), Integer.valueOf(0));
+        assertEquals(second.get(key).getIntAt(0), Integer.valueOf(0));
+        second.put(key, rows[1]);
+        assertEquals(second.commit(), 1);
+        assertEquals(first.get(key).getIntAt(0), Integer.valueOf(0));
+        first.put(key, rows[1]);
+        try {
+            first.commit();
+            fail();
+        } catch (TransactionConflictException e) {
+            assertEquals(e.getKey(), key);
+        }
+
+        assertEquals(table.get(key).getIntAt(0), Integer.valueOf(1));
+        AtomicBoolean broken = new AtomicBoolean(false);
+        Thread other = new Thread(() -> {
+            try {
+                table.get(key);
+                table.put(key, rows[2]);
+                table.commit();
+            } catch (IOException e) {
+                broken.set(true);
+            }
+        });
+        other.start();
+        other.join();
+        assertFalse(broken.get());
+        assertEquals(table.get(key).getIntAt(0), Integer.valueOf(1));
+        table.put(key, rows[3]);
+        try {
+            table.commit();
+            fail();
+        } catch (TransactionConflictException e) {
+            assertEquals(e.getKey(), key);
+        }
+        assertEquals(table.get(key).getIntAt(0), Integer.valueOf(2));
+        table.rollback();
+    }
+
+    private static List<String> toList(Iterator<String> keys) {
+        List<String> result = new ArrayList<>();
+        while (keys.hasNext()) {
+            result.add(keys.next());
+        }
+        return result;
+    }
+
+    @Test
+    public void testLegacyLayoutMigration() throws Exception {
+        Path tableDirectory = Paths.get(providerDirectory, "legacyTable");
+        Files.createDirectory(tableDirectory);
+        Files.write(tableDirectory.resolve("signature.tsv"), Collections.singletonList("int String boolean"));
+        int size = 100;
+        for (int i = 0; i < size; ++i) {
+            Storeable row = provider.createFor(testTable);
+            row.setColumnAt(0, i);
+            row.setColumnAt(1, "value" + i);
+            row.setColumnAt(2, true);
+            byte[] keyBytes = (key + i).getBytes(StandardCharsets.UTF_8);
+            byte[] valueBytes = provider.serialize(testTable, row).getBytes(StandardCharsets.UTF_8);
+            int bucket = BucketLayout.getLegacyNumberOfBucket((key + i).hashCode());
+            Path directory = tableDirectory.resolve(bucket / 16 + ".dir");
+            Files.createDirectories(directory);
+            ByteBuffer record = ByteBuffer.allocate(8 + keyBytes.length + valueBytes.length);
+            record.putInt(keyBytes.length).put(keyBytes).putInt(valueBytes.length).put(valueBytes);
+            Files.write(directory.resolve(bucket % 16 + ".dat"), record.array(),
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        }
+
+        Table legacyTable = new MFileHashMap(providerDirectory).getTable("legacyTable");
+        assertEquals(legacyTable.size(), size);
+        assertEquals(legacyTable.get(key + 42).getIntAt(0), Integer.valueOf(42));
+        assertFalse(Files.exists(tableDirectory.resolve("0.dir")));
+        assertTrue(Files.readAllLines(tableDirectory.resolve("manifest.tsv")).contains("hash legacy"));
+        Storeable row = provider.createFor(legacyTable);
+        row.setColumnAt(0, -1);
+        legacyTable.put(key + 0, row);
+        legacyTable.commit();
+
+        legacyTable = new MFileHashMap(providerDirectory).getTable("legacyTable");
+        assertEquals(legacyTable.size(), size);
+        assertEquals(legacyTable.get(key + 0).getIntAt(0), Integer.valueOf(-1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownDurability() {
+        new TableOptions().setDurability("sometimes");
+    }
+
+    @Test
+    public void testSnapshotReads() throws Exception {
+        int rounds = 200;
+        Storeable first = provider.createFor(testTable);
+        Storeable second = provider.createFor(testTable);
+        first.setColumnAt(0, 0);
+        second.setColumnAt(0, 0);
+        testTable.put("first", first);
+        testTable.put("second", second);
+        testTable.commit();
+
+        AtomicBoolean broken = new AtomicBoolean(false);
+        Thread writer = new Thread(() -> {
+            try {
+                for (int i = 1; i <= rounds; ++i) {
+                    Storeable newFirst = provider.createFor(testTable);
+                    Storeable newSecond = provider.createFor(testTable);
+                    newFirst.setColumnAt(0, i);
+                    newSecond.setColumnAt(0, -i);
+                    testTable.put("first", newFirst);
+                    testTable.put("second", newSecond);
+                    testTable.commit();
+                }
+            } catch (IOException e) {
+                broken.set(true);
+            }
+        });
+        Thread reader = new Thread(() -> {
+            int lastValue = 0;
+            for (int i = 0; i < rounds * 10; ++i) {
+                int seenValue = testTable.get("first").getIntAt(0);
+                if (seenValue < lastValue) {
+                    broken.set(true);
+                }
+                lastValue = seenValue;
+                testTable.put("reader", first);
+                int firstValue = testTable.get("first").getIntAt(0);
+                Thread.yield();
+                if (firstValue + testTable.get("second").getIntAt(0) != 0) {
+                    broken.set(true);
+                }
+                testTable.rollback();
+            }
+        });
+        int before = testTable.get("first").getIntAt(0);
+        writer.start();
+        reader.start();
+        writer.join();
+        reader.join();
+        assertFalse(broken.get());
+        assertEquals(before, 0);
+        assertEquals(testTable.get("first").getIntAt(0), Integer.valueOf(0));
+        testTable.rollback();
+        assertEquals(testTable.get("first").getIntAt(0), Integer.valueOf(rounds));
+    }
+
+    @Test
+    public void testParallelCommits() throws Exception {
+        int numberOfThreads = 8;
+        int keysPerThread = 50;
+        List<Thread> threads = new ArrayList<>();
+        AtomicBoolean broken = new AtomicBoolean(false);
+        for (int t = 0; t < numberOfThreads; ++t) {
+            String prefix = "thread" + t + "_";
+            threads.add(new Thread(() -> {
+                try {
+                    for (int i = 0; i < keysPerThread; ++i) {
+                        Storeable row = provider.createFor(testTable);
+                        row.setColumnAt(0, i);
+                        testTable.put(prefix + i, row);
+                        if (testTable.commit() != 1) {
+                            broken.set(true);
+                        }
+                    }
+                } catch (IOException e) {
+                    broken.set(true);
+                }
+            }));
+        }
+        for (Thread oneThread : threads) {
+            oneThread.start();
+        }
+        for (Thread oneThread : threads) {
+            oneThread.join();
+        }
+        assertFalse(broken.get());
+        assertEquals(testTable.size(), numberOfThreads * keysPerThread);
+
+        Table reopenedTable = factory.create(providerDirectory).getTable(tableName);
+        assertEquals(reopenedTable.size(), numberOfThreads * keysPerThread);
+        assertEquals(reopenedTable.get("thread3_17").getIntAt(0), Integer.valueOf(17));
+    }
+
+    @Test
+    public void testCommitConflict() throws Exception {
+        testTable.put(key, value);
+        Thread other = new Thread(() -> {
+            try {
+                testTable.put(key, newValue);
+                testTable.commit();
+            } catch (IOException e) {
+                //checked below
+            }
+        });
+        other.start();
+        other.join();
+        try {
+            testTable.commit();
+            fail();
+        } catch (TransactionConflictException e) {
+            assertEquals(e.getKey(), key);
+        }
+        assertEquals(testTable.getNumberOfUncommittedChanges(), 0);
+        assertEquals(testTable.put(key, value), newValue);
+        assertEquals(testTable.commit(), 1);
+        assertEquals(testTable.get(key), value);
+    }
+
+    @Test
+    public void testTransactionHandles() throws Exception {
+        Transaction first = ((FileMap) testTable).begin();
+        Transaction second = ((FileMap) testTable).begin();
+        assertNull(first.put(key, value));
+        assertNull(second.get(key));
+        assertNull(testTable.get(key));
+        assertEquals(first.size(), 1);
+        assertEquals(second.size(), 0);
+
+        Thread other = new Thread(() -> {
+            try {
+                first.commit();
+            } catch (IOException e) {
+                //checked below
+            }
+        });
+        other.start();
+        other.join();
+        assertEquals(first.getNumberOfUncommittedChanges(), 0);
+        assertNull(second.get(key));
+        assertNull(testTable.get(key));
+        assertEquals(second.rollback(), 0);
+        assertEquals(testTable.rollback(), 0);
+        assertEquals(second.get(key), value);
+        assertEquals(testTable.get(key), value);
+
+        assertEquals(second.remove(key), value);
+        assertEquals(second.list().size(), 0);
+        assertEquals(second.commit(), 1);
+        assertEquals(testTable.rollback(), 0);
+        assertNull(testTable.get(key));
+    }
+
+    @Test
+    public void testReadThenWriteConflict() throws Exception {
+        checkReadThenWriteConflict((StoredTable) testTable);
+    }
+
+    @Test
+    public void testLsmReadThenWriteConflict() throws Exception {
+        TableOptions options = new TableOptions();
+        options.setEngine(TableOptions.ENGINE_LSM);
+        checkReadThenWriteConflict((StoredTable) ((MFileHashMap) provider).createTable("lsmReadThenWrite",
+                typeList, options));
+    }
+
+    @Test
+    public void testKeydirReadThenWriteConflict() throws Exception {
+        TableOptions options = new TableOptions();
+        options.setEngine(TableOptions.ENGINE_KEYDIR);
+        checkReadThenWriteConflict((StoredTable) ((MFileHashMap) provider).createTable("keydirReadThenWrite",
+                typeList, options));
+    }
 }
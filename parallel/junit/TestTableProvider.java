@@ -5,6 +5,8 @@ import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import ru.fizteh.fivt.storage.structured.*;
+import ru.fizteh.fivt.students.titov.parallel.storeable.PackedStoreable;
+import ru.fizteh.fivt.students.titov.parallel.storeable.TableSchema;
 import ru.fizteh.fivt.students.titov.parallel.storeable.TypesUtils;
 import ru.fizteh.fivt.students.titov.parallel.multi_file_hash_map.MFileHashMapFactory;
 import ru.fizteh.fivt.students.titov.parallel.shell.FileUtils;
@@ -15,6 +17,7 @@ import java.nio.file.Paths;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static org.junit.Assert.*;
 
@@ -186,6 +189,133 @@ public class TestTableProvider {
         }
     }
 
+    @Test
+    public void testSerializeEscapedAndConcurrent() throws Exception {
+        Table newTable = provider.createTable(tableName, wrongTypeList);
+        Storeable value = provider.createFor(newTable);
+        value.setColumnAt(0, Integer.MIN_VALUE);
+        value.setColumnAt(1, "a<b & c>d \u044f\ud83d\ude00");
+        String serValue = "<row><col>-2147483648</col><col>a&lt;b &amp; c&gt;d \u044f\ud83d\ude00</col><null/></row>";
+        assertEquals(provider.serialize(newTable, value), serValue);
+        Storeable deserValue = provider.deserialize(newTable, serValue);
+        assertEquals(deserValue.getIntAt(0), Integer.valueOf(Integer.MIN_VALUE));
+        assertEquals(deserValue.getStringAt(1), "a<b & c>d \u044f\ud83d\ude00");
+        assertNull(deserValue.getColumnAt(2));
+
+        deserValue = provider.deserialize(newTable, "<?xml version=\"1.0\"?>\n<row> <col>7</col>"
+                + "<col>&#65;&#x42;&quot;</col>\n<col>1.5</col> </row>\n");
+        assertEquals(deserValue.getStringAt(1), "AB\"");
+        assertEquals(deserValue.getDoubleAt(2), Double.valueOf(1.5));
+        String[] wrongRows = {"<row><col>1</col><col>x</col></row>",
+            "<row><col>1</col><col>x</col><null/><null/></row>", "<row><col>2147483648</col><null/><null/></row>",
+            "<row><col>1</col><col>&unknown;</col><null/></row>", "<row><col>1</col><col>x<null/></row>"};
+        for (String oneRow : wrongRows) {
+            try {
+                provider.deserialize(newTable, oneRow);
+                fail();
+            } catch (ParseException e) {
+                //all right
+            }
+        }
+
+        List<Thread> threads = new ArrayList<>();
+        AtomicBoolean failed = new AtomicBoolean();
+        for (int t = 0; t < 4; ++t) {
+            int number = t;
+            threads.add(new Thread(() -> {
+                try {
+                    for (int i = 0; i < 2000; ++i) {
+                        Storeable row = provider.createFor(newTable);
+                        row.setColumnAt(0, number * i);
+                        row.setColumnAt(1, "thread " + number);
+                        row.setColumnAt(2, (double) i);
+                        Storeable copy = provider.deserialize(newTable, provider.serialize(newTable, row));
+                        if (!copy.getIntAt(0).equals(number * i) || !copy.getStringAt(1).equals("thread " + number)
+                                || !copy.getDoubleAt(2).equals((double) i)) {
+                            failed.set(true);
+                        }
+                    }
+                } catch (ParseException e) {
+                    failed.set(true);
+                }
+            }));
+        }
+        for (Thread oneThread : threads) {
+            oneThread.start();
+        }
+        for (Thread oneThread : threads) {
+            oneThread.join();
+        }
+        assertFalse(failed.get());
+    }
+
+    @Test
+    public void testTableSchema() throws Exception {
+        TableSchema schema = TableSchema.parse(" int  String double ");
+        assertEquals(schema.getTypes(), wrongTypeList);
+        assertEquals(schema.toSignature(), "int String double");
+        assertEquals(schema.getTag(2), TableSchema.DOUBLE);
+        try {
+            TableSchema.parse("int char");
+            fail();
+        } catch (ColumnFormatException e) {
+            //all right
+        }
+
+        Table newTable = provider.createTable(tableName, wrongTypeList);
+        assertEquals(TableSchema.of(newTable), schema);
+        Storeable value = provider.createFor(newTable);
+        assertNull(value.getIntAt(0));
+        try {
+            value.getStringAt(0);
+            fail();
+        } catch (ColumnFormatException e) {
+            //all right
+        }
+        schema.check(value);
+        try {
+            schema.check(provider.createFor(provider.createTable(tableName + 2, typeList)));
+            fail();
+        } catch (IndexOutOfBoundsException e) {
+            //all right
+        }
+    }
+
+    @Test
+    public void testPackedRows() throws Exception {
+        Class<?>[] classes = {Integer.class, Long.class, Byte.class, Float.class, Double.class, Boolean.class,
+            String.class};
+        Object[] samples = {-7, Long.MIN_VALUE, (byte) 5, 1.5f, -0.25, true, "text"};
+        List<Class<?>> manyTypes = new ArrayList<>();
+        for (int i = 0; i < 70; ++i) {
+            manyTypes.add(classes[i % classes.length]);
+        }
+        Table newTable = provider.createTable(tableName, manyTypes);
+        Storeable value = provider.createFor(newTable);
+        for (int i = 0; i < 70; i += 2) {
+            value.setColumnAt(i, samples[i % samples.length]);
+        }
+        value.setColumnAt(66, null);
+        assertTrue(value instanceof PackedStoreable);
+        assertEquals(((PackedStoreable) value).intAt(0), -7);
+        assertEquals(((PackedStoreable) value).doubleAt(4), -0.25, 0);
+        assertTrue(((PackedStoreable) value).isNull(69));
+
+        newTable.put("key", value);
+        newTable.commit();
+        for (Storeable oneValue : new Storeable[] {newTable.get("key"),
+                provider.deserialize(newTable, provider.serialize(newTable, value)),
+                new MFileHashMapFactory().create(providerDirectory).getTable(tableName).get("key")}) {
+            for (int i = 0; i < 70; ++i) {
+                Object expected = i % 2 == 0 && i != 66 ? samples[i % samples.length] : null;
+                assertEquals(oneValue.getColumnAt(i), expected);
+            }
+            assertEquals(oneValue.getLongAt(8), Long.valueOf(Long.MIN_VALUE));
+            assertEquals(oneValue.getStringAt(6), "text");
+            assertNull(oneValue.getFloatAt(66));
+        }
+    }
+
     @Test
     public void testCreateFor() {
         try {
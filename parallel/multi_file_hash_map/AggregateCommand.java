@@ -0,0 +1,85 @@
+package ru.fizteh.fivt.students.titov.parallel.multi_file_hash_map;
+
+import ru.fizteh.fivt.students.titov.parallel.file_map.ColumnAggregate;
+import ru.fizteh.fivt.students.titov.parallel.file_map.ColumnPredicate;
+import ru.fizteh.fivt.students.titov.parallel.file_map.FileMap;
+import ru.fizteh.fivt.students.titov.parallel.file_map.StoredTable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * aggregate count|sum|min|max|avg column [by column] [where column operator value [and ...]]
+ * Without "by" prints one value, otherwise "group value" lines in ascending order of groups.
+ */
+public class AggregateCommand extends MultiFileHashMapCommand {
+    public AggregateCommand() {
+        initialize("aggregate", -1);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean run(MFileHashMap myMap, String[] args) {
+        StoredTable currentTable = myMap.getCurrentTable();
+        if (currentTable == null) {
+            isTable(currentTable);
+            return true;
+        }
+        if (!(currentTable instanceof FileMap)) {
+            System.err.println(name + ": aggregates are supported by tables of the hash engine only");
+            return false;
+        }
+        if (args.length < 3) {
+            System.err.println(name + ": wrong arguments");
+            return false;
+        }
+        try {
+            int column = Integer.parseInt(args[2]);
+            int groupColumn = -1;
+            int position = 3;
+            if (args.length > position + 1 && args[position].equals("by")) {
+                groupColumn = Integer.parseInt(args[position + 1]);
+                position += 2;
+            }
+            List<ColumnPredicate> predicates = new ArrayList<>();
+            if (args.length > position) {
+                if (!args[position].equals("where") || (args.length - position) % 4 != 0) {
+                    System.err.println(name + ": wrong arguments");
+                    return false;
+                }
+                for (int i = position + 1; i < args.length; i += 4) {
+                    if (i > position + 1 && !args[i - 1].equals("and")) {
+                        System.err.println(name + ": wrong arguments");
+                        return false;
+                    }
+                    predicates.add(ColumnPredicate.parse(currentTable, args[i], args[i + 1], args[i + 2]));
+                }
+            }
+            Map<Object, ColumnAggregate> groups = ((FileMap) currentTable).aggregate(column, groupColumn, predicates);
+            if (groupColumn < 0) {
+                ColumnAggregate result = groups.get(null);
+                if (result == null) {
+                    result = new ColumnAggregate(currentTable.getColumnType(column));
+                }
+                System.out.println(result.get(args[1]));
+                return true;
+            }
+            if (groups.containsKey(null)) {
+                System.out.println("null " + groups.remove(null).get(args[1]));
+            }
+            Map<Object, ColumnAggregate> sortedGroups =
+                    new TreeMap<>((first, second) -> ((Comparable<Object>) first).compareTo(second));
+            sortedGroups.putAll(groups);
+            for (Map.Entry<Object, ColumnAggregate> oneGroup : sortedGroups.entrySet()) {
+                System.out.println(oneGroup.getKey() + " " + oneGroup.getValue().get(args[1]));
+            }
+        } catch (IllegalArgumentException | IllegalStateException | IndexOutOfBoundsException
+                | ArithmeticException e) {
+            System.err.println(name + ": " + e.getMessage());
+            return false;
+        }
+        return true;
+    }
+}
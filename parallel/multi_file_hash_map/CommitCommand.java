@@ -1,6 +1,7 @@
 package ru.fizteh.fivt.students.titov.parallel.multi_file_hash_map;
 
-import ru.fizteh.fivt.students.titov.parallel.file_map.FileMap;
+import ru.fizteh.fivt.students.titov.parallel.file_map.StoredTable;
+import ru.fizteh.fivt.students.titov.parallel.file_map.TransactionConflictException;
 
 import java.io.IOException;
 
@@ -11,7 +12,7 @@ public class CommitCommand extends MultiFileHashMapCommand {
 
     @Override
     public boolean run(MFileHashMap myMap, String[] args) {
-        FileMap currentTable = myMap.getCurrentTable();
+        StoredTable currentTable = myMap.getCurrentTable();
         if (currentTable == null) {
             isTable(currentTable);
         } else {
@@ -20,6 +21,9 @@ public class CommitCommand extends MultiFileHashMapCommand {
             } catch (IOException e) {
                 System.err.println("io exception while writing in file");
                 return false;
+            } catch (TransactionConflictException e) {
+                System.err.println(e.getMessage());
+                return false;
             }
         }
         return true;
@@ -0,0 +1,216 @@
+package ru.fizteh.fivt.students.titov.parallel.multi_file_hash_map;
+
+import ru.fizteh.fivt.storage.structured.Storeable;
+import ru.fizteh.fivt.storage.structured.Table;
+import ru.fizteh.fivt.students.titov.parallel.file_map.FileMap;
+import ru.fizteh.fivt.students.titov.parallel.file_map.StoredTable;
+import ru.fizteh.fivt.students.titov.parallel.file_map.TableOptions;
+import ru.fizteh.fivt.students.titov.parallel.storeable.BinaryRowCodec;
+import ru.fizteh.fivt.students.titov.parallel.storeable.RowCodec;
+import ru.fizteh.fivt.students.titov.parallel.storeable.RowCodecs;
+import ru.fizteh.fivt.students.titov.parallel.storeable.TableSchema;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Archive of tables, written and read in one pass:
+ * int magic, int version, int number of tables;
+ * manifest: for every table its name, types, option lines and indexes;
+ * rows of every table: int length of key, key, int length of value, value
+ * in the binary row format, then int -1 and long number of rows;
+ * long CRC32 of everything before it.
+ * Only the buffers of the streams and one batch of restored rows are kept in memory.
+ */
+public class DatabaseArchive {
+    private static final int MAGIC = 0x464d4442;
+    private static final int VERSION = 1;
+    private static final int SIZE_OF_BUFFER = 64 * 1024;
+    private static final int ROWS_PER_COMMIT = 1024;
+    private static final int END_OF_ROWS = -1;
+
+    private final MFileHashMap database;
+    private final RowCodec rowCodec;
+
+    public DatabaseArchive(MFileHashMap newDatabase) {
+        database = newDatabase;
+        rowCodec = RowCodecs.forName(BinaryRowCodec.NAME);
+    }
+
+    /**
+     * Writes rows of the tables to the output.
+     *
+     * @param snapshots - rows of every table, taken by StoredTable.snapshotRows
+     * @return number of written rows
+     */
+    public long export(OutputStream output, List<StoredTable> tables,
+                       List<Iterator<Map.Entry<String, Storeable>>> snapshots) throws IOException {
+        BufferedOutputStream bufferedOutput = new BufferedOutputStream(output, SIZE_OF_BUFFER);
+        CRC32 checksum = new CRC32();
+        DataOutputStream archive = new DataOutputStream(new CheckedOutputStream(bufferedOutput, checksum));
+        archive.writeInt(MAGIC);
+        archive.writeInt(VERSION);
+        archive.writeInt(tables.size());
+        for (StoredTable oneTable : tables) {
+            writeManifest(archive, oneTable);
+        }
+        long result = 0;
+        for (int i = 0; i < tables.size(); ++i) {
+            long numberOfRows = 0;
+            Iterator<Map.Entry<String, Storeable>> rows = snapshots.get(i);
+            while (rows.hasNext()) {
+                Map.Entry<String, Storeable> oneRow = rows.next();
+                writeChunk(archive, oneRow.getKey().getBytes(StandardCharsets.UTF_8));
+                writeChunk(archive, rowCodec.encode(tables.get(i), oneRow.getValue()));
+                ++numberOfRows;
+            }
+            archive.writeInt(END_OF_ROWS);
+            archive.writeLong(numberOfRows);
+            result += numberOfRows;
+        }
+        archive.flush();
+        new DataOutputStream(bufferedOutput).writeLong(checksum.getValue());
+        bufferedOutput.flush();
+        return result;
+    }
+
+    private static void writeManifest(DataOutputStream archive, StoredTable table) throws IOException {
+        archive.writeUTF(table.getName());
+        archive.writeUTF(table.getSchema().toSignature());
+        List<String> options = table.getOptions().toLines();
+        archive.writeInt(options.size());
+        for (String oneOption : options) {
+            archive.writeUTF(oneOption);
+        }
+        Map<Integer, String> indexes = table instanceof FileMap ? ((FileMap) table).getIndexes() : new TreeMap<>();
+        archive.writeInt(indexes.size());
+        for (Map.Entry<Integer, String> oneIndex : indexes.entrySet()) {
+            archive.writeInt(oneIndex.getKey());
+            archive.writeUTF(oneIndex.getValue());
+        }
+    }
+
+    private static void writeChunk(DataOutputStream archive, byte[] chunk) throws IOException {
+        archive.writeInt(chunk.length);
+        archive.write(chunk);
+    }
+
+    /**
+     * Creates tables of the archive and fills them by commits of a limited number of rows.
+     * If the archive is broken, the created tables are removed.
+     *
+     * @return names of the restored tables
+     * @throws IllegalStateException if a table of the archive already exists
+     */
+    public List<String> restore(InputStream input) throws IOException, IllegalStateException {
+        BufferedInputStream bufferedInput = new BufferedInputStream(input, SIZE_OF_BUFFER);
+        CRC32 checksum = new CRC32();
+        DataInputStream archive = new DataInputStream(new CheckedInputStream(bufferedInput, checksum));
+        List<String> names = new ArrayList<>();
+        List<Table> tables = new ArrayList<>();
+        boolean restored = false;
+        try {
+            if (archive.readInt() != MAGIC || archive.readInt() != VERSION) {
+                throw new IOException("not an archive of tables");
+            }
+            int numberOfTables = archive.readInt();
+            List<Map<Integer, String>> indexes = new ArrayList<>();
+            List<TableSchema> schemas = new ArrayList<>();
+            List<TableOptions> options = new ArrayList<>();
+            for (int i = 0; i < numberOfTables; ++i) {
+                names.add(archive.readUTF());
+                schemas.add(TableSchema.parse(archive.readUTF()));
+                List<String> optionLines = new ArrayList<>();
+                for (int j = archive.readInt(); j > 0; --j) {
+                    optionLines.add(archive.readUTF());
+                }
+                options.add(TableOptions.parse(optionLines));
+                Map<Integer, String> tableIndexes = new TreeMap<>();
+                for (int j = archive.readInt(); j > 0; --j) {
+                    tableIndexes.put(archive.readInt(), archive.readUTF());
+                }
+                indexes.add(tableIndexes);
+            }
+            for (String oneName : names) {
+                if (database.getTable(oneName) != null) {
+                    throw new IllegalStateException("table \'" + oneName + "\' already exists");
+                }
+            }
+            for (int i = 0; i < numberOfTables; ++i) {
+                Table table = database.createTable(names.get(i), schemas.get(i).getTypes(), options.get(i));
+                if (table == null) {
+                    throw new IllegalStateException("table \'" + names.get(i) + "\' already exists");
+                }
+                tables.add(table);
+            }
+            for (int i = 0; i < numberOfTables; ++i) {
+                restoreRows(archive, tables.get(i));
+            }
+            long expectedChecksum = checksum.getValue();
+            if (new DataInputStream(bufferedInput).readLong() != expectedChecksum) {
+                throw new IOException("wrong checksum of archive");
+            }
+            for (int i = 0; i < numberOfTables; ++i) {
+                for (Map.Entry<Integer, String> oneIndex : indexes.get(i).entrySet()) {
+                    database.createIndex(names.get(i), oneIndex.getKey(), oneIndex.getValue());
+                }
+            }
+            restored = true;
+            return names;
+        } catch (EOFException e) {
+            throw new IOException("archive is cut", e);
+        } catch (ParseException | IllegalArgumentException e) {
+            throw new IOException("broken archive: " + e.getMessage(), e);
+        } finally {
+            if (!restored) {
+                for (Table oneTable : tables) {
+                    database.removeTable(oneTable.getName());
+                }
+            }
+        }
+    }
+
+    private void restoreRows(DataInputStream archive, Table table) throws IOException, ParseException {
+        long numberOfRows = 0;
+        while (true) {
+            int lengthOfKey = archive.readInt();
+            if (lengthOfKey == END_OF_ROWS) {
+                break;
+            }
+            String key = new String(readChunk(archive, lengthOfKey), StandardCharsets.UTF_8);
+            table.put(key, rowCodec.decode(table, readChunk(archive, archive.readInt())));
+            if (++numberOfRows % ROWS_PER_COMMIT == 0) {
+                table.commit();
+            }
+        }
+        table.commit();
+        if (archive.readLong() != numberOfRows) {
+            throw new IOException("wrong number of rows in table " + table.getName());
+        }
+    }
+
+    private static byte[] readChunk(DataInputStream archive, int length) throws IOException {
+        if (length < 0) {
+            throw new IOException("broken archive");
+        }
+        byte[] result = new byte[length];
+        archive.readFully(result);
+        return result;
+    }
+}
@@ -1,5 +1,7 @@
 package ru.fizteh.fivt.students.titov.parallel.multi_file_hash_map;
 
+import java.io.IOException;
+
 public class ExitCommand extends MultiFileHashMapCommand {
     public ExitCommand() {
         initialize("exit", 1);
@@ -7,6 +9,12 @@ public class ExitCommand extends MultiFileHashMapCommand {
 
     @Override
     public boolean run(MFileHashMap myMap, String[] args) {
+        try {
+            myMap.close();
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
         System.exit(0);
         return true;
     }
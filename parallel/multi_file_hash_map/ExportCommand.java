@@ -0,0 +1,32 @@
+package ru.fizteh.fivt.students.titov.parallel.multi_file_hash_map;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+/**
+ * export file [table ...] - writes the tables or the whole database to the archive file.
+ */
+public class ExportCommand extends MultiFileHashMapCommand {
+    public ExportCommand() {
+        initialize("export", -1);
+    }
+
+    @Override
+    public boolean run(MFileHashMap myMap, String[] args) {
+        if (args.length < 2) {
+            System.err.println(name + ": wrong number of arguments");
+            return false;
+        }
+        try (OutputStream output = Files.newOutputStream(Paths.get(args[1]))) {
+            long rows = myMap.export(output, Arrays.asList(args).subList(2, args.length));
+            System.out.println("exported " + rows);
+        } catch (IOException | IllegalStateException e) {
+            System.err.println(name + ": " + e.getMessage());
+            return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,51 @@
+package ru.fizteh.fivt.students.titov.parallel.multi_file_hash_map;
+
+import ru.fizteh.fivt.students.titov.parallel.file_map.FileMap;
+import ru.fizteh.fivt.students.titov.parallel.file_map.RowImporter;
+import ru.fizteh.fivt.students.titov.parallel.file_map.StoredTable;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * import file [csv|tsv|xml] - loads rows of the file into the current table past
+ * transactions, the format is taken from the extension if it is not given.
+ */
+public class ImportCommand extends MultiFileHashMapCommand {
+    public ImportCommand() {
+        initialize("import", -1);
+    }
+
+    @Override
+    public boolean run(MFileHashMap myMap, String[] args) {
+        StoredTable currentTable = myMap.getCurrentTable();
+        if (currentTable == null) {
+            isTable(currentTable);
+            return true;
+        }
+        if (args.length != 2 && args.length != 3) {
+            System.err.println(name + ": wrong number of arguments");
+            return false;
+        }
+        if (!(currentTable instanceof FileMap)) {
+            System.err.println(name + ": bulk load is supported by tables of the hash engine only");
+            return false;
+        }
+        String format = args.length == 3 ? args[2] : RowImporter.formatOf(args[1]);
+        try (BufferedReader input = Files.newBufferedReader(Paths.get(args[1]), StandardCharsets.UTF_8)) {
+            int loaded = ((FileMap) currentTable).bulkLoad(new RowImporter(currentTable, input, format));
+            System.out.println("imported " + loaded);
+        } catch (IllegalArgumentException | IndexOutOfBoundsException | IOException e) {
+            System.err.println(name + ": " + e.getMessage());
+            return false;
+        } catch (UncheckedIOException e) {
+            System.err.println(name + ": " + e.getCause().getMessage());
+            return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,48 @@
+package ru.fizteh.fivt.students.titov.parallel.multi_file_hash_map;
+
+import ru.fizteh.fivt.students.titov.parallel.file_map.StoredTable;
+
+import java.io.IOException;
+
+/**
+ * index column hash|ordered - creates an index on the column of the current table,
+ * index column drop - drops it.
+ */
+public class IndexCommand extends MultiFileHashMapCommand {
+    public IndexCommand() {
+        initialize("index", 3);
+    }
+
+    @Override
+    public boolean run(MFileHashMap myMap, String[] args) {
+        StoredTable currentTable = myMap.getCurrentTable();
+        if (currentTable == null) {
+            isTable(currentTable);
+            return true;
+        }
+        int column;
+        try {
+            column = Integer.parseInt(args[1]);
+        } catch (NumberFormatException e) {
+            System.err.println(name + ": wrong column (" + args[1] + ")");
+            return false;
+        }
+        try {
+            if (args[2].equals("drop")) {
+                if (myMap.dropIndex(currentTable.getName(), column)) {
+                    System.out.println("dropped");
+                } else {
+                    System.out.println("column " + column + " has no index");
+                }
+            } else if (myMap.createIndex(currentTable.getName(), column, args[2])) {
+                System.out.println("created");
+            } else {
+                System.out.println("column " + column + " already has an index");
+            }
+        } catch (IllegalArgumentException | IllegalStateException | IOException e) {
+            System.err.println(name + ": " + e.getMessage());
+            return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,55 @@
+package ru.fizteh.fivt.students.titov.parallel.multi_file_hash_map;
+
+import ru.fizteh.fivt.storage.structured.ColumnFormatException;
+import ru.fizteh.fivt.students.titov.parallel.file_map.FileMap;
+import ru.fizteh.fivt.students.titov.parallel.file_map.StoredTable;
+import ru.fizteh.fivt.students.titov.parallel.storeable.TypesUtils;
+
+import java.util.List;
+
+/**
+ * lookup column value - keys of rows with the value in the indexed column,
+ * lookup column from to - values from "from" inclusive to "to" exclusive, needs an ordered index.
+ */
+public class LookupCommand extends MultiFileHashMapCommand {
+    public LookupCommand() {
+        initialize("lookup", -1);
+    }
+
+    @Override
+    public boolean run(MFileHashMap myMap, String[] args) {
+        StoredTable currentTable = myMap.getCurrentTable();
+        if (currentTable == null) {
+            isTable(currentTable);
+            return true;
+        }
+        if (args.length != 3 && args.length != 4) {
+            System.err.println(name + ": wrong number of arguments");
+            return false;
+        }
+        if (!(currentTable instanceof FileMap)) {
+            System.err.println(name + ": indexes are supported by tables of the hash engine only");
+            return false;
+        }
+        FileMap table = (FileMap) currentTable;
+        try {
+            int column = Integer.parseInt(args[1]);
+            Class<?> type = table.getColumnType(column);
+            List<String> keys;
+            if (args.length == 3) {
+                keys = table.lookup(column, TypesUtils.parseValue(type, args[2]));
+            } else {
+                keys = table.lookupRange(column, TypesUtils.parseValue(type, args[2]),
+                        TypesUtils.parseValue(type, args[3]));
+            }
+            System.out.println(String.join(", ", keys));
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            System.err.println(name + ": wrong column (" + args[1] + ")");
+            return false;
+        } catch (ColumnFormatException | IllegalStateException e) {
+            System.err.println(name + ": " + e.getMessage());
+            return false;
+        }
+        return true;
+    }
+}
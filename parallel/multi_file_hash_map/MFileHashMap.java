@@ -1,15 +1,17 @@
 package ru.fizteh.fivt.students.titov.parallel.multi_file_hash_map;
 
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.text.ParseException;
 import java.util.*;
-import java.util.Map.Entry;
+import java.util.concurrent.Callable;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import ru.fizteh.fivt.storage.structured.ColumnFormatException;
@@ -18,22 +20,53 @@ import ru.fizteh.fivt.storage.structured.TableProvider;
 import ru.fizteh.fivt.storage.structured.Storeable;
 import ru.fizteh.fivt.students.titov.parallel.file_map.BadFileException;
 import ru.fizteh.fivt.students.titov.parallel.file_map.FileMap;
-import ru.fizteh.fivt.students.titov.parallel.storeable.AbstractStoreable;
-import ru.fizteh.fivt.students.titov.parallel.storeable.TypesUtils;
-import ru.fizteh.fivt.students.titov.parallel.storeable.Serializator;
+import ru.fizteh.fivt.students.titov.parallel.file_map.KeydirTable;
+import ru.fizteh.fivt.students.titov.parallel.file_map.LsmTable;
+import ru.fizteh.fivt.students.titov.parallel.file_map.ParallelLoader;
+import ru.fizteh.fivt.students.titov.parallel.file_map.StoredTable;
+import ru.fizteh.fivt.students.titov.parallel.file_map.TableOptions;
+import ru.fizteh.fivt.students.titov.parallel.storeable.PackedStoreable;
+import ru.fizteh.fivt.students.titov.parallel.storeable.RowCodec;
+import ru.fizteh.fivt.students.titov.parallel.storeable.RowCodecs;
+import ru.fizteh.fivt.students.titov.parallel.storeable.TableSchema;
+import ru.fizteh.fivt.students.titov.parallel.storeable.XmlRowCodec;
 import ru.fizteh.fivt.students.titov.parallel.shell.FileUtils;
 
 public class MFileHashMap implements TableProvider {
     private String dataBaseDirectory;
-    private Map<String, FileMap> tables;
-    private FileMap currentTable;
+    private Map<String, StoredTable> tables;
+    private StoredTable currentTable;
     private ReentrantReadWriteLock lockForCreateAndGet;
+    private RowCodec textCodec;
+    private boolean lazyLoading;
+    private int numberOfLoaderThreads;
 
     public MFileHashMap(String newDirectory) throws BadFileException {
+        this(newDirectory, false);
+    }
+
+    /**
+     * @param newLazyLoading - tables read their bucket files on first use instead of at startup
+     */
+    public MFileHashMap(String newDirectory, boolean newLazyLoading) throws BadFileException {
+        this(newDirectory, newLazyLoading, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param newLazyLoading - tables read their bucket files on first use instead of at startup
+     * @param newNumberOfLoaderThreads - threads reading tables and bucket files at startup
+     */
+    public MFileHashMap(String newDirectory, boolean newLazyLoading, int newNumberOfLoaderThreads)
+            throws BadFileException {
         dataBaseDirectory = newDirectory;
+        lazyLoading = newLazyLoading;
+        numberOfLoaderThreads = newNumberOfLoaderThreads;
+        textCodec = RowCodecs.forName(XmlRowCodec.NAME);
         tables = new HashMap<>();
         lockForCreateAndGet = new ReentrantReadWriteLock();
-        init();
+        if (!init()) {
+            throw new BadFileException();
+        }
     }
 
     @Override
@@ -57,10 +90,15 @@ public class MFileHashMap implements TableProvider {
 
     @Override
     public Table createTable(String name, List<Class<?>> columnTypes) throws IOException, IllegalArgumentException {
-        if (name == null || columnTypes == null) {
+        return createTable(name, columnTypes, new TableOptions());
+    }
+
+    public Table createTable(String name, List<Class<?>> columnTypes, TableOptions options)
+            throws IOException, IllegalArgumentException {
+        if (name == null || columnTypes == null || options == null) {
             throw new IllegalArgumentException("null argument");
         }
-        TypesUtils.checkTypes(columnTypes);
+        TableSchema schema = new TableSchema(columnTypes);
 
         try {
             lockForCreateAndGet.writeLock().lock();
@@ -76,9 +114,12 @@ public class MFileHashMap implements TableProvider {
                 Files.createDirectory(pathOfNewTable);
                 Files.createFile(pathOfNewTableSignatureFile);
                 try (FileWriter fileOut = new FileWriter(pathOfNewTableSignatureFile.toString())) {
-                    fileOut.write(TypesUtils.toFileSignature(columnTypes));
+                    fileOut.write(schema.toSignature());
+                    for (String oneOption : options.toLines()) {
+                        fileOut.write(System.lineSeparator() + oneOption);
+                    }
                 }
-                FileMap newTable = new FileMap(pathOfNewTable.toString(), columnTypes, this);
+                StoredTable newTable = makeTable(pathOfNewTable, schema, options, null);
                 tables.put(name, newTable);
                 returnValue = newTable;
             }
@@ -97,7 +138,7 @@ public class MFileHashMap implements TableProvider {
             lockForCreateAndGet.writeLock().lock();
             if (tables.containsKey(name)) {
                 Path pathForRemoveTable = Paths.get(dataBaseDirectory, name);
-                tables.remove(name);
+                tables.remove(name).discard();
                 currentTable = null;
                 FileUtils.rmdir(pathForRemoveTable);
             } else {
@@ -110,97 +151,204 @@ public class MFileHashMap implements TableProvider {
 
     @Override
     public Storeable createFor(Table table) {
-        Object[] startValues = new Object[table.getColumnsCount()];
-        return new AbstractStoreable(startValues, table);
+        return new PackedStoreable(TableSchema.of(table));
     }
 
     @Override
     public Storeable createFor(Table table, List<?> values) throws ColumnFormatException, IndexOutOfBoundsException {
-        if (table.getColumnsCount() != values.size()) {
+        TableSchema schema = TableSchema.of(table);
+        if (schema.getNumberOfColumns() != values.size()) {
             throw new IndexOutOfBoundsException("number of types");
         }
-        List<Object> objValues = new ArrayList<>(values);
-        List<Class<?>> typeList = new ArrayList<>();
-        for (int i = 0; i < table.getColumnsCount(); ++i) {
-            if (objValues.get(i).getClass() != (table.getColumnType(i))) {
-                throw new ColumnFormatException("mismatch column type");
-            }
-            typeList.add(table.getColumnType(i));
+        PackedStoreable result = new PackedStoreable(schema);
+        for (int i = 0; i < values.size(); ++i) {
+            result.setColumnAt(i, values.get(i));
         }
-        TypesUtils.checkNewStorableValue(typeList, objValues);
-        return new AbstractStoreable(objValues.toArray(), table);
+        return result;
     }
 
     @Override
     public String serialize(Table table, Storeable value) throws ColumnFormatException {
-        if (table.getColumnsCount() != TypesUtils.getSizeOfStoreable(value)) {
+        try {
+            TableSchema.of(table).check(value);
+        } catch (IndexOutOfBoundsException e) {
             throw new ColumnFormatException("wrong size");
         }
-        for (int i = 0; i < table.getColumnsCount(); ++i) {
-            if (!table.getColumnType(i).equals(value.getColumnAt(i).getClass())) {
-                throw new ColumnFormatException("need: " + table.getColumnType(i)
-                    + ", but got:" + value.getColumnAt(i).getClass());
-            }
-        }
-        return Serializator.serialize(table, value);
+        return new String(textCodec.encode(table, value), StandardCharsets.UTF_8);
     }
 
     @Override
     public Storeable deserialize(Table table, String value) throws ParseException {
-        return Serializator.deserialize(table, value);
+        return textCodec.decode(table, value.getBytes(StandardCharsets.UTF_8));
     }
 
     @Override
     public List<String> getTableNames() {
         List<String> result = new ArrayList<>();
-        Collection<FileMap> filemaps = tables.values();
-        for (FileMap oneTable : filemaps) {
+        Collection<StoredTable> filemaps = tables.values();
+        for (StoredTable oneTable : filemaps) {
             result.add(oneTable.getName());
         }
         return result;
     }
 
-    public Map<String, FileMap> getTables() {
+    public Map<String, StoredTable> getTables() {
         return tables;
     }
 
-    public void setCurrentTable(FileMap newCurrentTable) {
+    public void setCurrentTable(StoredTable newCurrentTable) {
         currentTable = newCurrentTable;
     }
 
-    public FileMap getCurrentTable() {
+    public StoredTable getCurrentTable() {
         return currentTable;
     }
 
+    /**
+     * Creates a secondary index on the column of the table. The index is kept by
+     * commits of the table and saved next to its bucket files.
+     * Returns False if the column already has an index.
+     *
+     * @param kind - ColumnIndex.HASH or ColumnIndex.ORDERED
+     */
+    public boolean createIndex(String tableName, int column, String kind)
+            throws IOException, IllegalArgumentException, IllegalStateException {
+        return getIndexedTable(tableName).createIndex(column, kind);
+    }
+
+    /**
+     * Returns False if the column of the table has no index.
+     */
+    public boolean dropIndex(String tableName, int column) throws IOException, IllegalStateException {
+        return getIndexedTable(tableName).dropIndex(column);
+    }
+
+    private FileMap getIndexedTable(String tableName) throws IllegalArgumentException, IllegalStateException {
+        if (tableName == null) {
+            throw new IllegalArgumentException("null argument");
+        }
+        Table table = getTable(tableName);
+        if (table == null) {
+            throw new IllegalStateException("table \'" + tableName + "\' doesn't exist");
+        }
+        if (!(table instanceof FileMap)) {
+            throw new IllegalStateException("indexes are supported by tables of the hash engine only");
+        }
+        return (FileMap) table;
+    }
+
+    /**
+     * Writes tables to the output as one archive, see DatabaseArchive. Every table is
+     * taken at one moment before the first row is written.
+     *
+     * @param tableNames - tables to export, all tables if it is empty
+     * @return number of written rows
+     */
+    public long export(OutputStream output, List<String> tableNames) throws IOException, IllegalStateException {
+        List<StoredTable> exportedTables = new ArrayList<>();
+        List<Iterator<Map.Entry<String, Storeable>>> snapshots = new ArrayList<>();
+        try {
+            lockForCreateAndGet.readLock().lock();
+            for (String oneName : tableNames.isEmpty() ? getTableNames() : tableNames) {
+                StoredTable table = tables.get(oneName);
+                if (table == null) {
+                    throw new IllegalStateException("table \'" + oneName + "\' doesn't exist");
+                }
+                exportedTables.add(table);
+            }
+            for (StoredTable oneTable : exportedTables) {
+                snapshots.add(oneTable.snapshotRows());
+            }
+        } finally {
+            lockForCreateAndGet.readLock().unlock();
+        }
+        return new DatabaseArchive(this).export(output, exportedTables, snapshots);
+    }
+
+    /**
+     * Creates tables of the archive written by export.
+     *
+     * @return names of the restored tables
+     * @throws IllegalStateException if a table of the archive already exists
+     */
+    public List<String> restore(InputStream input) throws IOException, IllegalStateException {
+        return new DatabaseArchive(this).restore(input);
+    }
+
+    /**
+     * Writes logged commits of all tables to their bucket files.
+     */
+    public void close() throws IOException {
+        try {
+            lockForCreateAndGet.writeLock().lock();
+            for (StoredTable oneTable : tables.values()) {
+                oneTable.close();
+            }
+        } finally {
+            lockForCreateAndGet.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Opens all tables of the database directory. Tables and their bucket files
+     * are read in parallel, every table is read once.
+     */
     public boolean init() throws BadFileException {
         String[] listOfFiles = new File(dataBaseDirectory).list();
+        if (listOfFiles == null) {
+            return false;
+        }
+        List<String> names = new ArrayList<>();
+        List<Callable<StoredTable>> jobs = new ArrayList<>();
+        ParallelLoader loader = new ParallelLoader(numberOfLoaderThreads);
         for (String oneFile: listOfFiles) {
             Path oneTablePath = Paths.get(dataBaseDirectory, oneFile);
             Path oneTableSignaturePath = Paths.get(dataBaseDirectory, oneFile, "signature.tsv");
             if (Files.isDirectory(oneTablePath) & Files.exists(oneTableSignaturePath)) {
-                try (Scanner input = new Scanner(oneTableSignaturePath)) {
-                    String[] types;
-                    if (input.hasNext()) {
-                        types = input.nextLine().trim().split("\\s+");
-                        List<Class<?>> newTypeList = TypesUtils.toTypeList(types);
-                        if (newTypeList != null) {
-                            tables.put(oneFile, new FileMap(oneTablePath.toString(), newTypeList, this));
-                        }
-                    }
-                } catch (FileNotFoundException e) {
-                    return false;
-                } catch (IOException e) {
-                    return false;
-                }
+                names.add(oneFile);
+                jobs.add(() -> openTable(oneTablePath, oneTableSignaturePath, loader));
+            }
+        }
+        List<StoredTable> openedTables;
+        try {
+            openedTables = loader.invokeAll(jobs);
+        } catch (BadFileException e) {
+            return false;
+        } finally {
+            loader.shutdown();
+        }
+        tables.clear();
+        for (int i = 0; i < names.size(); ++i) {
+            if (openedTables.get(i) != null) {
+                tables.put(names.get(i), openedTables.get(i));
             }
         }
-        boolean allRight = true;
-        Set<Entry<String, FileMap>> pairSet = tables.entrySet();
-        for (Entry<String, FileMap> oneFileMap: pairSet) {
-            if  (!oneFileMap.getValue().init()) {
-                allRight = false;
+        return true;
+    }
+
+    private StoredTable openTable(Path tablePath, Path signaturePath, ParallelLoader loader) throws IOException {
+        try (Scanner input = new Scanner(signaturePath)) {
+            if (!input.hasNext()) {
+                return null;
             }
+            TableSchema schema = TableSchema.parse(input.nextLine());
+            List<String> optionLines = new ArrayList<>();
+            while (input.hasNextLine()) {
+                optionLines.add(input.nextLine());
+            }
+            TableOptions options = TableOptions.parse(optionLines);
+            return makeTable(tablePath, schema, options, loader);
+        }
+    }
+
+    private StoredTable makeTable(Path tablePath, TableSchema schema, TableOptions options,
+                                  ParallelLoader loader) throws IOException {
+        if (options.getEngine().equals(TableOptions.ENGINE_LSM)) {
+            return new LsmTable(tablePath.toString(), schema, this, options);
+        }
+        if (options.getEngine().equals(TableOptions.ENGINE_KEYDIR)) {
+            return new KeydirTable(tablePath.toString(), schema, this, options);
         }
-        return allRight;
+        return new FileMap(tablePath.toString(), schema, this, options, lazyLoading, loader);
     }
 }
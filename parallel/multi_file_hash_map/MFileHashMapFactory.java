@@ -26,10 +26,6 @@ public class MFileHashMapFactory implements TableProviderFactory {
             Files.createDirectory(dataBaseDirectory);
         }
 
-        MFileHashMap myMFileHashMap = new MFileHashMap(dataBaseDirectory.toString());
-        if (!myMFileHashMap.init()) {
-            throw new IOException("error while initialization");
-        }
-        return myMFileHashMap;
+        return new MFileHashMap(dataBaseDirectory.toString());
     }
 }
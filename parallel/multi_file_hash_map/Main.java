@@ -10,6 +10,8 @@ import java.nio.file.Paths;
 
 public class Main {
     private static final String PROJECTPROPERTY = "fizteh.db.dir";
+    private static final String LAZYPROPERTY = "fizteh.db.lazy";
+    private static final String THREADSPROPERTY = "fizteh.db.threads";
 
     public static void main(String[] args) throws BadFileException {
 
@@ -38,8 +40,12 @@ public class Main {
                 }
             }
         }
-        MFileHashMap myMFileHashMap = new MFileHashMap(dataBaseDirectory.toString());
-        if (!myMFileHashMap.init()) {
+        MFileHashMap myMFileHashMap = null;
+        try {
+            myMFileHashMap = new MFileHashMap(dataBaseDirectory.toString(), Boolean.getBoolean(LAZYPROPERTY),
+                    Integer.getInteger(THREADSPROPERTY, Runtime.getRuntime().availableProcessors()));
+        } catch (BadFileException e) {
+            System.err.println(e.getMessage());
             System.exit(3);
         }
 
@@ -51,6 +57,12 @@ public class Main {
         } else {
             allRight = myShell.interactiveMode();
         }
+        try {
+            myMFileHashMap.close();
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            allRight = false;
+        }
         if (allRight) {
             System.exit(0);
         } else {
@@ -72,6 +84,13 @@ public class Main {
         myShell.addCommand(new RollbackCommand());
         myShell.addCommand(new CommitCommand());
         myShell.addCommand(new SizeCommand());
+        myShell.addCommand(new IndexCommand());
+        myShell.addCommand(new LookupCommand());
+        myShell.addCommand(new SelectCommand());
+        myShell.addCommand(new AggregateCommand());
+        myShell.addCommand(new ImportCommand());
+        myShell.addCommand(new ExportCommand());
+        myShell.addCommand(new RestoreCommand());
         myShell.addCommand(new ExitCommand());
     }
 }
@@ -1,7 +1,7 @@
 package ru.fizteh.fivt.students.titov.parallel.multi_file_hash_map;
 
 import ru.fizteh.fivt.students.titov.parallel.file_map.Command;
-import ru.fizteh.fivt.students.titov.parallel.file_map.FileMap;
+import ru.fizteh.fivt.students.titov.parallel.file_map.StoredTable;
 
 public abstract class MultiFileHashMapCommand extends Command<MFileHashMap> {
 
@@ -10,7 +10,7 @@ public abstract class MultiFileHashMapCommand extends Command<MFileHashMap> {
         numberOfArguments = n;
     }
 
-    public boolean isTable(FileMap currentTable) {
+    public boolean isTable(StoredTable currentTable) {
         if (currentTable == null) {
             System.out.println("no table");
             return true;
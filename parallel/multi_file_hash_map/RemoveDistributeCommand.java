@@ -1,6 +1,6 @@
 package ru.fizteh.fivt.students.titov.parallel.multi_file_hash_map;
 
-import ru.fizteh.fivt.students.titov.parallel.file_map.FileMap;
+import ru.fizteh.fivt.students.titov.parallel.file_map.StoredTable;
 import ru.fizteh.fivt.students.titov.parallel.file_map.RemoveFileMapCommand;
 
 public class RemoveDistributeCommand extends MultiFileHashMapCommand {
@@ -10,7 +10,7 @@ public class RemoveDistributeCommand extends MultiFileHashMapCommand {
 
     @Override
     public boolean run(MFileHashMap myMap, String[] args) {
-        FileMap currentTable = myMap.getCurrentTable();
+        StoredTable currentTable = myMap.getCurrentTable();
         if (myMap.getCurrentTable() == null) {
             isTable(currentTable);
             return true;
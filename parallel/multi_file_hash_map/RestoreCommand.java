@@ -0,0 +1,28 @@
+package ru.fizteh.fivt.students.titov.parallel.multi_file_hash_map;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+
+/**
+ * restore file - creates tables of the archive file written by export.
+ */
+public class RestoreCommand extends MultiFileHashMapCommand {
+    public RestoreCommand() {
+        initialize("restore", 2);
+    }
+
+    @Override
+    public boolean run(MFileHashMap myMap, String[] args) {
+        try (InputStream input = Files.newInputStream(Paths.get(args[1]))) {
+            List<String> names = myMap.restore(input);
+            System.out.println("restored " + String.join(", ", names));
+        } catch (IOException | IllegalStateException e) {
+            System.err.println(name + ": " + e.getMessage());
+            return false;
+        }
+        return true;
+    }
+}
@@ -1,6 +1,6 @@
 package ru.fizteh.fivt.students.titov.parallel.multi_file_hash_map;
 
-import ru.fizteh.fivt.students.titov.parallel.file_map.FileMap;
+import ru.fizteh.fivt.students.titov.parallel.file_map.StoredTable;
 
 public class RollbackCommand extends MultiFileHashMapCommand {
     public RollbackCommand() {
@@ -9,7 +9,7 @@ public class RollbackCommand extends MultiFileHashMapCommand {
 
     @Override
     public boolean run(MFileHashMap myMap, String[] args) {
-        FileMap currentTable = myMap.getCurrentTable();
+        StoredTable currentTable = myMap.getCurrentTable();
         if (currentTable == null) {
             isTable(currentTable);
         } else {
@@ -0,0 +1,69 @@
+package ru.fizteh.fivt.students.titov.parallel.multi_file_hash_map;
+
+import ru.fizteh.fivt.students.titov.parallel.file_map.ColumnPredicate;
+import ru.fizteh.fivt.students.titov.parallel.file_map.FileMap;
+import ru.fizteh.fivt.students.titov.parallel.file_map.QueryRow;
+import ru.fizteh.fivt.students.titov.parallel.file_map.StoredTable;
+import ru.fizteh.fivt.students.titov.parallel.file_map.TableQuery;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * select columns [where column operator value [and column operator value ...]]
+ * columns are "*" or numbers separated by commas, for example: select 0,2 where 0 > 100 and 2 == true
+ */
+public class SelectCommand extends MultiFileHashMapCommand {
+    public SelectCommand() {
+        initialize("select", -1);
+    }
+
+    @Override
+    public boolean run(MFileHashMap myMap, String[] args) {
+        StoredTable currentTable = myMap.getCurrentTable();
+        if (currentTable == null) {
+            isTable(currentTable);
+            return true;
+        }
+        if (!(currentTable instanceof FileMap)) {
+            System.err.println(name + ": queries are supported by tables of the hash engine only");
+            return false;
+        }
+        if (args.length < 2 || args.length > 2 && (!args[2].equals("where") || (args.length - 3) % 4 != 3)) {
+            System.err.println(name + ": wrong arguments");
+            return false;
+        }
+        try {
+            List<Integer> columns = new ArrayList<>();
+            if (!args[1].equals("*")) {
+                for (String oneColumn : args[1].split(",")) {
+                    columns.add(Integer.parseInt(oneColumn));
+                }
+            }
+            List<ColumnPredicate> predicates = new ArrayList<>();
+            for (int i = 3; i < args.length; i += 4) {
+                if (i > 3 && !args[i - 1].equals("and")) {
+                    System.err.println(name + ": wrong arguments");
+                    return false;
+                }
+                predicates.add(ColumnPredicate.parse(currentTable, args[i], args[i + 1], args[i + 2]));
+            }
+            Iterator<QueryRow> rows = ((FileMap) currentTable).select(new TableQuery(predicates, columns));
+            Writer output = new BufferedWriter(new OutputStreamWriter(System.out));
+            while (rows.hasNext()) {
+                QueryRow oneRow = rows.next();
+                output.write(oneRow.getKey() + " " + oneRow.getValues() + System.lineSeparator());
+            }
+            output.flush();
+        } catch (IllegalArgumentException | IndexOutOfBoundsException | IllegalStateException | IOException e) {
+            System.err.println(name + ": " + e.getMessage());
+            return false;
+        }
+        return true;
+    }
+}
@@ -1,6 +1,6 @@
 package ru.fizteh.fivt.students.titov.parallel.multi_file_hash_map;
 
-import ru.fizteh.fivt.students.titov.parallel.file_map.FileMap;
+import ru.fizteh.fivt.students.titov.parallel.file_map.StoredTable;
 
 import java.util.Map.Entry;
 import java.util.Set;
@@ -16,8 +16,8 @@ public class ShowTablesCommand extends MultiFileHashMapCommand {
             System.err.println(name + ": wrong arguments");
             return false;
         }
-        Set<Entry<String, FileMap>> pairSet = myMap.getTables().entrySet();
-        for (Entry<String, FileMap> oneTable: pairSet) {
+        Set<Entry<String, StoredTable>> pairSet = myMap.getTables().entrySet();
+        for (Entry<String, StoredTable> oneTable: pairSet) {
             System.out.println(oneTable.getKey() + " " + oneTable.getValue().size());
         }
         return true;
@@ -1,6 +1,6 @@
 package ru.fizteh.fivt.students.titov.parallel.multi_file_hash_map;
 
-import ru.fizteh.fivt.students.titov.parallel.file_map.FileMap;
+import ru.fizteh.fivt.students.titov.parallel.file_map.StoredTable;
 
 public class UseCommand extends MultiFileHashMapCommand {
     private static final String USING = "using ";
@@ -10,9 +10,9 @@ public class UseCommand extends MultiFileHashMapCommand {
 
     @Override
     public boolean run(MFileHashMap myMap, String[] args) {
-        FileMap newCurrentTable = (FileMap) myMap.getTable(args[1]);
+        StoredTable newCurrentTable = (StoredTable) myMap.getTable(args[1]);
         if (newCurrentTable != null) {
-            FileMap currentTable = myMap.getCurrentTable();
+            StoredTable currentTable = myMap.getCurrentTable();
             if (currentTable == null) {
                 myMap.setCurrentTable(newCurrentTable);
                 System.out.println(USING + args[1]);
@@ -6,25 +6,35 @@ import ru.fizteh.fivt.storage.structured.Table;
 
 public class AbstractStoreable implements Storeable {
     private Object[] values;
-    private Table parentTable;
+    private TableSchema schema;
 
+    /**
+     * Values must already fit the columns of the table, they are not checked.
+     */
     public AbstractStoreable(Object[] newValues, Table newParent) {
+        this(newValues, TableSchema.of(newParent));
+    }
+
+    /**
+     * Values must already fit the schema, they are not checked.
+     */
+    public AbstractStoreable(Object[] newValues, TableSchema newSchema) {
         values = newValues;
-        parentTable = newParent;
+        schema = newSchema;
     }
 
     @Override
     public void setColumnAt(int columnIndex, Object value) throws ColumnFormatException, IndexOutOfBoundsException {
-        if (value == null) {
-            values[columnIndex] = value;
-            return;
-        }
-        if (!parentTable.getColumnType(columnIndex).equals(value.getClass())) {
-            throw new ColumnFormatException("expected:" + parentTable.getColumnType(columnIndex)
-                + " , but got:" + value.getClass());
-        } else {
-            values[columnIndex] = value;
-        }
+        schema.checkValue(columnIndex, value);
+        values[columnIndex] = value;
+    }
+
+    public int getNumberOfColumns() {
+        return values.length;
+    }
+
+    public TableSchema getSchema() {
+        return schema;
     }
 
     @Override
@@ -34,64 +44,47 @@ public class AbstractStoreable implements Storeable {
 
     @Override
     public Integer getIntAt(int columnIndex) throws ColumnFormatException, IndexOutOfBoundsException {
-        if (!values[columnIndex].getClass().equals(Integer.class)) {
-            throw new ColumnFormatException("expected:" + parentTable.getColumnType(columnIndex)
-                    + " , but got:" + Integer.class);
-        }
-        return (Integer) values[columnIndex];
+        return (Integer) getColumnAt(columnIndex, Integer.class);
     }
 
     @Override
     public Long getLongAt(int columnIndex) throws ColumnFormatException, IndexOutOfBoundsException {
-        if (!values[columnIndex].getClass().equals(Long.class)) {
-            throw new ColumnFormatException("expected:" + parentTable.getColumnType(columnIndex)
-                    + " , but got:" + Long.class);
-        }
-        return (Long) values[columnIndex];
+        return (Long) getColumnAt(columnIndex, Long.class);
     }
 
     @Override
     public Byte getByteAt(int columnIndex) throws ColumnFormatException, IndexOutOfBoundsException {
-        if (!values[columnIndex].getClass().equals(Byte.class)) {
-            throw new ColumnFormatException("expected:" + parentTable.getColumnType(columnIndex)
-                    + " , but got:" + Byte.class);
-        }
-        return (Byte) values[columnIndex];
+        return (Byte) getColumnAt(columnIndex, Byte.class);
     }
 
     @Override
     public Float getFloatAt(int columnIndex) throws ColumnFormatException, IndexOutOfBoundsException {
-        if (!values[columnIndex].getClass().equals(Float.class)) {
-            throw new ColumnFormatException("expected:" + parentTable.getColumnType(columnIndex)
-                    + " , but got:" + Float.class);
-        }
-        return (Float) values[columnIndex];
+        return (Float) getColumnAt(columnIndex, Float.class);
     }
 
     @Override
     public Double getDoubleAt(int columnIndex) throws ColumnFormatException, IndexOutOfBoundsException {
-        if (!values[columnIndex].getClass().equals(Double.class)) {
-            throw new ColumnFormatException("expected:" + parentTable.getColumnType(columnIndex)
-                    + " , but got:" + Double.class);
-        }
-        return (Double) values[columnIndex];
+        return (Double) getColumnAt(columnIndex, Double.class);
     }
 
     @Override
     public Boolean getBooleanAt(int columnIndex) throws ColumnFormatException, IndexOutOfBoundsException {
-        if (!values[columnIndex].getClass().equals(Boolean.class)) {
-            throw new ColumnFormatException("expected:" + parentTable.getColumnType(columnIndex)
-                    + " , but got:" + Boolean.class);
-        }
-        return (Boolean) values[columnIndex];
+        return (Boolean) getColumnAt(columnIndex, Boolean.class);
     }
 
     @Override
     public String getStringAt(int columnIndex) throws ColumnFormatException, IndexOutOfBoundsException {
-        if (!values[columnIndex].getClass().equals(String.class)) {
-            throw new ColumnFormatException("expected:" + parentTable.getColumnType(columnIndex)
-                    + " , but got:" + String.class);
+        return (String) getColumnAt(columnIndex, String.class);
+    }
+
+    /**
+     * Value of the column which must be of the type, null included.
+     */
+    private Object getColumnAt(int columnIndex, Class<?> type) throws ColumnFormatException,
+            IndexOutOfBoundsException {
+        if (schema.getType(columnIndex) != type) {
+            throw new ColumnFormatException("expected:" + schema.getType(columnIndex) + " , but got:" + type);
         }
-        return (String) values[columnIndex];
+        return values[columnIndex];
     }
 }
@@ -0,0 +1,137 @@
+package ru.fizteh.fivt.students.titov.parallel.storeable;
+
+import ru.fizteh.fivt.storage.structured.ColumnFormatException;
+import ru.fizteh.fivt.storage.structured.Storeable;
+import ru.fizteh.fivt.storage.structured.Table;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+
+/**
+ * Row layout: null bitmap ((columns + 7) / 8 bytes, bit set means null),
+ * then every non-null column in order. Numbers are big-endian with their
+ * natural width, boolean is one byte, String is int length + UTF-8 bytes.
+ */
+public class BinaryRowCodec implements RowCodec {
+    public static final String NAME = "binary";
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public byte[] encode(Table table, Storeable value) throws ColumnFormatException {
+        TableSchema schema = TableSchema.of(table);
+        int columns = schema.getNumberOfColumns();
+        int bitmapSize = (columns + 7) / 8;
+        byte[][] strings = new byte[columns][];
+        int size = bitmapSize;
+        for (int i = 0; i < columns; ++i) {
+            Object column = value.getColumnAt(i);
+            if (column == null) {
+                continue;
+            }
+            schema.checkValue(i, column);
+            if (schema.getTag(i) == TableSchema.STRING) {
+                strings[i] = ((String) column).getBytes(StandardCharsets.UTF_8);
+                size += 4 + strings[i].length;
+            } else {
+                size += widthOf(schema.getTag(i));
+            }
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.position(bitmapSize);
+        for (int i = 0; i < columns; ++i) {
+            Object column = value.getColumnAt(i);
+            if (column == null) {
+                buffer.put(i / 8, (byte) (buffer.get(i / 8) | (1 << (i % 8))));
+                continue;
+            }
+            switch (schema.getTag(i)) {
+                case TableSchema.INT:
+                    buffer.putInt((Integer) column);
+                    break;
+                case TableSchema.LONG:
+                    buffer.putLong((Long) column);
+                    break;
+                case TableSchema.BYTE:
+                    buffer.put((Byte) column);
+                    break;
+                case TableSchema.FLOAT:
+                    buffer.putFloat((Float) column);
+                    break;
+                case TableSchema.DOUBLE:
+                    buffer.putDouble((Double) column);
+                    break;
+                case TableSchema.BOOLEAN:
+                    buffer.put((byte) ((Boolean) column ? 1 : 0));
+                    break;
+                default:
+                    buffer.putInt(strings[i].length);
+                    buffer.put(strings[i]);
+            }
+        }
+        return buffer.array();
+    }
+
+    @Override
+    public Storeable decode(Table table, byte[] data) throws ParseException {
+        TableSchema schema = TableSchema.of(table);
+        int columns = schema.getNumberOfColumns();
+        int bitmapSize = (columns + 7) / 8;
+        PackedStoreable result = new PackedStoreable(schema);
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        int column = 0;
+        try {
+            buffer.position(bitmapSize);
+            for (; column < columns; ++column) {
+                if ((data[column / 8] & (1 << (column % 8))) != 0) {
+                    continue;
+                }
+                switch (schema.getTag(column)) {
+                    case TableSchema.INT:
+                    case TableSchema.FLOAT:
+                        result.setBits(column, buffer.getInt());
+                        break;
+                    case TableSchema.LONG:
+                    case TableSchema.DOUBLE:
+                        result.setBits(column, buffer.getLong());
+                        break;
+                    case TableSchema.BYTE:
+                        result.setBits(column, buffer.get());
+                        break;
+                    case TableSchema.BOOLEAN:
+                        result.setBits(column, buffer.get() != 0 ? 1 : 0);
+                        break;
+                    default:
+                        int length = buffer.getInt();
+                        if (length < 0 || length > buffer.remaining()) {
+                            throw new ParseException("bad string length", column);
+                        }
+                        result.setString(column, new String(data, buffer.position(), length, StandardCharsets.UTF_8));
+                        buffer.position(buffer.position() + length);
+                }
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException e) {
+            throw new ParseException("truncated row", column);
+        }
+        if (buffer.hasRemaining()) {
+            throw new ParseException("extra bytes after row", columns);
+        }
+        return result;
+    }
+
+    private static int widthOf(int tag) {
+        if (tag == TableSchema.INT || tag == TableSchema.FLOAT) {
+            return 4;
+        }
+        if (tag == TableSchema.LONG || tag == TableSchema.DOUBLE) {
+            return 8;
+        }
+        return 1;
+    }
+}
@@ -0,0 +1,202 @@
+package ru.fizteh.fivt.students.titov.parallel.storeable;
+
+import ru.fizteh.fivt.storage.structured.ColumnFormatException;
+import ru.fizteh.fivt.storage.structured.Storeable;
+
+/**
+ * Row with fixed-width columns kept unboxed in one long[] slab and Strings in a side array.
+ * The first words of the slab are the null bitmap (bit set means null), then every
+ * fixed-width column takes one word: integers as they are, float and double as their
+ * raw bits, boolean as 0 or 1. The layout comes from TableSchema. Typed getters read
+ * the slab directly, intAt and the other primitive getters don't box at all.
+ */
+public class PackedStoreable implements Storeable {
+    private static final String[] NO_STRINGS = new String[0];
+
+    private final TableSchema schema;
+    private final long[] slab;
+    private final String[] strings;
+
+    /**
+     * Row of nulls.
+     */
+    public PackedStoreable(TableSchema newSchema) {
+        schema = newSchema;
+        slab = new long[schema.getSizeOfSlab()];
+        strings = schema.getNumberOfStrings() == 0 ? NO_STRINGS : new String[schema.getNumberOfStrings()];
+        int numberOfColumns = schema.getNumberOfColumns();
+        for (int i = 0; i < numberOfColumns / 64; ++i) {
+            slab[i] = -1L;
+        }
+        if (numberOfColumns % 64 != 0) {
+            slab[numberOfColumns / 64] = (1L << numberOfColumns % 64) - 1;
+        }
+    }
+
+    public TableSchema getSchema() {
+        return schema;
+    }
+
+    public int getNumberOfColumns() {
+        return schema.getNumberOfColumns();
+    }
+
+    public boolean isNull(int columnIndex) throws IndexOutOfBoundsException {
+        schema.getTag(columnIndex);
+        return (slab[columnIndex >> 6] & (1L << (columnIndex & 63))) != 0;
+    }
+
+    @Override
+    public void setColumnAt(int columnIndex, Object value) throws ColumnFormatException, IndexOutOfBoundsException {
+        schema.checkValue(columnIndex, value);
+        if (value == null) {
+            slab[columnIndex >> 6] |= 1L << (columnIndex & 63);
+            if (schema.getTag(columnIndex) == TableSchema.STRING) {
+                strings[schema.getSlot(columnIndex)] = null;
+            }
+            return;
+        }
+        switch (schema.getTag(columnIndex)) {
+            case TableSchema.INT:
+                setBits(columnIndex, (Integer) value);
+                break;
+            case TableSchema.LONG:
+                setBits(columnIndex, (Long) value);
+                break;
+            case TableSchema.BYTE:
+                setBits(columnIndex, (Byte) value);
+                break;
+            case TableSchema.FLOAT:
+                setBits(columnIndex, Float.floatToRawIntBits((Float) value));
+                break;
+            case TableSchema.DOUBLE:
+                setBits(columnIndex, Double.doubleToRawLongBits((Double) value));
+                break;
+            case TableSchema.BOOLEAN:
+                setBits(columnIndex, (Boolean) value ? 1 : 0);
+                break;
+            default:
+                setString(columnIndex, (String) value);
+        }
+    }
+
+    /**
+     * Stores the word of a fixed-width column as it is, the column is no longer null.
+     * Used by codecs, which know the type of the column.
+     */
+    void setBits(int columnIndex, long bits) {
+        slab[columnIndex >> 6] &= ~(1L << (columnIndex & 63));
+        slab[schema.getSlot(columnIndex)] = bits;
+    }
+
+    void setString(int columnIndex, String value) {
+        slab[columnIndex >> 6] &= ~(1L << (columnIndex & 63));
+        strings[schema.getSlot(columnIndex)] = value;
+    }
+
+    @Override
+    public Object getColumnAt(int columnIndex) throws IndexOutOfBoundsException {
+        if (isNull(columnIndex)) {
+            return null;
+        }
+        long bits = slab[schema.getSlot(columnIndex)];
+        switch (schema.getTag(columnIndex)) {
+            case TableSchema.INT:
+                return (int) bits;
+            case TableSchema.LONG:
+                return bits;
+            case TableSchema.BYTE:
+                return (byte) bits;
+            case TableSchema.FLOAT:
+                return Float.intBitsToFloat((int) bits);
+            case TableSchema.DOUBLE:
+                return Double.longBitsToDouble(bits);
+            case TableSchema.BOOLEAN:
+                return bits != 0;
+            default:
+                return strings[schema.getSlot(columnIndex)];
+        }
+    }
+
+    @Override
+    public Integer getIntAt(int columnIndex) throws ColumnFormatException, IndexOutOfBoundsException {
+        return isNull(columnIndex, TableSchema.INT) ? null : (int) slab[schema.getSlot(columnIndex)];
+    }
+
+    @Override
+    public Long getLongAt(int columnIndex) throws ColumnFormatException, IndexOutOfBoundsException {
+        return isNull(columnIndex, TableSchema.LONG) ? null : slab[schema.getSlot(columnIndex)];
+    }
+
+    @Override
+    public Byte getByteAt(int columnIndex) throws ColumnFormatException, IndexOutOfBoundsException {
+        return isNull(columnIndex, TableSchema.BYTE) ? null : (byte) slab[schema.getSlot(columnIndex)];
+    }
+
+    @Override
+    public Float getFloatAt(int columnIndex) throws ColumnFormatException, IndexOutOfBoundsException {
+        return isNull(columnIndex, TableSchema.FLOAT) ? null
+                : Float.intBitsToFloat((int) slab[schema.getSlot(columnIndex)]);
+    }
+
+    @Override
+    public Double getDoubleAt(int columnIndex) throws ColumnFormatException, IndexOutOfBoundsException {
+        return isNull(columnIndex, TableSchema.DOUBLE) ? null
+                : Double.longBitsToDouble(slab[schema.getSlot(columnIndex)]);
+    }
+
+    @Override
+    public Boolean getBooleanAt(int columnIndex) throws ColumnFormatException, IndexOutOfBoundsException {
+        return isNull(columnIndex, TableSchema.BOOLEAN) ? null : slab[schema.getSlot(columnIndex)] != 0;
+    }
+
+    @Override
+    public String getStringAt(int columnIndex) throws ColumnFormatException, IndexOutOfBoundsException {
+        return isNull(columnIndex, TableSchema.STRING) ? null : strings[schema.getSlot(columnIndex)];
+    }
+
+    /**
+     * @throws NullPointerException if the column is null
+     */
+    public int intAt(int columnIndex) throws ColumnFormatException, IndexOutOfBoundsException {
+        return (int) primitiveAt(columnIndex, TableSchema.INT);
+    }
+
+    public long longAt(int columnIndex) throws ColumnFormatException, IndexOutOfBoundsException {
+        return primitiveAt(columnIndex, TableSchema.LONG);
+    }
+
+    public byte byteAt(int columnIndex) throws ColumnFormatException, IndexOutOfBoundsException {
+        return (byte) primitiveAt(columnIndex, TableSchema.BYTE);
+    }
+
+    public float floatAt(int columnIndex) throws ColumnFormatException, IndexOutOfBoundsException {
+        return Float.intBitsToFloat((int) primitiveAt(columnIndex, TableSchema.FLOAT));
+    }
+
+    public double doubleAt(int columnIndex) throws ColumnFormatException, IndexOutOfBoundsException {
+        return Double.longBitsToDouble(primitiveAt(columnIndex, TableSchema.DOUBLE));
+    }
+
+    public boolean booleanAt(int columnIndex) throws ColumnFormatException, IndexOutOfBoundsException {
+        return primitiveAt(columnIndex, TableSchema.BOOLEAN) != 0;
+    }
+
+    private long primitiveAt(int columnIndex, int tag) throws ColumnFormatException, IndexOutOfBoundsException {
+        if (isNull(columnIndex, tag)) {
+            throw new NullPointerException("column " + columnIndex + " is null");
+        }
+        return slab[schema.getSlot(columnIndex)];
+    }
+
+    /**
+     * Checks that the column is of the type of the getter.
+     */
+    private boolean isNull(int columnIndex, int tag) throws ColumnFormatException, IndexOutOfBoundsException {
+        if (schema.getTag(columnIndex) != tag) {
+            throw new ColumnFormatException("expected:" + schema.getType(columnIndex) + " , but got:"
+                    + TableSchema.typeOf(tag));
+        }
+        return (slab[columnIndex >> 6] & (1L << (columnIndex & 63))) != 0;
+    }
+}
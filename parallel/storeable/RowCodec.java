@@ -0,0 +1,19 @@
+package ru.fizteh.fivt.students.titov.parallel.storeable;
+
+import ru.fizteh.fivt.storage.structured.ColumnFormatException;
+import ru.fizteh.fivt.storage.structured.Storeable;
+import ru.fizteh.fivt.storage.structured.Table;
+
+import java.text.ParseException;
+
+/**
+ * Converts one row of a table to bytes and back.
+ * Implementations must not keep state between calls.
+ */
+public interface RowCodec {
+    String getName();
+
+    byte[] encode(Table table, Storeable value) throws ColumnFormatException;
+
+    Storeable decode(Table table, byte[] data) throws ParseException;
+}
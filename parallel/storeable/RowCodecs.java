@@ -0,0 +1,25 @@
+package ru.fizteh.fivt.students.titov.parallel.storeable;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class RowCodecs {
+    private static Map<String, RowCodec> codecs;
+    static {
+        codecs = new HashMap<>();
+        register(new XmlRowCodec());
+        register(new BinaryRowCodec());
+    }
+
+    private static void register(RowCodec codec) {
+        codecs.put(codec.getName(), codec);
+    }
+
+    public static RowCodec forName(String name) throws IllegalArgumentException {
+        RowCodec codec = codecs.get(name);
+        if (codec == null) {
+            throw new IllegalArgumentException("unknown codec (" + name + ")");
+        }
+        return codec;
+    }
+}
@@ -0,0 +1,193 @@
+package ru.fizteh.fivt.students.titov.parallel.storeable;
+
+import ru.fizteh.fivt.storage.structured.ColumnFormatException;
+import ru.fizteh.fivt.storage.structured.Storeable;
+import ru.fizteh.fivt.storage.structured.Table;
+import ru.fizteh.fivt.students.titov.parallel.file_map.StoredTable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Column types of a table, built once from signature.tsv. Every column has a tag
+ * the codecs switch on and a slot in the layout of PackedStoreable. Checks of rows
+ * neither allocate nor probe columns until IndexOutOfBoundsException, and rows of
+ * our own Storeables made for an equal schema are not checked column by column at all.
+ */
+public final class TableSchema {
+    public static final int INT = 0;
+    public static final int LONG = 1;
+    public static final int BYTE = 2;
+    public static final int FLOAT = 3;
+    public static final int DOUBLE = 4;
+    public static final int BOOLEAN = 5;
+    public static final int STRING = 6;
+
+    /**
+     * Schema of tombstones and other rows without columns.
+     */
+    public static final TableSchema EMPTY = new TableSchema(Collections.emptyList());
+
+    private static final List<Class<?>> CLASSES = Arrays.asList(Integer.class, Long.class, Byte.class,
+            Float.class, Double.class, Boolean.class, String.class);
+    private static final List<String> NAMES = Arrays.asList("int", "long", "byte", "float", "double",
+            "boolean", "String");
+
+    private final Class<?>[] types;
+    private final int[] tags;
+    private final List<Class<?>> typeList;
+    private final int[] slots;
+    private final int sizeOfSlab;
+    private final int numberOfStrings;
+
+    public TableSchema(List<Class<?>> columnTypes) throws IllegalArgumentException {
+        types = new Class<?>[columnTypes.size()];
+        tags = new int[columnTypes.size()];
+        for (int i = 0; i < types.length; ++i) {
+            types[i] = columnTypes.get(i);
+            tags[i] = CLASSES.indexOf(types[i]);
+            if (tags[i] < 0) {
+                throw new IllegalArgumentException("wrong type ("
+                        + (types[i] == null ? null : types[i].getTypeName()) + ")");
+            }
+        }
+        typeList = Collections.unmodifiableList(Arrays.asList(types));
+
+        slots = new int[types.length];
+        int fixedColumns = (types.length + 63) / 64;
+        int stringColumns = 0;
+        for (int i = 0; i < types.length; ++i) {
+            slots[i] = tags[i] == STRING ? stringColumns++ : fixedColumns++;
+        }
+        sizeOfSlab = fixedColumns;
+        numberOfStrings = stringColumns;
+    }
+
+    /**
+     * @param signature - names of types separated by whitespace, as in signature.tsv
+     */
+    public static TableSchema parse(String signature) throws ColumnFormatException {
+        List<Class<?>> columnTypes = new ArrayList<>();
+        for (String oneType : signature.trim().split("\\s+")) {
+            int tag = NAMES.indexOf(oneType);
+            if (tag < 0) {
+                throw new ColumnFormatException("wrong type (" + oneType + ")");
+            }
+            columnTypes.add(CLASSES.get(tag));
+        }
+        return new TableSchema(columnTypes);
+    }
+
+    /**
+     * Schema of our own tables is taken as it is, of other tables it's built from their column types.
+     */
+    public static TableSchema of(Table table) {
+        if (table instanceof StoredTable) {
+            return ((StoredTable) table).getSchema();
+        }
+        List<Class<?>> columnTypes = new ArrayList<>();
+        for (int i = 0; i < table.getColumnsCount(); ++i) {
+            columnTypes.add(table.getColumnType(i));
+        }
+        return new TableSchema(columnTypes);
+    }
+
+    public int getNumberOfColumns() {
+        return types.length;
+    }
+
+    public Class<?> getType(int column) throws IndexOutOfBoundsException {
+        return types[column];
+    }
+
+    public int getTag(int column) throws IndexOutOfBoundsException {
+        return tags[column];
+    }
+
+    public List<Class<?>> getTypes() {
+        return typeList;
+    }
+
+    static Class<?> typeOf(int tag) {
+        return CLASSES.get(tag);
+    }
+
+    /**
+     * Place of the column in the slab of PackedStoreable, or in its array of Strings
+     * for a String column.
+     */
+    int getSlot(int column) throws IndexOutOfBoundsException {
+        return slots[column];
+    }
+
+    /**
+     * Words of the null bitmap and of all fixed-width columns.
+     */
+    int getSizeOfSlab() {
+        return sizeOfSlab;
+    }
+
+    int getNumberOfStrings() {
+        return numberOfStrings;
+    }
+
+    public String toSignature() {
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < tags.length; ++i) {
+            if (i > 0) {
+                result.append(" ");
+            }
+            result.append(NAMES.get(tags[i]));
+        }
+        return result.toString();
+    }
+
+    /**
+     * A value may be put into the column if it is null or of the type of the column.
+     */
+    public void checkValue(int column, Object value) throws ColumnFormatException, IndexOutOfBoundsException {
+        if (value != null && value.getClass() != types[column]) {
+            throw new ColumnFormatException("expected:" + types[column] + " , but got:" + value.getClass());
+        }
+    }
+
+    /**
+     * Checks that the row has as many columns as the schema and every value fits its column.
+     */
+    public void check(Storeable row) throws ColumnFormatException, IndexOutOfBoundsException {
+        int size;
+        if (row instanceof PackedStoreable) {
+            TableSchema rowSchema = ((PackedStoreable) row).getSchema();
+            if (equals(rowSchema)) {
+                return;
+            }
+            size = rowSchema.getNumberOfColumns();
+        } else if (row instanceof AbstractStoreable) {
+            AbstractStoreable ownRow = (AbstractStoreable) row;
+            if (equals(ownRow.getSchema())) {
+                return;
+            }
+            size = ownRow.getNumberOfColumns();
+        } else {
+            size = TypesUtils.getSizeOfStoreable(row);
+        }
+        if (size != types.length) {
+            throw new IndexOutOfBoundsException("expected " + types.length + " columns, but got " + size);
+        }
+        for (int i = 0; i < size; ++i) {
+            checkValue(i, row.getColumnAt(i));
+        }
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other == this || other instanceof TableSchema && Arrays.equals(tags, ((TableSchema) other).tags);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(tags);
+    }
+}
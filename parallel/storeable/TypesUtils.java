@@ -29,31 +29,6 @@ public class TypesUtils {
         }
     }
 
-    public static void checkNewStorableValue(List<Class<?>> types, Storeable newValue)
-    throws IndexOutOfBoundsException {
-        if (types.size() != TypesUtils.getSizeOfStoreable(newValue)) {
-            throw new IndexOutOfBoundsException();
-        }
-        List<Object> valueList = new ArrayList<>();
-        for (int i = 0; i < types.size(); ++i) {
-            valueList.add(newValue.getColumnAt(i));
-        }
-        checkNewStorableValue(types, valueList);
-    }
-
-    public static void checkNewStorableValue(List<Class<?>> types, List<Object> newValue)
-    throws ColumnFormatException, IndexOutOfBoundsException {
-        if (types.size() != newValue.size()) {
-            throw new IndexOutOfBoundsException();
-        }
-        for (int i = 0; i < types.size(); ++i) {
-            if (newValue.get(i) != null
-                    && !newValue.get(i).getClass().equals(types.get(i))) {
-                throw new ColumnFormatException(newValue.get(i).getClass().toString());
-            }
-        }
-    }
-
     public static List<Class<?>> toTypeList(String[] types) throws ColumnFormatException {
         List<Class<?>> result = new ArrayList<>();
         for (String oneType : types) {
@@ -86,6 +61,37 @@ public class TypesUtils {
         return result;
     }
 
+    /**
+     * Value of the type written as text, as in the shell.
+     */
+    public static Object parseValue(Class<?> type, String text) throws ColumnFormatException {
+        try {
+            switch (type.getTypeName()) {
+                case "java.lang.Integer":
+                    return Integer.parseInt(text);
+                case "java.lang.Byte":
+                    return Byte.parseByte(text);
+                case "java.lang.Long":
+                    return Long.parseLong(text);
+                case "java.lang.Boolean":
+                    if (!text.equals("true") && !text.equals("false")) {
+                        throw new ColumnFormatException("wrong boolean (" + text + ")");
+                    }
+                    return Boolean.parseBoolean(text);
+                case "java.lang.Float":
+                    return Float.parseFloat(text);
+                case "java.lang.Double":
+                    return Double.parseDouble(text);
+                case "java.lang.String":
+                    return text;
+                default:
+                    throw new ColumnFormatException("wrong type (" + type.getTypeName() + ")");
+            }
+        } catch (NumberFormatException e) {
+            throw new ColumnFormatException("wrong value (" + text + ")");
+        }
+    }
+
     public static String toFileSignature(List<Class<?>> types) {
         StringBuilder s = new StringBuilder();
         int counter = 0;
@@ -0,0 +1,406 @@
+package ru.fizteh.fivt.students.titov.parallel.storeable;
+
+import ru.fizteh.fivt.storage.structured.ColumnFormatException;
+import ru.fizteh.fivt.storage.structured.Storeable;
+import ru.fizteh.fivt.storage.structured.Table;
+
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.Arrays;
+
+/**
+ * Old "<row><col>...</col><null/></row>" format.
+ * Rows are written and read byte by byte without a StAX parser. '&', '<' and '>'
+ * in the text of a column are escaped as the StAX writer did it, on reading the predefined
+ * entities and character references are understood, whitespace between elements and
+ * an xml declaration before the row are skipped. The only state is a scratch buffer
+ * of every thread.
+ */
+public class XmlRowCodec implements RowCodec {
+    public static final String NAME = "xml";
+
+    private static final byte[] ROW = bytes("<row>");
+    private static final byte[] EMPTY_ROW = bytes("<row/>");
+    private static final byte[] END_OF_ROW = bytes("</row>");
+    private static final byte[] COL = bytes("<col>");
+    private static final byte[] END_OF_COL = bytes("</col>");
+    private static final byte[] NULL = bytes("<null/>");
+    private static final byte[] AMP = bytes("&amp;");
+    private static final byte[] LT = bytes("&lt;");
+    private static final byte[] GT = bytes("&gt;");
+
+    /**
+     * Scratch buffers bigger than this are not kept by the thread after the call.
+     */
+    private static final int MAX_KEPT_BUFFER = 1024 * 1024;
+
+    private static final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+
+    private static final class Scratch {
+        byte[] data = new byte[256];
+        int length;
+
+        void ensure(int more) {
+            if (length + more > data.length) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, length + more));
+            }
+        }
+
+        void put(int oneByte) {
+            ensure(1);
+            data[length++] = (byte) oneByte;
+        }
+
+        void put(byte[] bytes) {
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, data, length, bytes.length);
+            length += bytes.length;
+        }
+
+        void release() {
+            if (data.length > MAX_KEPT_BUFFER) {
+                data = new byte[256];
+            }
+        }
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public byte[] encode(Table table, Storeable value) throws ColumnFormatException {
+        TableSchema schema = TableSchema.of(table);
+        Scratch buffer = scratch.get();
+        buffer.length = 0;
+        try {
+            buffer.put(ROW);
+            for (int i = 0; i < schema.getNumberOfColumns(); ++i) {
+                Object column = value.getColumnAt(i);
+                if (column == null) {
+                    buffer.put(NULL);
+                    continue;
+                }
+                schema.checkValue(i, column);
+                buffer.put(COL);
+                switch (schema.getTag(i)) {
+                    case TableSchema.INT:
+                        writeLong(buffer, (Integer) column);
+                        break;
+                    case TableSchema.LONG:
+                        writeLong(buffer, (Long) column);
+                        break;
+                    case TableSchema.BYTE:
+                        writeLong(buffer, (Byte) column);
+                        break;
+                    case TableSchema.STRING:
+                        writeText(buffer, (String) column);
+                        break;
+                    default:
+                        writeAscii(buffer, column.toString());
+                }
+                buffer.put(END_OF_COL);
+            }
+            buffer.put(END_OF_ROW);
+            return Arrays.copyOf(buffer.data, buffer.length);
+        } finally {
+            buffer.release();
+        }
+    }
+
+    @Override
+    public Storeable decode(Table table, byte[] data) throws ParseException {
+        TableSchema schema = TableSchema.of(table);
+        int columns = schema.getNumberOfColumns();
+        PackedStoreable result = new PackedStoreable(schema);
+        int position = skipProlog(data, 0);
+        int column = 0;
+        if (startsWith(data, position, EMPTY_ROW)) {
+            position += EMPTY_ROW.length;
+        } else {
+            if (!startsWith(data, position, ROW)) {
+                throw new ParseException("<row> expected", position);
+            }
+            position += ROW.length;
+            while (true) {
+                position = skipWhitespace(data, position);
+                if (startsWith(data, position, END_OF_ROW)) {
+                    position += END_OF_ROW.length;
+                    break;
+                }
+                if (column == columns) {
+                    throw new ParseException("too many columns", position);
+                }
+                if (startsWith(data, position, NULL)) {
+                    position += NULL.length;
+                } else if (startsWith(data, position, COL)) {
+                    position += COL.length;
+                    int end = position;
+                    while (end < data.length && data[end] != '<') {
+                        ++end;
+                    }
+                    if (!startsWith(data, end, END_OF_COL)) {
+                        throw new ParseException("</col> expected", end);
+                    }
+                    parseColumn(result, column, data, position, end);
+                    position = end + END_OF_COL.length;
+                } else {
+                    throw new ParseException("<col>, <null/> or </row> expected", position);
+                }
+                ++column;
+            }
+        }
+        if (column != columns) {
+            throw new ParseException("too few columns", position);
+        }
+        if (skipWhitespace(data, position) != data.length) {
+            throw new ParseException("extra characters after </row>", position);
+        }
+        return result;
+    }
+
+    private static void parseColumn(PackedStoreable row, int column, byte[] data, int from, int to)
+            throws ParseException {
+        try {
+            switch (row.getSchema().getTag(column)) {
+                case TableSchema.STRING:
+                    row.setString(column, readText(data, from, to));
+                    break;
+                case TableSchema.INT:
+                    row.setBits(column, parseLong(data, from, to, Integer.MIN_VALUE, Integer.MAX_VALUE));
+                    break;
+                case TableSchema.LONG:
+                    row.setBits(column, parseLong(data, from, to, Long.MIN_VALUE, Long.MAX_VALUE));
+                    break;
+                case TableSchema.BYTE:
+                    row.setBits(column, parseLong(data, from, to, Byte.MIN_VALUE, Byte.MAX_VALUE));
+                    break;
+                case TableSchema.BOOLEAN:
+                    row.setBits(column, Boolean.parseBoolean(readText(data, from, to)) ? 1 : 0);
+                    break;
+                case TableSchema.FLOAT:
+                    row.setBits(column, Float.floatToRawIntBits(Float.parseFloat(readText(data, from, to))));
+                    break;
+                default:
+                    row.setBits(column, Double.doubleToRawLongBits(Double.parseDouble(readText(data, from, to))));
+            }
+        } catch (NumberFormatException e) {
+            throw new ParseException(e.getMessage(), from);
+        }
+    }
+
+    /**
+     * Same as Long.parseLong for ASCII digits, but straight from the bytes.
+     */
+    private static long parseLong(byte[] data, int from, int to, long min, long max) throws ParseException {
+        int i = from;
+        boolean negative = false;
+        if (i < to && (data[i] == '-' || data[i] == '+')) {
+            negative = data[i] == '-';
+            ++i;
+        }
+        if (i == to) {
+            throw new ParseException("number expected", from);
+        }
+        long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+        long result = 0;
+        for (; i < to; ++i) {
+            int digit = data[i] - '0';
+            if (digit < 0 || digit > 9 || result < limit / 10) {
+                throw new ParseException("wrong number", i);
+            }
+            result *= 10;
+            if (result < limit + digit) {
+                throw new ParseException("wrong number", i);
+            }
+            result -= digit;
+        }
+        result = negative ? result : -result;
+        if (result < min || result > max) {
+            throw new ParseException("number out of range", from);
+        }
+        return result;
+    }
+
+    /**
+     * Text of a column with entities and character references replaced.
+     */
+    private static String readText(byte[] data, int from, int to) throws ParseException {
+        int amp = from;
+        while (amp < to && data[amp] != '&') {
+            ++amp;
+        }
+        if (amp == to) {
+            return new String(data, from, to - from, StandardCharsets.UTF_8);
+        }
+        Scratch buffer = scratch.get();
+        buffer.length = 0;
+        try {
+            buffer.ensure(to - from);
+            System.arraycopy(data, from, buffer.data, 0, amp - from);
+            buffer.length = amp - from;
+            int i = amp;
+            while (i < to) {
+                if (data[i] != '&') {
+                    buffer.put(data[i++]);
+                    continue;
+                }
+                int end = i + 1;
+                while (end < to && data[end] != ';') {
+                    ++end;
+                }
+                if (end == to) {
+                    throw new ParseException("unterminated entity", i);
+                }
+                writeCodePoint(buffer, entity(data, i + 1, end));
+                i = end + 1;
+            }
+            return new String(buffer.data, 0, buffer.length, StandardCharsets.UTF_8);
+        } finally {
+            buffer.release();
+        }
+    }
+
+    private static int entity(byte[] data, int from, int to) throws ParseException {
+        String name = new String(data, from, to - from, StandardCharsets.ISO_8859_1);
+        switch (name) {
+            case "amp":
+                return '&';
+            case "lt":
+                return '<';
+            case "gt":
+                return '>';
+            case "quot":
+                return '"';
+            case "apos":
+                return '\'';
+            default:
+                try {
+                    int codePoint = -1;
+                    if (name.startsWith("#x")) {
+                        codePoint = Integer.parseInt(name.substring(2), 16);
+                    } else if (name.startsWith("#")) {
+                        codePoint = Integer.parseInt(name.substring(1));
+                    }
+                    if (Character.isValidCodePoint(codePoint)) {
+                        return codePoint;
+                    }
+                } catch (NumberFormatException e) {
+                    // reported below
+                }
+                throw new ParseException("unknown entity (" + name + ")", from);
+        }
+    }
+
+    private static void writeLong(Scratch buffer, long value) {
+        if (value == Long.MIN_VALUE) {
+            writeAscii(buffer, Long.toString(value));
+            return;
+        }
+        if (value < 0) {
+            buffer.put('-');
+            value = -value;
+        }
+        int start = buffer.length;
+        do {
+            buffer.put((int) ('0' + value % 10));
+            value /= 10;
+        } while (value > 0);
+        for (int i = start, j = buffer.length - 1; i < j; ++i, --j) {
+            byte digit = buffer.data[i];
+            buffer.data[i] = buffer.data[j];
+            buffer.data[j] = digit;
+        }
+    }
+
+    private static void writeAscii(Scratch buffer, String text) {
+        buffer.ensure(text.length());
+        for (int i = 0; i < text.length(); ++i) {
+            buffer.data[buffer.length++] = (byte) text.charAt(i);
+        }
+    }
+
+    /**
+     * UTF-8 of the text with '&', '<' and '>' escaped. A lone surrogate is written as '?'
+     * as String.getBytes does.
+     */
+    private static void writeText(Scratch buffer, String text) {
+        for (int i = 0; i < text.length(); ++i) {
+            char c = text.charAt(i);
+            if (c == '&') {
+                buffer.put(AMP);
+            } else if (c == '<') {
+                buffer.put(LT);
+            } else if (c == '>') {
+                buffer.put(GT);
+            } else if (c < 0x80) {
+                buffer.put(c);
+            } else if (Character.isHighSurrogate(c) && i + 1 < text.length()
+                    && Character.isLowSurrogate(text.charAt(i + 1))) {
+                writeCodePoint(buffer, Character.toCodePoint(c, text.charAt(++i)));
+            } else if (Character.isSurrogate(c)) {
+                buffer.put('?');
+            } else {
+                writeCodePoint(buffer, c);
+            }
+        }
+    }
+
+    private static void writeCodePoint(Scratch buffer, int codePoint) {
+        if (codePoint < 0x80) {
+            buffer.put(codePoint);
+        } else if (codePoint < 0x800) {
+            buffer.put(0xc0 | (codePoint >> 6));
+            buffer.put(0x80 | (codePoint & 0x3f));
+        } else if (codePoint < 0x10000) {
+            buffer.put(0xe0 | (codePoint >> 12));
+            buffer.put(0x80 | ((codePoint >> 6) & 0x3f));
+            buffer.put(0x80 | (codePoint & 0x3f));
+        } else {
+            buffer.put(0xf0 | (codePoint >> 18));
+            buffer.put(0x80 | ((codePoint >> 12) & 0x3f));
+            buffer.put(0x80 | ((codePoint >> 6) & 0x3f));
+            buffer.put(0x80 | (codePoint & 0x3f));
+        }
+    }
+
+    private static int skipProlog(byte[] data, int position) throws ParseException {
+        position = skipWhitespace(data, position);
+        if (position + 1 < data.length && data[position] == '<' && data[position + 1] == '?') {
+            int end = position + 2;
+            while (end + 1 < data.length && !(data[end] == '?' && data[end + 1] == '>')) {
+                ++end;
+            }
+            if (end + 1 >= data.length) {
+                throw new ParseException("unterminated xml declaration", position);
+            }
+            position = skipWhitespace(data, end + 2);
+        }
+        return position;
+    }
+
+    private static int skipWhitespace(byte[] data, int position) {
+        while (position < data.length && (data[position] == ' ' || data[position] == '\n'
+                || data[position] == '\r' || data[position] == '\t')) {
+            ++position;
+        }
+        return position;
+    }
+
+    private static boolean startsWith(byte[] data, int position, byte[] prefix) {
+        if (position + prefix.length > data.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; ++i) {
+            if (data[position + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+}